@@ -0,0 +1,189 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmark della compressione dei trasferimenti delle sezioni.
+ * Avvia il Server nella stessa JVM e vi si collega con il TuringClient attraverso
+ * un proxy TCP che conta i byte in transito in entrambe le direzioni. Lo stesso
+ * carico (edit, end-edit, show di una sezione e show dell'intero documento su
+ * sezioni di testo) viene eseguito prima senza e poi con la compressione, misurando
+ * per ogni operazione i byte sul filo e la latenza end-to-end.
+ * <p>
+ * La latenza di end-edit comprende il caricamento della sezione: viene misurata
+ * fino alla risposta di un "list" inviato in pipeline subito dopo, che il server
+ * esegue solo a ricezione terminata. Sul loopback la banda è praticamente gratuita
+ * e la latenza misura soprattutto il costo di compressione: su una rete reale conta
+ * invece la riduzione dei byte sul filo.
+ * <p>
+ * Uso: java -cp src:bench CompressionBenchmark [pool|selector|virtual] [#sezioni] [KB per sezione] [#ripetizioni]
+ *
+ * @author Stefano Spadola 534919
+ */
+
+public class CompressionBenchmark {
+
+	private static final int PORT = 6666;
+	private static final int PROXY_PORT = 6667;
+	private static final String[] WORDS = {"il", "documento", "sezione", "modifica", "utente", "server",
+			"della", "che", "per", "con", "una", "viene", "file", "testo", "condiviso", "autore", "non",
+			"questo", "capitolo", "scrittura", "collaborativa", "di", "e", "la", "le", "in", "a"};
+
+	private static AtomicLong upstream = new AtomicLong();
+	private static AtomicLong downstream = new AtomicLong();
+
+	public static void main(String[] args) throws Exception {
+		String mode = args.length>0 ? args[0] : "selector";
+		int sections = args.length>1 ? Integer.parseInt(args[1]) : 8;
+		int size = (args.length>2 ? Integer.parseInt(args[2]) : 256)*1024;
+		int rounds = args.length>3 ? Integer.parseInt(args[3]) : 20;
+
+		//Server nella stessa JVM e proxy che conta i byte
+		Thread server = new Thread(() -> Server.main(new String[] {mode}), "Server");
+		server.setDaemon(true);
+		server.start();
+		Thread.sleep(1000);
+		Thread proxy = new Thread(CompressionBenchmark::proxy, "Proxy");
+		proxy.setDaemon(true);
+		proxy.start();
+
+		System.out.println("Modalità: "+mode+" - "+sections+" sezioni da "+size/1024+"KB, "+rounds+" ripetizioni");
+		System.out.println(String.format("%-12s %-8s %14s %12s %12s", "Operazione", "Codifica", "Byte sul filo", "p50", "p99"));
+		run("raw", false, sections, size, rounds);
+		run("deflate", true, sections, size, rounds);
+		System.exit(0);
+	}
+
+	private static void run(String name, boolean compression, int sections, int size, int rounds) throws Exception {
+		String user = "zip"+name;
+		UsersDB.getIstance().subscribe(user, "pwd");
+		Random random = new Random(42);
+		Measure edit = new Measure(rounds), endedit = new Measure(rounds), show = new Measure(rounds), document = new Measure(rounds);
+
+		try(TuringClient client = new TuringClient(new InetSocketAddress(InetAddress.getLocalHost(), PROXY_PORT))) {
+			client.setCompression(compression);
+			client.login(user, "pwd").get();
+			if(compression && !client.isCompressing()) throw new IOException("Compressione non accettata dal server");
+			client.create("doc", sections).get();
+			//Il documento viene riempito prima delle misure
+			for(int s=1; s<=sections; s++) {
+				client.edit("doc", user, s).get();
+				client.endEdit(text(random, size)).get();
+			}
+			client.list().get();
+
+			for(int i=0; i<rounds; i++) {
+				int s = 1+i%sections;
+				ByteBuffer content = text(random, size);
+
+				edit.start();
+				client.edit("doc", user, s).get();
+				edit.stop(i);
+
+				endedit.start();
+				client.endEdit(content);
+				client.list().get();
+				endedit.stop(i);
+
+				show.start();
+				client.show("doc", user, s).get();
+				show.stop(i);
+
+				document.start();
+				client.show("doc", user).get();
+				document.stop(i);
+			}
+			client.logout().get();
+		}
+		edit.print("edit", name);
+		endedit.print("end-edit", name);
+		show.print("show sez.", name);
+		document.print("show doc.", name);
+	}
+
+	/**
+	 * Genera una sezione di testo (parole ripetute in ordine casuale).
+	 */
+	private static ByteBuffer text(Random random, int size) {
+		StringBuilder sb = new StringBuilder(size+16);
+		int line=0;
+		while(sb.length()<size) {
+			sb.append(WORDS[random.nextInt(WORDS.length)]);
+			if(++line%12==0) sb.append(".\n");
+			else sb.append(' ');
+		}
+		sb.setLength(size);
+		return ByteBuffer.wrap(sb.toString().getBytes(Protocol.CHARSET));
+	}
+
+	/*Latenze e byte in transito di un tipo di operazione*/
+	private static class Measure {
+		private long[] latency;
+		private long bytes=0;
+		private long t;
+		private long before;
+
+		Measure(int rounds) {
+			latency = new long[rounds];
+		}
+
+		void start() {
+			before = upstream.get()+downstream.get();
+			t = System.nanoTime();
+		}
+
+		void stop(int i) throws InterruptedException {
+			latency[i] = System.nanoTime()-t;
+			Thread.sleep(5); //Si lascia al proxy il tempo di inoltrare gli ultimi byte
+			bytes += upstream.get()+downstream.get()-before;
+		}
+
+		void print(String op, String encoding) {
+			long[] l = latency.clone();
+			Arrays.sort(l);
+			System.out.println(String.format("%-12s %-8s %14d %10dus %10dus", op, encoding,
+					bytes/l.length, l[l.length/2]/1000, l[l.length*99/100]/1000));
+		}
+	}
+
+	/*Proxy TCP verso il Server che conta i byte in entrambe le direzioni*/
+	private static void proxy() {
+		try(ServerSocket listener = new ServerSocket(PROXY_PORT)) {
+			while(true) {
+				Socket client = listener.accept();
+				Socket server = new Socket(InetAddress.getLocalHost(), PORT);
+				client.setTcpNoDelay(true);
+				server.setTcpNoDelay(true);
+				pump(client, server, upstream);
+				pump(server, client, downstream);
+			}
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static void pump(Socket from, Socket to, AtomicLong counter) {
+		Thread t = new Thread(() -> {
+			byte[] buffer = new byte[64*1024];
+			try(InputStream in = from.getInputStream(); OutputStream out = to.getOutputStream()) {
+				int n;
+				while((n=in.read(buffer))>0) {
+					out.write(buffer, 0, n);
+					counter.addAndGet(n);
+				}
+			} catch(IOException e) {
+				//Connessione chiusa
+			}
+		});
+		t.setDaemon(true);
+		t.start();
+	}
+}
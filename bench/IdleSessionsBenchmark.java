@@ -0,0 +1,215 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Benchmark delle modalità di gestione delle connessioni del Server.
+ * Avvia il Server nella stessa JVM nella modalità richiesta, apre un gran numero
+ * di sessioni che restano inattive dopo il login (alcune in editmode) e misura:
+ * quante sessioni vengono servite, il tempo per servirle, la latenza di un
+ * client attivo che esegue "list" e i Thread/memoria usati dalla JVM.
+ * <p>
+ * Journal e archivio dei blob vengono creati in una directory temporanea e gli
+ * utenti hanno un prefisso diverso ad ogni esecuzione, così che il benchmark
+ * si possa ripetere: al termine vengono cancellati sia la directory temporanea
+ * sia i documenti creati nella directory di lavoro.
+ * <p>
+ * Uso: java -cp src:bench IdleSessionsBenchmark [pool|selector|virtual] [#sessioni] [#editmode]
+ *
+ * @author Stefano Spadola 534919
+ */
+
+public class IdleSessionsBenchmark {
+
+	private static final int PORT = 6666;
+	private static final long LOGIN_DEADLINE = 15000;
+	private static final int PROBES = 200;
+
+	public static void main(String[] args) throws Exception {
+		String mode = args.length>0 ? args[0] : "pool";
+		int sessions = args.length>1 ? Integer.parseInt(args[1]) : 3000;
+		int editors = args.length>2 ? Integer.parseInt(args[2]) : sessions/10;
+
+		//Stato del server isolato dalle esecuzioni precedenti
+		Path tmp = Files.createTempDirectory("turing-bench");
+		System.setProperty("turing.journal", tmp.resolve("journal").toString());
+		System.setProperty("turing.blobs", tmp.resolve("blobs").toString());
+		String prefix = "bench"+Long.toString(System.currentTimeMillis(), 36)+"-";
+
+		//Server nella stessa JVM
+		Thread server = new Thread(() -> Server.main(new String[] {mode}), "Server");
+		server.setDaemon(true);
+		server.start();
+		Thread.sleep(1000);
+
+		for(int i=0; i<=sessions; i++)
+			UsersDB.getIstance().subscribe(prefix+i, "pwd");
+
+		//pt 1) Si aprono tutte le connessioni e si inviano i login
+		long start = System.currentTimeMillis();
+		ArrayList<Session> all = new ArrayList<Session>();
+		for(int i=0; i<sessions; i++) {
+			Session s = new Session(prefix+i);
+			s.send("login "+s.user+" pwd");
+			all.add(s);
+		}
+
+		//pt 2) Si attendono le risposte entro una scadenza comune
+		int served=0;
+		long deadline = start+LOGIN_DEADLINE;
+		for(Session s : all) {
+			if(s.reply(deadline)==0) served++;
+		}
+		long loginTime = System.currentTimeMillis()-start;
+
+		//pt 3) Una parte delle sessioni servite entra in editmode e vi resta
+		int editing=0;
+		for(Session s : all) {
+			if(editing==editors) break;
+			if(s.logged && s.edit(System.currentTimeMillis()+LOGIN_DEADLINE)) editing++;
+		}
+
+		//pt 4) Latenza di un client attivo con tutte le altre sessioni inattive
+		Session probe = new Session(prefix+sessions);
+		probe.send("login "+probe.user+" pwd");
+		long[] latency = new long[PROBES];
+		int answered=0;
+		if(probe.reply(System.currentTimeMillis()+LOGIN_DEADLINE)==0) {
+			for(; answered<PROBES; answered++) {
+				long t = System.nanoTime();
+				probe.send("list");
+				int n = probe.reply(System.currentTimeMillis()+LOGIN_DEADLINE);
+				for(int j=0; j<n*5; j++) probe.readLine();
+				latency[answered] = System.nanoTime()-t;
+			}
+		}
+
+		Runtime rt = Runtime.getRuntime();
+		System.gc();
+		System.out.println("Modalità:              "+mode);
+		System.out.println("Sessioni servite:      "+served+"/"+sessions+" in "+loginTime+"ms");
+		System.out.println("Sessioni in editmode:  "+editing+"/"+editors);
+		System.out.println("Thread JVM (picco):    "+ManagementFactory.getThreadMXBean().getPeakThreadCount());
+		System.out.println("Heap usato:            "+(rt.totalMemory()-rt.freeMemory())/(1024*1024)+"MB");
+		if(answered>0) {
+			long[] l = Arrays.copyOf(latency, answered);
+			Arrays.sort(l);
+			System.out.println("Latenza list p50/p99:  "+l[answered/2]/1000+"us / "+l[answered*99/100]/1000+"us");
+		}
+		else System.out.println("Latenza list:          client attivo mai servito");
+
+		//Directory dei documenti (una per autore) e stato del server
+		for(int i=0; i<=sessions; i++) delete(Paths.get(prefix+i));
+		delete(tmp);
+		System.exit(0);
+	}
+
+	/*Cancella ricorsivamente una directory, se esiste*/
+	private static void delete(Path root) {
+		if(!Files.exists(root)) return;
+		try(Stream<Path> paths = Files.walk(root)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*Sessione simulata: usa lo stesso Protocol a frame del Client*/
+	private static class Session {
+		private String user;
+		private Socket socket;
+		private DataOutputStream writer;
+		private DataInputStream reader;
+		private int requestid=0;
+		private boolean logged=false;
+
+		Session(String user) throws IOException {
+			this.user=user;
+			socket = new Socket(InetAddress.getLocalHost(), PORT);
+			socket.setTcpNoDelay(true);
+			writer = new DataOutputStream(socket.getOutputStream());
+			reader = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		}
+
+		void send(String command) throws IOException {
+			requestid++;
+			sendLine(command);
+		}
+
+		void sendLine(String line) throws IOException {
+			byte[] payload = line.getBytes(Protocol.CHARSET);
+			writer.writeByte(Protocol.TEXT);
+			writer.writeInt(requestid);
+			writer.writeInt(payload.length);
+			writer.write(payload);
+			writer.flush();
+		}
+
+		/**
+		 * Riceve un frame e ne restituisce il payload
+		 */
+		byte[] readFrame(byte opcode) throws IOException {
+			byte received = reader.readByte();
+			reader.readInt(); //Id richiesta
+			byte[] payload = new byte[reader.readInt()];
+			reader.readFully(payload);
+			if(received!=opcode) throw new IOException("Frame inatteso: opcode "+received);
+			return payload;
+		}
+
+		String readLine() throws IOException {
+			return new String(readFrame(Protocol.TEXT), Protocol.CHARSET);
+		}
+
+		/**
+		 * Riceve un file (frame FILE + frame DATA) scartandone il contenuto
+		 */
+		void readFile() throws IOException {
+			long len = ByteBuffer.wrap(readFrame(Protocol.FILE)).getLong();
+			for(long received=0; received<len; ) received+=readFrame(Protocol.DATA).length;
+		}
+
+		/**
+		 * @return il codice di risposta, Integer.MIN_VALUE se non arriva entro la scadenza
+		 */
+		int reply(long deadline) throws IOException {
+			try {
+				socket.setSoTimeout((int)Math.max(1, deadline-System.currentTimeMillis()));
+				int ret = Integer.parseInt(readLine());
+				if(ret==0 && !logged) logged=true;
+				return ret;
+			} catch(SocketTimeoutException e) {
+				return Integer.MIN_VALUE;
+			}
+		}
+
+		/**
+		 * Crea un documento di una sezione e lo blocca in modifica.
+		 */
+		boolean edit(long deadline) throws IOException {
+			send("create doc 1");
+			if(reply(deadline)!=0) return false;
+			send("edit doc 1");
+			if(reply(deadline)!=1) return false;
+			readLine(); //Autore
+			sendLine("0");
+			if(reply(deadline)!=1) return false;
+			readFile();
+			readLine(); //Indirizzo della chat
+			return true;
+		}
+	}
+}
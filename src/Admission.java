@@ -0,0 +1,178 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Controllo di ammissione del server: limita le connessioni contemporanee,
+ * la frequenza delle richieste e la banda dei trasferimenti di ogni utente,
+ * così che un singolo client non possa monopolizzare i gestori e il disco.
+ * <p>
+ * Il lavoro in eccesso viene rifiutato subito con un codice di errore esplicito
+ * invece di restare in coda: una connessione oltre il limite riceve {@value #BUSY_ERROR}
+ * (al posto della risposta al login) e viene chiusa, mentre una richiesta oltre
+ * il limite dell'utente riceve {@value #RATE_ERROR} e non viene eseguita.
+ * <p>
+ * Richieste e byte trasferiti sono misurati con un token bucket per utente.
+ * I trasferimenti (show, edit, end-edit) vengono ammessi finché il bucket dei byte
+ * non è vuoto e i byte effettivamente trasferiti vengono scalati a posteriori,
+ * anche in debito, così che un trasferimento grande ritardi i successivi.
+ * I limiti si configurano con le proprietà di sistema:
+ * <pre>
+ *  turing.connections   connessioni contemporanee (default: dimensione del pool o {@value #CONNECTIONS})
+ *  turing.requests      richieste al secondo per utente (default {@value #REQUESTS}, 0 = nessun limite)
+ *  turing.bandwidth     KB al secondo per utente (default {@value #BANDWIDTH}, 0 = nessun limite)
+ * </pre>
+ * La classe è costruita attraverso l'uso del pattern Signleton.
+ *
+ * @author Stefano Spadola 534919
+ */
+
+public class Admission {
+
+	//Codici di errore
+	public static final int BUSY_ERROR=-4;
+	public static final int RATE_ERROR=-5;
+
+	//Limiti di default
+	public static final int CONNECTIONS = 10000;
+	public static final int REQUESTS = 100;
+	public static final int BANDWIDTH = 32*1024;
+	/*Secondi di richieste/banda che un utente può consumare in un colpo solo*/
+	private static final int BURST = 2;
+
+	private static Admission istance=null;
+	private int maxconnections=CONNECTIONS;
+	private int requests;
+	private long bandwidth;
+	private AtomicInteger connections = new AtomicInteger(0);
+	private ConcurrentMap<String,Limits> users = new ConcurrentHashMap<String,Limits>();
+
+	/**
+	 * Costruttore Singleton
+	 */
+	public static synchronized Admission getIstance() {
+		if(istance==null)
+			istance=new Admission();
+		return istance;
+	}
+
+	private Admission() {
+		requests = Integer.getInteger("turing.requests", REQUESTS);
+		bandwidth = Long.getLong("turing.bandwidth", BANDWIDTH)*1024;
+	}
+
+	/**
+	 * Imposta il numero massimo di connessioni contemporanee
+	 * (la proprietà turing.connections ha la precedenza).
+	 *
+	 * @param max Limite di default per la modalità del server
+	 */
+	public void setMaxConnections(int max) {
+		this.maxconnections=Integer.getInteger("turing.connections", max);
+	}
+
+	public int getMaxConnections() {return this.maxconnections;}
+
+	/**
+	 * Ammette una nuova connessione se non si è raggiunto il limite.
+	 *
+	 * @return true se la connessione è ammessa (va poi rilasciata con {@link #disconnect()})
+	 */
+	public boolean connect() {
+		int current;
+		do {
+			current=connections.get();
+			if(current>=maxconnections) return false;
+		} while(!connections.compareAndSet(current, current+1));
+		return true;
+	}
+
+	/**
+	 * Rilascia una connessione ammessa.
+	 */
+	public void disconnect() {
+		connections.decrementAndGet();
+	}
+
+	/**
+	 * Ammette una richiesta di un utente.
+	 *
+	 * @param username Utente che ha inviato la richiesta
+	 * @param transfer true se la richiesta trasferisce il contenuto di un file
+	 * @return true se la richiesta può essere eseguita
+	 */
+	public boolean request(String username, boolean transfer) {
+		Limits limits = limitsOf(username);
+		if(transfer && !limits.bytes.available()) return false;
+		return limits.requests.take(1);
+	}
+
+	/**
+	 * Scala i byte trasferiti dalla banda dell'utente.
+	 *
+	 * @param username Utente che ha trasferito i byte
+	 * @param bytes Byte inviati o ricevuti
+	 */
+	public void transferred(String username, long bytes) {
+		limitsOf(username).bytes.debit(bytes);
+	}
+
+	private Limits limitsOf(String username) {
+		Limits limits = users.get(username);
+		if(limits==null) {
+			users.putIfAbsent(username, new Limits(requests, bandwidth));
+			limits = users.get(username);
+		}
+		return limits;
+	}
+
+	/*Limiti di un utente*/
+	private static class Limits {
+		private Bucket requests;
+		private Bucket bytes;
+
+		Limits(int requests, long bandwidth) {
+			this.requests=new Bucket(requests);
+			this.bytes=new Bucket(bandwidth);
+		}
+	}
+
+	/*Token bucket: si ricarica di rate token al secondo fino a BURST secondi di token*/
+	private static class Bucket {
+		private long rate;
+		private double tokens;
+		private long last;
+
+		Bucket(long rate) {
+			this.rate=rate;
+			this.tokens=rate*BURST;
+			this.last=System.nanoTime();
+		}
+
+		private void refill() {
+			long now=System.nanoTime();
+			tokens=Math.min(rate*BURST, tokens+(now-last)*rate/1e9);
+			last=now;
+		}
+
+		synchronized boolean take(long n) {
+			if(rate==0) return true;
+			refill();
+			if(tokens<n) return false;
+			tokens-=n;
+			return true;
+		}
+
+		synchronized boolean available() {
+			if(rate==0) return true;
+			refill();
+			return tokens>0;
+		}
+
+		synchronized void debit(long n) {
+			if(rate==0) return;
+			refill();
+			tokens-=n;
+		}
+	}
+}
@@ -0,0 +1,367 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Archivio content-addressed dei contenuti delle sezioni, condiviso da tutti i documenti:
+ * ogni contenuto distinto è salvato una sola volta, in un file che ha per nome lo SHA-256
+ * del contenuto (in esadecimale), e le sezioni con lo stesso contenuto, di qualunque
+ * documento e autore, fanno riferimento allo stesso blob (vedi SectionStore).
+ * <p>
+ * Ogni blob conta i suoi riferimenti: uno per ogni voce di tabella che lo usa nei documenti
+ * non ancora caricati e uno per ogni versione in memoria (che a sua volta conta le letture
+ * in corso, vedi SectionStore.Version). All'avvio i riferimenti vengono contati dalle tabelle
+ * di tutti i documenti e i blob non più usati vengono cancellati ({@link #clean()}); in seguito
+ * un blob viene cancellato quando il suo ultimo riferimento viene rilasciato. Con la durabilità
+ * di default (none) la voce di tabella che lo ha sostituito potrebbe non essere ancora su disco:
+ * il blob viene allora accodato e un Thread, ogni {@value #SWEEP} secondi, forza su disco i nuovi
+ * blob e le tabelle scritte (vedi SectionStore.force) e solo dopo cancella i blob accodati,
+ * così che un crash non lasci una tabella che punta ad un blob cancellato.
+ * <p>
+ * Un nuovo contenuto viene scritto in un file temporaneo e spostato atomicamente al suo nome
+ * solo se il blob non esiste già; con la durabilità group viene forzato su disco insieme al
+ * gruppo di commit che lo pubblica (vedi {@link #force(Collection)}). Spostamenti e cancellazioni sono sincronizzati sull'istanza,
+ * così che un blob appena liberato non venga cancellato dopo essere stato riscritto.
+ * I file vengono salvati nella directory <strong>turing.blobs</strong> (default {@value #DIRECTORY}).
+ * La classe è costruita attraverso l'uso del pattern Signleton.
+ *
+ * @author Stefano Spadola 534919
+ */
+
+public class Blobs {
+
+	public static final String DIRECTORY = ".turing-blobs";
+	/*Lunghezza dello SHA-256 (byte)*/
+	public static final int HASH = 32;
+	private static final String TEMP = ".tmp";
+	private static final int CHUNK = 1<<16;
+	/*Intervallo (secondi) tra le cancellazioni dei blob liberati con la durabilità none*/
+	private static final int SWEEP = 10;
+
+	private static Blobs istance=null;
+	private Path dir;
+	/*false se i blob liberati vanno cancellati solo dopo aver forzato le tabelle (durabilità none)*/
+	private boolean unlink;
+	/*Blob liberati in attesa di essere cancellati (durabilità none)*/
+	private Queue<Blob> freed;
+	/*Blob in uso, per nome (accesso concorrente, spostamenti e cancellazioni sincronizzati)*/
+	private ConcurrentMap<String,Blob> blobs;
+
+	/**
+	 * Costruttore Singleton
+	 */
+	public static synchronized Blobs getIstance() {
+		if(istance==null)
+			istance=new Blobs();
+		return istance;
+	}
+
+	private Blobs() {
+		dir = Paths.get(System.getProperty("turing.blobs", DIRECTORY));
+		blobs = new ConcurrentHashMap<String,Blob>();
+		unlink = System.getProperty("turing.durability", SectionStore.NONE).equals(SectionStore.GROUP);
+		if(!unlink) {
+			freed = new ConcurrentLinkedQueue<Blob>();
+			ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "Blobs-sweeper");
+				t.setDaemon(true);
+				return t;
+			});
+			sweeper.scheduleWithFixedDelay(this::sweep, SWEEP, SWEEP, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Conta un riferimento trovato all'avvio nella tabella di un documento.
+	 *
+	 * @param hash SHA-256 del contenuto
+	 */
+	public void count(byte[] hash) {
+		blobs.computeIfAbsent(name(hash), n -> new Blob(n, hash, 0, true)).refs.incrementAndGet();
+	}
+
+	/**
+	 * Cancella i file temporanei e i blob a cui nessuna tabella fa riferimento.
+	 * Va chiamato una sola volta, all'avvio, dopo aver contato i riferimenti (vedi {@link #count}).
+	 */
+	public void clean() throws IOException {
+		Files.createDirectories(dir);
+		int removed=0;
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for(Path p : files) {
+				if(!blobs.containsKey(p.getFileName().toString())) {
+					Files.delete(p);
+					removed++;
+				}
+			}
+		}
+		for(Blob blob : blobs.values()) {
+			if(!Files.exists(blob.path)) System.out.println("#Blob mancante: "+blob.path);
+		}
+		System.out.println("|Blob: #"+blobs.size()+" in uso, #"+removed+" cancellati");
+	}
+
+	/**
+	 * Blob di una voce di tabella contata all'avvio: il riferimento della voce passa
+	 * alla versione caricata, senza contarne uno nuovo.
+	 *
+	 * @param hash SHA-256 del contenuto
+	 * @param length Lunghezza attesa del contenuto
+	 */
+	public Blob adopt(byte[] hash, long length) throws IOException {
+		Blob blob = blobs.get(name(hash));
+		if(blob==null) throw new IOException("Blob mancante: "+name(hash));
+		blob.map(length);
+		return blob;
+	}
+
+	/**
+	 * Salva un contenuto, se non esiste già un blob uguale.
+	 *
+	 * @param hash SHA-256 del contenuto, se già noto (e allora un blob esistente viene
+	 *        riusato senza scrivere nulla), altrimenti null
+	 * @param length Lunghezza del contenuto
+	 * @param writer Scrive il contenuto sul canale ricevuto
+	 * @return il blob, con un riferimento da rilasciare con {@link Blob#release()}
+	 *         (un nuovo blob non è ancora forzato su disco, vedi {@link #force(Collection)})
+	 */
+	public Blob write(byte[] hash, long length, SectionStore.Writer writer) throws IOException {
+		if(hash!=null) {
+			Blob blob = pin(name(hash));
+			if(blob!=null) return mapped(blob, length);
+		}
+		if(length>Integer.MAX_VALUE) throw new IOException("Sezione troppo grande");
+		Path temp = Files.createTempFile(dir, "blob", TEMP);
+		MappedByteBuffer content;
+		try(FileChannel fc = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			if(writer.writeTo(fc)!=length) throw new IOException("Sezione incompleta");
+			content = fc.map(FileChannel.MapMode.READ_ONLY, 0, length);
+		} catch(IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		if(hash==null) hash = digest(content);
+		return store(hash, temp, content);
+	}
+
+	/**
+	 * Forza su disco i blob non ancora durevoli, poi la loro directory con una sola fsync
+	 * (vedi SectionStore, durabilità group, e {@link #sweep()}). Va invocato da un solo Thread alla volta.
+	 *
+	 * @param pending Blob delle versioni di un gruppo di commit (anche ripetuti)
+	 */
+	public void force(Collection<Blob> pending) throws IOException {
+		ArrayList<Blob> forced = new ArrayList<Blob>();
+		for(Blob blob : pending) {
+			if(blob.durable) continue;
+			try(FileChannel fc = FileChannel.open(blob.path, StandardOpenOption.READ)) {
+				fc.force(false);
+			}
+			forced.add(blob);
+		}
+		if(forced.isEmpty()) return;
+		try(FileChannel d = FileChannel.open(dir, StandardOpenOption.READ)) {
+			d.force(true);
+		}
+		for(Blob blob : forced) blob.durable=true;
+	}
+
+	/**
+	 * Cancella i blob liberati con la durabilità none, dopo aver forzato su disco i nuovi
+	 * blob e le tabelle dei documenti: le voci che li hanno sostituiti, scritte prima che
+	 * venissero liberati, sono allora su disco. In caso di errore si riprova al giro successivo.
+	 */
+	private void sweep() {
+		ArrayList<Blob> due = new ArrayList<Blob>();
+		Blob blob;
+		while((blob=freed.poll())!=null) due.add(blob);
+		if(due.isEmpty()) return;
+		try {
+			force(blobs.values());
+			SectionStore.getIstance().force();
+		} catch(IOException e) {
+			e.printStackTrace();
+			freed.addAll(due);
+			return;
+		}
+		int removed=0;
+		synchronized(this) {
+			for(Blob b : due) {
+				if(blobs.containsKey(b.name)) continue; //Salvato di nuovo nel frattempo
+				try {
+					Files.deleteIfExists(b.path);
+					removed++;
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		System.out.println("|Blob superati cancellati: #"+removed);
+	}
+
+	/*Sposta un nuovo contenuto al suo nome, a meno che nel frattempo non sia stato salvato da altri*/
+	private synchronized Blob store(byte[] hash, Path temp, MappedByteBuffer content) throws IOException {
+		String name = name(hash);
+		Blob blob = pin(name);
+		if(blob!=null) {
+			Files.delete(temp);
+			return mapped(blob, content.capacity());
+		}
+		blob = new Blob(name, hash, 1, false);
+		Files.move(temp, blob.path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		blob.content = content; //La mappatura segue il file spostato
+		blobs.put(name, blob);
+		return blob;
+	}
+
+	/*Blob trattenuto, mappato se non lo è ancora (contato all'avvio, ma il suo documento non è ancora stato caricato)*/
+	private Blob mapped(Blob blob, long length) throws IOException {
+		try {
+			blob.map(length);
+		} catch(IOException e) {
+			blob.release();
+			throw e;
+		}
+		return blob;
+	}
+
+	/*Blob esistente trattenuto, null se non esiste o è già stato liberato*/
+	private Blob pin(String name) {
+		Blob blob = blobs.get(name);
+		return blob!=null && blob.pin() ? blob : null;
+	}
+
+	/*Cancella (o accoda, vedi sweep) un blob senza più riferimenti, se non è già stato sostituito da uno nuovo*/
+	private synchronized void remove(Blob blob) {
+		if(!blobs.remove(blob.name, blob)) return;
+		if(!unlink) {
+			freed.add(blob);
+			return;
+		}
+		try {
+			Files.deleteIfExists(blob.path);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return lo SHA-256 del contenuto (dalla posizione al limite, che non cambiano)
+	 */
+	public static byte[] digest(ByteBuffer content) {
+		MessageDigest sha = sha256();
+		sha.update(content.duplicate());
+		return sha.digest();
+	}
+
+	/**
+	 * @return lo SHA-256 di tutto il contenuto del canale (la posizione non cambia)
+	 */
+	public static byte[] digest(FileChannel in) throws IOException {
+		MessageDigest sha = sha256();
+		ByteBuffer buffer = ByteBuffer.allocate(CHUNK);
+		long position=0;
+		int n;
+		while((n=in.read(buffer, position))>0) {
+			buffer.flip();
+			sha.update(buffer);
+			buffer.clear();
+			position+=n;
+		}
+		return sha.digest();
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {//Sempre disponibile
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return il nome del blob con un dato hash (esadecimale)
+	 */
+	public static String name(byte[] hash) {
+		StringBuilder name = new StringBuilder(hash.length*2);
+		for(byte b : hash) name.append(Character.forDigit((b>>4)&0xf, 16)).append(Character.forDigit(b&0xf, 16));
+		return name.toString();
+	}
+
+	/**
+	 * Contenuto salvato una sola volta, mappato in memoria al primo utilizzo.
+	 */
+	public class Blob {
+		private final String name;
+		private final byte[] hash;
+		private final Path path;
+		private final AtomicInteger refs;
+		/*true se il file e il suo nome sono su disco (contato all'avvio o forzato)*/
+		private volatile boolean durable;
+		/*Mappatura del file (accesso sincronizzato, null finché non serve)*/
+		private MappedByteBuffer content=null;
+
+		private Blob(String name, byte[] hash, int refs, boolean durable) {
+			this.name=name;
+			this.hash=hash;
+			this.path=dir.resolve(name);
+			this.refs=new AtomicInteger(refs);
+			this.durable=durable;
+		}
+
+		public byte[] getHash() {return this.hash;}
+		public Path getPath() {return this.path;}
+
+		/**
+		 * @return il contenuto del blob (in sola lettura)
+		 */
+		public synchronized ByteBuffer content() {
+			return content.duplicate();
+		}
+
+		/*Mappa il file, verificandone la lunghezza*/
+		private synchronized void map(long length) throws IOException {
+			if(content!=null) return;
+			try(FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+				if(fc.size()!=length) throw new IOException("Blob non valido: "+path);
+				content = fc.map(FileChannel.MapMode.READ_ONLY, 0, length);
+			}
+		}
+
+		/*Trattiene il blob, se non è già stato liberato*/
+		private boolean pin() {
+			int r;
+			do {
+				r=refs.get();
+				if(r==0) return false;
+			} while(!refs.compareAndSet(r, r+1));
+			return true;
+		}
+
+		/**
+		 * Rilascia un riferimento: l'ultimo cancella il blob.
+		 */
+		public void release() {
+			if(refs.decrementAndGet()==0) remove(this);
+		}
+	}
+}
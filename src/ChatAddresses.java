@@ -0,0 +1,80 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Allocatore degli indirizzi multicast UDP usati per le chat dei documenti.
+ * Gli indirizzi sono quelli della rete 239.0.0.0/8 e vengono gestiti come indici
+ * interi (0 = 239.0.0.0): si assegnano in sequenza con un contatore atomico e,
+ * quando l'ultimo editor di un documento termina, tornano in una lista libera
+ * da cui vengono riassegnati prima di consumarne di nuovi.
+ * La lista libera è una coda FIFO, così che un indirizzo appena liberato
+ * venga riassegnato il più tardi possibile (eventuali messaggi ancora in
+ * viaggio della vecchia chat non arrivano alla nuova).
+ * Nessuna operazione usa lock.
+ * La classe è costruita attraverso l'uso del pattern Signleton.
+ *
+ * @author Stefano Spadola 534919
+ */
+
+public class ChatAddresses {
+
+	/*239.0.0.0*/
+	private static final int BASE = 239<<24;
+	public static final int SIZE = 1<<24;
+
+	private static ChatAddresses istance=null;
+	private AtomicInteger next = new AtomicInteger(0);
+	private Queue<Integer> free = new ConcurrentLinkedQueue<Integer>();
+
+	/**
+	 * Costruttore Singleton
+	 */
+	public static synchronized ChatAddresses getIstance() {
+		if(istance==null)
+			istance=new ChatAddresses();
+		return istance;
+	}
+
+	private ChatAddresses() {}
+
+	/**
+	 * Assegna un indirizzo libero.
+	 *
+	 * @return l'indice dell'indirizzo, -1 se sono tutti in uso
+	 */
+	public int allocate() {
+		Integer recycled = free.poll();
+		if(recycled!=null) return recycled;
+		int current;
+		do {
+			current=next.get();
+			if(current>=SIZE) return -1;
+		} while(!next.compareAndSet(current, current+1));
+		return current;
+	}
+
+	/**
+	 * Restituisce un indirizzo non più usato.
+	 *
+	 * @param index Indice restituito da {@link #allocate()}
+	 */
+	public void release(int index) {
+		free.add(index);
+	}
+
+	/**
+	 * @param index Indice dell'indirizzo
+	 * @return l'indirizzo multicast corrispondente (senza risoluzione DNS)
+	 */
+	public static InetAddress toAddress(int index) {
+		int address = BASE|index;
+		try {
+			return InetAddress.getByAddress(new byte[] {(byte)(address>>>24), (byte)(address>>>16), (byte)(address>>>8), (byte)address});
+		} catch (UnknownHostException e) {//Impossibile con 4 byte
+			throw new IllegalArgumentException(e);
+		}
+	}
+}
@@ -1,16 +1,16 @@
-import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
 import java.nio.file.OpenOption;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.rmi.Remote;
@@ -18,6 +18,7 @@ import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.util.ArrayList;
 import java.util.Scanner;
+import java.util.zip.Inflater;
 
 /**
  * Applicazione Client-side che permette di interfacciare l'utente
@@ -33,6 +34,10 @@ import java.util.Scanner;
  * Il funzionamento principale è dato dal meccanismo di Richiesta - Risposta
  * con il Server, il quale risponderà con vari messaggi di successo o di errore
  * notificati all'utente mediante una CLI.
+ * <p>
+ * Durante la modifica di una sezione un Thread invia periodicamente un frame PING
+ * che rinnova il lease della sezione sul server (vedi Leases), così che la sezione
+ * resti bloccata anche se l'utente non invia comandi per molto tempo.
  * 
  * @author Stefano Spadola 534919 
  */
@@ -42,23 +47,35 @@ public class Client {
 	/*Porte per la comunicazione*/
 	private static final int PORT = 6666;
 	private static final int CHAT_PORT = 9899;
-	/*Scambio messaggi*/
+	/*Scambio messaggi (vedi Protocol)*/
 	private static SocketChannel socket;
-	private static PrintWriter writer;
-	private static BufferedReader reader;
+	private static int requestid=0;
+	private static int chunk=0; //Byte mancanti del frame DATA corrente
+	private static boolean compressed=false; //Flag DEFLATE dell'ultimo frame ricevuto
+	private static byte frametype=0; //Tipo dell'ultimo frame ricevuto
+	private static boolean compression=false; //Compressione accettata dal server al login
 	/*Variabili di sessione*/
 	private static int retry=0;
 	private static boolean allowed=false;
 	private static boolean editmode=false;
 	private static boolean exit=false;
 	private static String name=null;
+	private static String password=null; //Per ricollegarsi (vedi reconnect)
 	private static String fileinedit=null;
 	private static int sectioninedit;
+	private static ByteBuffer base=null; //Sezione ricevuta con edit (vedi Delta)
 	/*Risposte e codice errore*/
 	private static final int SYNTAX_ERROR=-9;
 	private static final int CONCURRENCY_ERROR=-8;
 	private static final int IO_ERROR=-7;
+	private static final int RATE_ERROR=-5;
+	private static final int BUSY_ERROR=-4;
 	private static final int SHARE_REQUEST=-6;
+	/*Ripresa dei trasferimenti interrotti*/
+	private static final int RETRIES=3;
+	private static final long RECONNECT_DELAY=1000;
+	/*Il Thread dei PING e i comandi non scrivono mai insieme sul socket*/
+	private static final Object lock=new Object();
 	/*Chat*/
 	private static InetAddress group;
 	private static ArrayList<String> chathistory=new ArrayList<String>();
@@ -73,6 +90,9 @@ public class Client {
 		 */
 		System.out.println("--- Benvenuto in TURING (disTribUted collaboRative edItiNG) ---");
 		System.out.println();
+		Thread heartbeat = new Thread(Client::heartbeat);
+		heartbeat.setDaemon(true);
+		heartbeat.start();
 		while(!exit) {
 			
 			System.out.print("> ");
@@ -81,7 +101,9 @@ public class Client {
 			System.out.println();
 			
 			try {
-				Parser(s);
+				synchronized(lock) {
+					Parser(s);
+				}
 			} catch (IOException e) { //Errore, si termina...
 				System.out.println("#FATAL ERROR: Il Server non risponde... Exiting.");
 				try {
@@ -127,10 +149,13 @@ public class Client {
 			/*Operazioni di login - logout*/
 			else if(command[1].equals("login") && command.length==4 && !allowed) {
 				connectToServer();
-				ret = executeRequestReply(tobeparsed.substring(7));
+				//Si propone al server la compressione dei trasferimenti
+				ret = executeRequestReply(tobeparsed.substring(7)+" "+Compression.CAPABILITY);
 				if(ret==0) {
+					compression=compressed;
 					allowed=true;
 					name= new String(command[2]);
+					password= new String(command[3]);
 					System.out.println(name+": connesso con successo.");
 				}
 				//Gestione errori
@@ -149,13 +174,19 @@ public class Client {
 				else if(ret==-8) {
 					disconnectFromServer();
 				}
+				else if(ret==BUSY_ERROR) {
+					System.out.println("#ERROR: Server al completo, riprovare più tardi.");
+					disconnectFromServer();
+				}
 			}
 			else if(command[1].equals("logout") && command.length==2 && allowed && !editmode) {
 				executeRequestReply(tobeparsed.substring(7));
 				disconnectFromServer();
 				allowed=false;
+				compression=false;
 				System.out.println(name+": disconnesso con successo.");
 				name=null;
+				password=null;
 			}	
 			/* Operazioni a login effettuato*/
 			else if(command[1].equals("create") && command.length==4 && allowed && !editmode) {
@@ -176,7 +207,7 @@ public class Client {
 					System.out.println("Digitare il numero del file che si vuole visionare:");
 					System.out.println();
 					for(int i=0; i<ret; i++) {
-						System.out.println("  "+i+") "+command[2]+" - Autore: ["+reader.readLine()+"]");
+						System.out.println("  "+i+") "+command[2]+" - Autore: ["+readLine()+"]");
 					}
 					System.out.println();
 					System.out.print("> ");
@@ -191,15 +222,15 @@ public class Client {
 					}catch(NumberFormatException e) {
 						choiche=-1;
 					}					
-					writer.println(choiche);
+					sendLine(choiche);
 					if(choiche!=-1) {
-						ret=Integer.parseInt(reader.readLine());
+						ret=Integer.parseInt(readLine());
 						if(ret>0) {
 							int section;
 							if(command.length==3)section=0;//Voglio tutto il file
 							else section=Integer.parseInt(command[3]);
 							try{
-								downloadFile(section,ret,command[2]);
+								downloadWithResume(tobeparsed.substring(7),choiche,section,ret,command[2]);
 							}
 							catch(IOException e) {
 								e.printStackTrace();
@@ -217,18 +248,18 @@ public class Client {
 				for(int i=0; i<ret; i++) {
 					System.out.println("-----------------------------");
 					for(int j=0; j<5; j++) {
-						String received=reader.readLine();
+						String received=readLine();
 						System.out.println(received);
 					}
 				}
 			}
-			else if(command[1].equals("edit") && command.length==4 && allowed && !editmode) {
+			else if(command[1].equals("edit") && (command.length==4 || command.length==5) && allowed && !editmode) {
 				ret=executeRequestReply(tobeparsed.substring(7));
 				if(ret>0) {//#file trovati
 					System.out.println("Digitare il numero del file che si vuole modificare:");
 					System.out.println();
 					for(int i=0; i<ret; i++) {
-						System.out.println("  "+i+") "+command[2]+" - Autore: ["+reader.readLine()+"]");
+						System.out.println("  "+i+") "+command[2]+" - Autore: ["+readLine()+"]");
 					}
 					System.out.println();
 					System.out.print("> ");
@@ -243,14 +274,16 @@ public class Client {
 					}catch(NumberFormatException e) {
 						choiche=-1;
 					}					
-					writer.println(choiche);
+					sendLine(choiche);
 					if(choiche!=-1) {
-						ret=Integer.parseInt(reader.readLine());
+						if(command.length==5) System.out.println(">> In attesa che la sezione si liberi (al massimo "+command[4]+" secondi)...");
+						ret=Integer.parseInt(readLine());
 						if(ret>=0) {
 							int section=Integer.parseInt(command[3]);
-							downloadFile(section,ret,command[2]);						
+							downloadWithResume(tobeparsed.substring(7),choiche,section,ret,command[2]);
+							base=ByteBuffer.wrap(Files.readAllBytes(Paths.get(command[2]+"("+section+"-"+ret+")")));
 							//Devo ricevere i parametri per la chat
-							String chat = reader.readLine();
+							String chat = readLine();
 							group=InetAddress.getByName(chat.substring(1));
 							ChatThread c = new ChatThread(chat,CHAT_PORT,chathistory);
 							tchat = new Thread(c);
@@ -271,15 +304,16 @@ public class Client {
 			}
 			else if(command[1].equals("end-edit") && command.length==2 && allowed && editmode) {
 				ret=executeRequestReply(tobeparsed.substring(7));
-				if(ret>0) {
-					uploadFile(sectioninedit,ret,fileinedit);
+				if(ret>0 && !uploadFile(sectioninedit,ret,fileinedit)) ret=-2;
+				if(ret>0 || ret==-2) {//Aggiornata, oppure sbloccata dal server allo scadere del lease
 					fileinedit=null;
 					sectioninedit=0;
 					editmode=false;
 					tchat.interrupt();
 					chathistory.clear();
-					System.out.println("File correttamente aggiornato.");
 				}
+				if(ret>0) System.out.println("File correttamente aggiornato.");
+				else if(ret==-2) System.out.println("#ERROR: Modifica scaduta, la sezione è stata sbloccata e le modifiche non sono state salvate");
 			}
 			else if(command[1].equals("send") && command.length>=3 && allowed && editmode) {				
 				DatagramSocket s = new DatagramSocket();
@@ -330,6 +364,7 @@ public class Client {
 		System.out.println("	list                           | Mostra la lista dei documenti");
 		System.out.println();
 		System.out.println("	edit <doc> <sec>               | Modifica una sezione del documento");
+		System.out.println("	edit <doc> <sec> <secondi>     | Se la sezione è bloccata attende in coda che si liberi");
 		System.out.println("	end-edit					   | Fine modifica della sezione del documento");
 		System.out.println();
 		System.out.println("	send <msg>                     | Invia un messaggio sulla chat");
@@ -343,8 +378,54 @@ public class Client {
 		socket= SocketChannel.open();
 		socket.connect(new InetSocketAddress(InetAddress.getLocalHost(), PORT));
 		socket.socket().setSoTimeout(100);
-		writer = new PrintWriter(new OutputStreamWriter(socket.socket().getOutputStream()),true);
-		reader = new BufferedReader(new InputStreamReader(socket.socket().getInputStream()));
+	}
+	
+	/**
+	 * Funzione che ricollega il client al server dopo la caduta della connessione
+	 * e rieffettua il login (il server recupera un eventuale upload interrotto).
+	 * Il login viene ritentato finché il server non ha chiuso la vecchia sessione.
+	 */
+	private static void reconnect() throws IOException {
+		disconnectFromServer();
+		chunk=0;
+		for(int attempt=0; attempt<=RETRIES; attempt++) {
+			try {
+				Thread.sleep(RECONNECT_DELAY);
+			} catch (InterruptedException e) {
+				throw new IOException("Interrotto durante la riconnessione");
+			}
+			try {
+				connectToServer();
+				int ret=executeRequestReply("login "+name+" "+password+" "+Compression.CAPABILITY);
+				if(ret==0) {
+					compression=compressed;
+					return;
+				}
+				disconnectFromServer(); //-3: vecchia sessione ancora aperta sul server
+			} catch(IOException e) {/*Server non ancora raggiungibile*/}
+		}
+		throw new IOException("Impossibile ricollegarsi al server");
+	}
+	
+	/**
+	 * Main del Thread che rinnova il lease della sezione in modifica.
+	 * Un errore di scrittura viene ignorato: se ne accorgerà il comando successivo.
+	 */
+	private static void heartbeat() {
+		while(true) {
+			try {
+				Thread.sleep(Protocol.HEARTBEAT*1000L);
+			} catch (InterruptedException e) {
+				return;
+			}
+			synchronized(lock) {
+				if(editmode && !exit) {
+					try {
+						Protocol.write(socket, Protocol.ping());
+					} catch (IOException e) {/*Ignore*/}
+				}
+			}
+		}
 	}
 	
 	/**
@@ -352,8 +433,68 @@ public class Client {
 	 */
 	private static void disconnectFromServer() throws IOException {
 		if(socket!=null) socket.close();
-		if(writer!=null) writer.close();
-		if(reader!=null) reader.close();
+	}
+	
+	/**
+	 * Funzione che invia un messaggio testuale (frame TEXT) relativo alla richiesta corrente
+	 * 
+	 * @param message Messaggio da inviare
+	 */
+	private static void sendLine(Object message) throws IOException {
+		Protocol.write(socket, Protocol.text(requestid, message));
+	}
+	
+	/**
+	 * Funzione che riceve l'header di un frame e ne controlla il tipo
+	 * (il flag DEFLATE viene salvato in compressed).
+	 * Le notifiche di condivisione (frame NOTIFY) che lo precedono vengono mostrate
+	 * all'utente e saltate.
+	 * 
+	 * @param opcode Tipo di frame atteso
+	 * @return la lunghezza del payload
+	 */
+	private static int readHeader(byte opcode) throws IOException {
+		return readHeader(opcode, opcode);
+	}
+	
+	/**
+	 * Come sopra, accettando anche un secondo tipo di frame (il tipo ricevuto viene salvato in frametype).
+	 * 
+	 * @param opcode Tipo di frame atteso
+	 * @param alternative Altro tipo di frame ammesso
+	 * @return la lunghezza del payload
+	 */
+	private static int readHeader(byte opcode, byte alternative) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(Protocol.HEADER_SIZE);
+		Protocol.readFully(socket, header);
+		byte received = header.get();
+		header.getInt(); //Id richiesta
+		if(received==Protocol.NOTIFY) {//Notifica arrivata prima della risposta attesa
+			ByteBuffer payload = ByteBuffer.allocate(header.getInt());
+			Protocol.readFully(socket, payload);
+			if(Integer.parseInt(Protocol.CHARSET.decode(payload).toString())==SHARE_REQUEST) {
+				System.out.println();
+				System.out.println("Sei stato invitato ad editare nuovi file!");
+				System.out.println("Lancia il comando: <turing list> per vedere quali sono!");
+				System.out.println();
+			}
+			return readHeader(opcode, alternative);
+		}
+		frametype=Protocol.type(received);
+		if(frametype!=opcode && frametype!=alternative) throw new IOException("Frame inatteso: opcode "+received);
+		compressed=Protocol.isCompressed(received);
+		return header.getInt();
+	}
+	
+	/**
+	 * Funzione che riceve un messaggio testuale (frame TEXT) dal server
+	 * 
+	 * @return il messaggio ricevuto
+	 */
+	private static String readLine() throws IOException {
+		ByteBuffer payload = ByteBuffer.allocate(readHeader(Protocol.TEXT));
+		Protocol.readFully(socket, payload);
+		return Protocol.CHARSET.decode(payload).toString();
 	}
 	
 	/**
@@ -387,34 +528,26 @@ public class Client {
 	 * Manda un messaggio in formato testuale (in genere il comando da eseguire)
 	 * e attende la risposta (in genere un codice) che può essere di successo o di errore.
 	 * <p>
-	 * Prima si controlla che non vi siano notifiche di condivisione file pendenti e nel caso notificate
+	 * Le notifiche di condivisione arrivate nel frattempo vengono mostrate da readHeader,
 	 * dopodichè si controlla che non vi siano messaggi di errore e nel caso così gestiti:
 	 * <strong>CONCURRENCY_ERROR:</strong> in questo caso il Client senza interagire con l'utente
 	 * cerca di riprovare fino ad un massimo di 5 volte, in caso di insucesso viene notificato l'utente
 	 * e invitato a riprovare a lanciare il comando.
 	 * <strong>SYNTAX_ERROR:</strong> in questo caso il client viene notificato del mal formattazione del suo input
 	 * <strong>IO_ERROR:</strong> in questo caaso il client viene notificato che il server ha auvuto un errore IO
+	 * <strong>RATE_ERROR:</strong> in questo caso il client viene notificato che ha superato i limiti di richieste o banda
 	 * 
 	 * @param command Comando che deve essere eseguito
 	 * @return ret Ritorna il codice di risposta(>=0) o di errore(<0)
 	 */
 	private static int executeRequestReply(String command) throws IOException {
-		writer.println(command);
+		requestid++;
+		sendLine(command);
 		//System.out.println("DEBUG: Inviato!");
-		String received =reader.readLine();
+		String received =readLine();
 		//System.out.println("DEBUG: "+received);
 		Integer ret = Integer.parseInt(received);
 		
-		if(ret==SHARE_REQUEST) {
-			System.out.println();
-			System.out.println("Sei stato invitato ad editare nuovi file!");
-			System.out.println("Lancia il comando: <turing list> per vedere quali sono!");
-			System.out.println();
-			//Si continua con l'esecuzione del comando (si aspetta la risposta)
-			ret = Integer.parseInt(reader.readLine());
-			retry=0;
-		}
-		
 		if(ret==CONCURRENCY_ERROR && retry<5) {
 			retry++;
 			executeRequestReply(command);
@@ -422,12 +555,16 @@ public class Client {
 		if(ret==SYNTAX_ERROR) {System.out.println("#ERROR: Input mal formattato!"); retry=0;}
 		else if(ret==CONCURRENCY_ERROR) {System.out.println("#ERRORE: problema di concorrenza... Riprovare."); retry=0;}
 		else if(ret==IO_ERROR) {System.out.println("#ERRORE: Impossibile creare il file (IO ERROR). Contattare il supporto tecnico"); retry=0;}
+		else if(ret==RATE_ERROR) {System.out.println("#ERRORE: Troppe richieste... Riprovare tra qualche secondo."); retry=0;}
 		
 		return ret;
 	}
 	
 	/**
-	 * Funzione che fa il download di un file "from Server to Client"
+	 * Funzione che fa il download di un file "from Server to Client".
+	 * Una singola sezione arriva con un frame FILE, l'intero documento con
+	 * un frame DOCUMENT (tabella delle sezioni) seguito da un unico flusso di dati,
+	 * che può essere compresso (vedi Compression).
 	 * 
 	 * @param section Sezione che si vuole scaricare (se=0 indica tutto il file)
 	 * @param numesctions Numero delle sezione di cui è composto il file
@@ -435,9 +572,24 @@ public class Client {
 	 */
 	private static void downloadFile(int section, int numsections, String filename) throws IOException {
 		
-		int f=1; //Caso: 1 sola sezione
-		if(section==0)f=numsections; //Caso: tutto il file (tutte le sezioni)
-		for(int i=1; i<=f; i++) {
+		long[] lengths;
+		long resume=0; //Primo byte inviato dal server (download ripreso)
+		if(section==0) {//Tutto il file: tabella delle lunghezze delle sezioni
+			ByteBuffer table = ByteBuffer.allocate(readHeader(Protocol.DOCUMENT));
+			Protocol.readFully(socket, table);
+			lengths = new long[table.getInt()];
+			for(int i=0; i<lengths.length; i++) lengths[i]=table.getLong();
+		}
+		else {//Solo una sezione: lunghezza in bytes del file
+			ByteBuffer size = ByteBuffer.allocate(readHeader(Protocol.FILE));
+			Protocol.readFully(socket, size);
+			lengths = new long[] {size.getLong()};
+			resume=size.getLong();
+		}
+		Inflater inflater = compressed ? new Inflater() : null;
+		ByteBuffer inflated = ByteBuffer.allocate(0);
+		
+		for(int i=1; i<=lengths.length; i++) {
 			
 			String j=null;
 			if(section==0) //1 Tutto il file
@@ -445,56 +597,206 @@ public class Client {
 			else //Solo una sezione
 				j=Integer.toString(section);
 			
-
-			/*pt 1/2) Si attende prima la ricezione della lunghezza in bytes del/dei file*/
-			long len=Long.parseLong(reader.readLine());			
-			
-			/*pt 2/2) Si riceve il file in questione*/
-			OpenOption[] options = new OpenOption[] { StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING };
+			/*Si riceve il file in questione dal flusso di frame DATA*/
+			long len=lengths[i-1];
+			OpenOption[] options = new OpenOption[] { StandardOpenOption.CREATE, StandardOpenOption.WRITE };
 			FileChannel fc = FileChannel.open(Paths.get(filename+"("+j+"-"+numsections+")"), options);
-			long totalBytesTransferFrom = 0;
+			fc.truncate(resume);
+			fc.position(resume);
+			long totalBytesTransferFrom = resume;
+			while (inflater!=null && totalBytesTransferFrom < len) {//Flusso compresso
+				if(!inflated.hasRemaining()) inflated=inflateNext(inflater);
+				ByteBuffer slice=inflated.slice();
+				slice.limit((int)Math.min(slice.remaining(), len-totalBytesTransferFrom));
+				inflated.position(inflated.position()+slice.remaining());
+				while(slice.hasRemaining()) totalBytesTransferFrom += fc.write(slice);
+			}
 	        while (totalBytesTransferFrom < len) {
-	            long transferFromByteCount = fc.transferFrom(socket, totalBytesTransferFrom, len-totalBytesTransferFrom);
-	            if (transferFromByteCount <= 0){
-	                break;
-	            }
-	            totalBytesTransferFrom += transferFromByteCount;
+	        	if(chunk==0) chunk=readHeader(Protocol.DATA);
+	        	long transferFromByteCount = fc.transferFrom(socket, totalBytesTransferFrom, Math.min(chunk, len-totalBytesTransferFrom));
+	        	if (transferFromByteCount <= 0){
+	        		fc.close();
+	        		throw new EOFException("Connessione chiusa durante la ricezione");
+	        	}
+	        	totalBytesTransferFrom += transferFromByteCount;
+	        	chunk -= transferFromByteCount;
 	        }	
-			System.out.println("Ricevuto file: "+filename+"("+j+"-"+numsections+") - "+len+"byte");
+			System.out.println("Ricevuto file: "+filename+"("+j+"-"+numsections+") - "+len+"byte"+(resume>0 ? " (ripreso da "+resume+"byte)" : ""));
 			fc.close();
-		}	
+			resume=0;
+		}
+		if(inflater!=null) {//Si consuma il flusso fino al marcatore di fine
+			while(!inflater.finished()) {
+				if(inflated.hasRemaining() || inflateNext(inflater).hasRemaining()) throw new IOException("Flusso compresso non valido");
+			}
+			inflater.end();
+		}
 	}
 	
 	/**
-	 * Funzione che fa l'upload di un file "from Client to Server"
+	 * Funzione che fa il download di un file dopo la risposta di show/edit.
+	 * Se la connessione cade durante la ricezione di una sezione, ci si ricollega
+	 * e si ripetono comando e scelta del file aggiungendo l'offset e il CRC32 dei
+	 * byte già ricevuti (@offset:crc): il server invia solo quelli mancanti, o
+	 * tutta la sezione se nel frattempo è cambiata.
 	 * 
-	 * @param section Sezione che si vuole caricare (se=0 indica tutto il file)
+	 * @param command Comando show/edit inviato al server
+	 * @param choiche Indice del file scelto
+	 * @param section Sezione che si vuole scaricare (se=0 indica tutto il file, che non viene ripreso)
+	 * @param numsections Numero delle sezione di cui è composto il file
+	 * @param filename Nome del file che si vuole caricare
+	 */
+	private static void downloadWithResume(String command, int choiche, int section, int numsections, String filename) throws IOException {
+		for(int attempt=0; ; attempt++) {
+			try {
+				downloadFile(section, numsections, filename);
+				return;
+			} catch(IOException e) {
+				if(section==0 || attempt==RETRIES) throw e;
+				System.out.println("#Connessione interrotta: si riprende la ricezione...");
+				reconnect();
+				String resume="";
+				try(FileChannel fc = FileChannel.open(Paths.get(filename+"("+section+"-"+numsections+")"), StandardOpenOption.READ)) {
+					if(fc.size()>0) resume=" @"+fc.size()+":"+Protocol.checksum(fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()));
+				}
+				int ret=executeRequestReply(command+resume);
+				for(int i=0; i<ret; i++) readLine(); //Autori
+				if(ret<=choiche) throw e;
+				sendLine(choiche);
+				if(Integer.parseInt(readLine())<=0) throw e;
+			}
+		}
+	}
+	
+	/**
+	 * Funzione che riceve un frame DATA di un flusso compresso e lo decomprime
+	 * 
+	 * @return i byte decompressi
+	 */
+	private static ByteBuffer inflateNext(Inflater inflater) throws IOException {
+		ByteBuffer payload = ByteBuffer.allocate(readHeader(Protocol.DATA));
+		Protocol.readFully(socket, payload);
+		return Compression.inflate(inflater, payload);
+	}
+	
+	/**
+	 * Funzione che fa l'upload della sezione in modifica "from Client to Server".
+	 * Se la connessione cade durante l'invio ci si ricollega (il server conserva
+	 * la parte già ricevuta) e si ripete end-edit, riprendendo dall'ultimo byte
+	 * confermato dal server.
+	 * 
+	 * @param section Sezione che si vuole caricare
 	 * @param numsections Numero di sezioni totali del file
 	 * @param filename Nome del file che si vuole caricare
+	 * @return false se il lease è scaduto prima che il server salvasse la sezione
+	 */
+	private static boolean uploadFile(int section, int numsections, String filename) throws IOException {
+		for(int attempt=0; ; attempt++) {
+			try {
+				return sendSection(Paths.get(filename+"("+section+"-"+numsections+")"));
+			} catch(IOException e) {
+				if(attempt==RETRIES) throw e;
+				System.out.println("#Connessione interrotta: si riprende l'invio...");
+				reconnect();
+				int ret=executeRequestReply("end-edit");
+				if(ret==-2) return false;
+				if(ret<=0) throw e;
+			}
+		}
+	}
+	
+	/**
+	 * Funzione che invia una sezione dopo la risposta di end-edit.
+	 * Il server offre con un ACK l'offset da cui riprendere un upload interrotto:
+	 * si riprende se la parte già confermata coincide con la sezione (CRC32).
+	 * Altrimenti, se la sezione è stata ricevuta con edit, si prova prima ad inviare
+	 * solo le modifiche (vedi Delta): se il server ha una versione di base diversa
+	 * risponde -1 e si invia la sezione intera, compressa se il server ha accettato
+	 * la compressione e la sezione supera Compression.THRESHOLD byte.
+	 * L'invio termina con l'ACK che conferma la sezione intera, oppure con -2 se il lease
+	 * è scaduto prima che il server salvasse la sezione.
+	 * 
+	 * @param path Percorso della sezione da inviare
+	 * @return false se il lease è scaduto
 	 */
-	private static void uploadFile(int section, int numsections, String filename) throws IOException {
-		int f=1; //Caso: 1 sola sezione
-		if(section==0)f=numsections; //Caso: tutto il file (tutte le sezioni)
-		for(int i=1; i<=f; i++) {
+	private static boolean sendSection(Path path) throws IOException {
+		try(FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = fc.size();
+			ByteBuffer content = fc.map(FileChannel.MapMode.READ_ONLY, 0, size);
 			
-			String j=null;
-			if(section==0) //1 Tutto il file
-				j=new String(Integer.toString(i));
-			else //Tutto il file
-				j=Integer.toString(section);
+			/*Offerta di ripresa del server*/
+			ByteBuffer offer = readAck();
+			if(offer==null) return false;
+			long offset=offer.getLong();
+			long start=0;
+			if(offset>0 && offer.getLong()==size) {
+				ByteBuffer prefix = content.duplicate();
+				prefix.limit((int)offset);
+				if(Protocol.checksum(prefix)==offer.getLong()) start=offset;
+			}
 			
-			/*Si apre il file in lettura*/
-			FileChannel fc = FileChannel.open(Paths.get(filename+"("+j+"-"+numsections+")"), StandardOpenOption.READ);
-			/*pt 1/2) Si invia prima la lunghezza in byte*/
-			writer.println(fc.size());
-			/*pt 2/2) Si invia */
-			long totalBytesTransferred = 0;
-			while (totalBytesTransferred < fc.size()) {
-				long bytesTransferred = fc.transferTo(totalBytesTransferred, fc.size()-totalBytesTransferred, socket);
-				totalBytesTransferred += bytesTransferred;
+			if(start==0 && base!=null) {//Frame DELTA e modifiche rispetto alla base
+				ByteBuffer[] frames = Delta.upload(requestid, base, content, compression);
+				base=null;
+				if(frames!=null) {
+					Protocol.write(socket, frames);
+					int ret=Integer.parseInt(readLine());
+					if(ret==-2) return false;
+					if(ret==0) {
+						System.out.println("Invio modifiche: "+path+" - "+size+"byte");
+						return true;
+					}
+					System.out.println("Versione di base diversa sul server: si invia il file intero.");
+				}
 			}
-			System.out.println("Invio file: "+filename+"("+j+"-"+numsections+") - "+fc.size()+"byte");
-			fc.close();
+			base=null;
+			
+			if(compression && size-start>=Compression.THRESHOLD) {//Frame FILE e flusso compresso
+				Protocol.write(socket, Compression.file(requestid, content, start));
+			}
+			else {
+				/*pt 1/2) Si invia prima la lunghezza in byte (frame FILE)*/
+				Protocol.write(socket, Protocol.file(requestid, size, start));
+				/*pt 2/2) Si invia, un frame DATA alla volta */
+				long totalBytesTransferred = start;
+				while (totalBytesTransferred < size) {
+					int chunk = (int) Math.min(Protocol.CHUNK_SIZE, size-totalBytesTransferred);
+					Protocol.write(socket, Protocol.header(Protocol.DATA, requestid, chunk));
+					long end = totalBytesTransferred+chunk;
+					while (totalBytesTransferred < end) {
+						long bytesTransferred = fc.transferTo(totalBytesTransferred, end-totalBytesTransferred, socket);
+						totalBytesTransferred += bytesTransferred;
+					}
+				}
+			}
+			
+			/*Si attende la conferma della sezione intera*/
+			ByteBuffer ack;
+			do {
+				ack = readAck();
+				if(ack==null) return false;
+			} while(ack.getLong()<size);
+			ack.getLong();
+			if(ack.getLong()!=Protocol.checksum(content)) throw new IOException("La sezione ricevuta dal server è diversa da quella inviata");
+			System.out.println("Invio file: "+path+" - "+size+"byte"+(start>0 ? " (ripreso da "+start+"byte)" : ""));
+			return true;
+		}
+	}
+	
+	/**
+	 * Funzione che riceve un frame ACK dal server, oppure il -2 con cui
+	 * il server scarta una sezione arrivata dopo la scadenza del lease
+	 * 
+	 * @return il payload dell'ACK (offset, dimensione, CRC32), null se il lease è scaduto
+	 */
+	private static ByteBuffer readAck() throws IOException {
+		ByteBuffer ack = ByteBuffer.allocate(readHeader(Protocol.ACK, Protocol.TEXT));
+		Protocol.readFully(socket, ack);
+		if(frametype==Protocol.TEXT) {
+			String reply=Protocol.CHARSET.decode(ack).toString();
+			if(!reply.equals("-2")) throw new IOException("Risposta inattesa: "+reply);
+			return null;
 		}
+		return ack;
 	}
 }
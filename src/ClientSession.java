@@ -0,0 +1,1203 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+
+/**
+ * Macchina a stati che gestisce la sessione di un singolo Client.
+ * Contiene tutta la logica di parsing e di risposta ai comandi che
+ * prima era racchiusa nel ciclo di ClientHandler, ma non esegue
+ * direttamente nessuna operazione bloccante sul socket: riceve i byte
+ * letti dal trasporto attraverso {@link #feed(ByteBuffer)} e risponde
+ * attraverso un {@link SessionOutput}.
+ * <p>
+ * In questo modo la stessa sessione può essere guidata sia da un Thread
+ * dedicato (ClientHandler) sia da un EventLoop che multiplexa
+ * migliaia di connessioni su pochi Thread.
+ *
+ * @author Stefano Spadola 534919
+ */
+
+public class ClientSession {
+
+	//Stati della sessione
+	private enum State {
+		COMMAND,			//In attesa di un comando
+		PICKING,			//In attesa della scelta del file (filePicker)
+		RECEIVING_LENGTH,	//In attesa del frame FILE o DELTA con la lunghezza della sezione (end-edit)
+		RECEIVING_DATA,		//In ricezione dei frame DATA della sezione o del delta (end-edit)
+		WAITING,			//In coda per una sezione bloccata (edit con attesa, vedi Leases)
+		SENDING,			//In invio di sezioni lette dal disco (show/edit, vedi SectionIO)
+		COMMITTING			//In attesa che la sezione ricevuta venga scritta e pubblicata (end-edit, vedi SectionStore)
+	}
+
+	//Varibili per una sessione con un utente
+	private SessionOutput out;
+	private String username=null;
+	private State state=State.COMMAND;
+	//Id della richiesta in corso (riportato in ogni risposta)
+	private int requestid=0;
+	//Compressione dei trasferimenti negoziata al login (vedi Compression)
+	private boolean compression=false;
+
+	//Varibile di terminazione
+	private boolean exit=false;
+
+	//Varibili per l'editmode
+	private boolean editmode=false;
+	private long fileinedit=0;
+	private int sectioninedit=0;
+	private Leases.Lease lease=null; //Lease della sezione in modifica (vedi Leases)
+
+	//Varibili per l'attesa di una sezione bloccata (vedi onGrant)
+	private Consumer<Leases.Lease> ongrant=null;
+	private String[] waitcommand=null;
+	private long waitingfile=0;
+	private int waitingsection=0;
+
+	//Varibili per il filePicker (comando sospeso in attesa della scelta)
+	private String[] pending=null;
+	private long[] candidates=null;
+
+	//Comandi e scelte ricevuti ma non ancora processati (pipeline)
+	private ArrayDeque<Queued> queued=new ArrayDeque<Queued>();
+	private static final int MAX_QUEUED=64;
+
+	//Invio in corso di sezioni lette dal disco (vedi uploadFile)
+	private SectionIO.Send sending=null;
+
+	//Varibili per la ricezione di una sezione
+	private SectionIO.Part incoming=null;
+	private String incomingname=null;
+	private long remaining=0;
+	private long length=0;
+	private int chunk=0; //Byte mancanti del frame DATA corrente
+	private Inflater inflater=null; //Solo se la sezione arriva compressa
+	private CRC32 crc=null; //CRC32 dei byte ricevuti e scritti
+	private long acked=0; //Byte confermati al client
+	private PendingUploads.Upload resumed=null; //Upload interrotto recuperato al login
+	private static final int ACK_INTERVAL=1024*1024;
+
+	//Ripresa di un download (token @offset:crc di show/edit)
+	private long resumeoffset=0;
+	private long resumecrc=0;
+	//Varibili per la ricezione di un delta (vedi Delta)
+	private ByteBuffer delta=null;
+	private long baselength=0;
+	private long basechecksum=0;
+	private static final int MAX_DELTA=16*1024*1024;
+
+	//Messaggi di ritorno di ERRORE
+	private static final int SYNTAX_ERROR=-9;
+	private static final int CONCURRENCY_ERROR=-8;
+	private static final int IO_ERROR=-7;
+	private static final int SHARE_REQUEST=-6;
+
+	/**
+	 * Costruttore della sessione
+	 *
+	 * @param out è il canale di uscita verso il client
+	 */
+	public ClientSession(SessionOutput out) {
+		this.out=out;
+	}
+
+	public boolean isTerminated() {return this.exit;}
+
+	/**
+	 * Contropressione degli upload: mentre il disco è troppo indietro (vedi SectionIO.Part)
+	 * la sessione non consuma altri byte, che restano nel buffer del trasporto.
+	 * Il trasporto smette di leggere dal socket e, quando la sessione non è più sospesa
+	 * (dopo un'operazione eseguita con SessionOutput.execute), le ripassa i byte rimasti.
+	 *
+	 * @return true se la sessione non accetta altri byte
+	 */
+	public boolean isSuspended() {
+		return incoming!=null && incoming.isBacklogged();
+	}
+
+	/**
+	 * Consuma i byte ricevuti dal client.
+	 * I byte vengono interpretati come frame del Protocol: i frame TEXT
+	 * (comandi e scelte) devono essere ricevuti per intero, mentre il payload
+	 * dei frame DATA viene accodato per la scrittura sul file in ricezione
+	 * (vedi SectionIO.Part) man mano che arriva.
+	 * I frame incompleti restano nel buffer in attesa dei byte successivi.
+	 * Se la sezione arriva compressa il payload dei frame DATA viene decompresso
+	 * prima di essere scritto.
+	 * I comandi ricevuti mentre il precedente attende ancora una scelta o un file
+	 * (pipeline del TuringClient) vengono accodati ed eseguiti in ordine.
+	 * Qualunque byte ricevuto rinnova il lease della sezione in modifica.
+	 * Mentre la sessione è sospesa (vedi {@link #isSuspended()}) i byte restano nel buffer.
+	 *
+	 * @param in Buffer (in modalità lettura) con i byte ricevuti
+	 */
+	public void feed(ByteBuffer in) throws IOException {
+		if(lease!=null) lease.renew();
+		while(!exit) {
+			drain(); //Comandi in pipeline
+			if(exit || !in.hasRemaining() || isSuspended()) return;
+			if(chunk>0) {//Payload di un frame DATA
+				receive(in);
+				continue;
+			}
+			if(in.remaining()<Protocol.HEADER_SIZE) return; //Header incompleto
+
+			int start=in.position();
+			byte opcode=in.get(start);
+			int id=in.getInt(start+1);
+			int len=in.getInt(start+5);
+
+			if(opcode==Protocol.DATA) {
+				if(state!=State.RECEIVING_DATA || len<0 || len>(inflater==null ? remaining : Protocol.CHUNK_SIZE))
+					throw new IOException("Frame DATA inatteso");
+				in.position(start+Protocol.HEADER_SIZE);
+				chunk=len;
+				continue;
+			}
+			if(len<0 || len>in.capacity()-Protocol.HEADER_SIZE)
+				throw new IOException("Frame troppo grande: "+len+"byte");
+			if(in.remaining()<Protocol.HEADER_SIZE+len) return; //Payload incompleto
+
+			ByteBuffer payload=in.duplicate();
+			payload.position(start+Protocol.HEADER_SIZE);
+			payload.limit(start+Protocol.HEADER_SIZE+len);
+			in.position(start+Protocol.HEADER_SIZE+len);
+			onFrame(opcode, id, payload);
+		}
+	}
+
+	private void onFrame(byte opcode, int id, ByteBuffer payload) throws IOException {
+		if(Protocol.type(opcode)==Protocol.FILE && state==State.RECEIVING_LENGTH) {
+			beginReceive(payload.getLong(), payload.getLong(), Protocol.isCompressed(opcode));
+		}
+		else if(Protocol.type(opcode)==Protocol.DELTA && state==State.RECEIVING_LENGTH) {
+			beginDelta(payload, Protocol.isCompressed(opcode));
+		}
+		else if(opcode==Protocol.PING) {/*Solo rinnovo del lease (vedi feed)*/}
+		else if(opcode==Protocol.TEXT || opcode==Protocol.PICK) {
+			if(queued.size()==MAX_QUEUED) throw new IOException("Troppi comandi in attesa");
+			queued.add(new Queued(opcode, id, Protocol.CHARSET.decode(payload).toString()));
+		}
+		else throw new IOException("Frame inatteso: opcode "+opcode+" in stato "+state);
+	}
+
+	/**
+	 * Esegue, in ordine di arrivo, i comandi e le scelte ricevuti che possono
+	 * essere processati nello stato corrente della sessione.
+	 */
+	private void drain() throws IOException {
+		while(!exit && !queued.isEmpty()) {
+			Queued q=queued.peek();
+			if(state==State.COMMAND) {
+				queued.poll();
+				if(q.opcode==Protocol.TEXT) {
+					requestid=q.id;
+					dispatch(q.message);
+				}
+				//Un PICK qui è una scelta inviata in anticipo per un comando senza file candidati
+			}
+			else if(state==State.PICKING && q.id==requestid) {
+				queued.poll();
+				onChoice(q.message, q.opcode==Protocol.PICK);
+			}
+			else return; //Si attende la fine del comando in corso
+		}
+	}
+
+	/**
+	 * Risponde alla richiesta corrente con un messaggio testuale.
+	 */
+	private void println(Object message) throws IOException {
+		out.send(requestid, message);
+	}
+
+	/**
+	 * Processa i comandi ricevuti dell'utente
+	 * e risponde secondo le varie casistiche.
+	 */
+	private void dispatch(String message) throws IOException {
+
+		String[] command = message.split("\\s+");
+		System.out.println("-----------------------------");
+		System.out.println("|Client: ["+username+"] - "+out.getRemoteAddress());
+		System.out.println("|Sent: "+message);
+
+		//Download ripreso: l'ultimo argomento è @offset:crc dei byte già ricevuti
+		resumeoffset=0;
+		if(command.length>2 && command[command.length-1].startsWith("@")) {
+			String[] resume=command[command.length-1].substring(1).split(":");
+			try {
+				resumeoffset=Long.parseLong(resume[0]);
+				resumecrc=Long.parseLong(resume[1]);
+			} catch(NumberFormatException | ArrayIndexOutOfBoundsException e) {
+				resumeoffset=0;
+			}
+			command=Arrays.copyOf(command, command.length-1);
+		}
+
+		//Controllo di ammissione (vedi Admission): il logout non viene mai rifiutato
+		if(username!=null && !command[0].equals("logout")) {
+			boolean transfer=command[0].equals("show") || command[0].equals("edit") || command[0].equals("end-edit");
+			if(!Admission.getIstance().request(username, transfer)) {
+				System.out.println("|Richiesta rifiutata: superati i limiti di "+username);
+				println(Admission.RATE_ERROR);
+				return;
+			}
+		}
+
+		/*Casistiche del messaggio*/
+
+		/**
+		 * login
+		 *
+		 * Esegue il login dell'utente.
+		 * Se il comando termina con la capacità Compression.CAPABILITY, la
+		 * compressione dei trasferimenti viene abilitata e la risposta di
+		 * successo viene marcata con il flag Protocol.DEFLATE.
+		 *
+		 * Risponde al client:
+		 *  0  in caso di successo
+		 * -1 in caso di password sbagliata
+		 * -2 in caso di user non esistente
+		 * -3 in caso di user giò loggato
+		 * -8 in caso di errore di concorrenza
+		 */
+		if(command[0].equals("login")) {
+			int ret = UsersDB.getIstance().logUser(command[1], command[2], out.getRemoteAddress());
+
+			if(ret==0) {//Success
+				this.username=new String(command[1]);
+				//I nuovi inviti vengono notificati appena arrivano (vedi checkPreviousShare)
+				UsersDB.getIstance().getData(username).setShareListener(() -> out.execute(this::notifyShare));
+
+				//Upload di end-edit interrotto: si recupera l'editmode
+				resumed=PendingUploads.getIstance().take(username);
+				if(resumed!=null) {
+					lease=resumed.getLease();
+					fileinedit=lease.getFileID();
+					sectioninedit=lease.getSection();
+					editmode=true;
+				}
+
+				compression = command.length>3 && command[3].equals(Compression.CAPABILITY);
+				if(compression) out.write(new ByteBuffer[] {Protocol.compressed(Protocol.text(requestid, ret))});
+				else println(ret);
+				//Inviti arrivati mentre l'utente era offline
+				checkPreviousShare();
+			}
+			else if (ret==-1 || ret==-2 || ret==-3) {//Wrong Password || User doesn't exists || User already logged
+				println(ret);
+				recoverAndTerminate();
+			}
+			else {//Concurrency error
+				println(ret);
+			}
+		}
+
+		/**
+		 * create
+		 *
+		 * Esegue la creazione di un documento richiesto dall'utente.
+		 *
+		 * Risponde al client:
+		 *  0 file inserito con successo
+		 * -1 in caso di file già esistente
+		 * -7 IO_ERROR in caso di errori I/O all'interno del server
+		 * -9 SYNTAX_ERROR in caso di errori di sintassi del comando				 *
+		 */
+		else if(command[0].equals("create")) {
+			int ret=-1;//File già esistente
+
+			try {
+				int numsec=Integer.parseInt(command[2]);
+				if(numsec>0) {
+					//Una sola sessione per utente: nessuno può creare lo stesso file tra il controllo e l'inserimento
+					if(UsersDB.getIstance().getOwnedFile(username, command[1])==0) {
+						long fileID=FilesDB.getIstance().createFile(command[1], numsec, username);
+						if(fileID>0) ret=UsersDB.getIstance().createFile(command[1], username, fileID);
+						else {
+							System.out.println("#ERROR: Eccezione I/O");
+							ret=IO_ERROR; //Errore I/O nessuna modifica è stata apportata
+						}
+					}
+				}
+				else ret=SYNTAX_ERROR;
+			}
+			catch(NumberFormatException e) {
+				ret=SYNTAX_ERROR;
+				System.out.println("#ERROR: input formattato male");
+			}
+
+			println(ret);
+		}
+
+		/**
+		 * share
+		 *
+		 * Condivide il file con un utente (lo aggiunge come coautore).
+		 *
+		 * Risponde al client:
+		 *  0 in caso di successo
+		 * -1 se l'utente con cui si vuole condividere il file non esiste
+		 * -2 se il file è già condiviso con l'utente
+		 * -3 il file non esiste o non si hanno i permessi necessari
+		 */
+		else if(command[0].equals("share")) {
+			int ret;
+
+			long fileID=UsersDB.getIstance().getOwnedFile(username, command[1]);
+			if(UsersDB.getIstance().getData(command[2])==null) ret=-1;//User non esistente
+			else if(fileID==0) ret=-3; //Non si hanno permessi necessari o non vi è alcun file
+			else if((ret=UsersDB.getIstance().shareFile(command[1], fileID, command[2]))==0) {//-2 File già condiviso
+				FilesDB.getIstance().addCoauthor(fileID, command[2]);
+			}
+			println(ret);
+		}
+
+		/**
+		 * show
+		 *
+		 * Si scarica un intero documento o una sezione per la visione.
+		 *
+		 * Risponde al client:
+		 * pt1)
+		 * 		>0 #file con quel nome + lista file
+		 *  	 0 Il file non esiste
+		 * pt2) Dopo aver chiesto quale file visionare (vedi show(String))
+		 * 		>0 #sezioni + file
+		 * 		-1 La scelta non è consentita
+		 * 		-2 La sezione richiesta non esiste
+		 */
+		else if(command[0].equals("show")) {
+			filePicker(command);
+		}
+
+		/**
+		 * list
+		 *
+		 * Si invia la lista dei file che è possibile editare.
+		 *
+		 * Risponde al client:
+		 * >0 #file + info per ogni file
+		 */
+		else if(command[0].equals("list")) {
+			long[] listID = UsersDB.getIstance().getList(username);
+
+			//Il numero di file seguito dalle 5 righe di ogni file, già codificate (vedi FileData.getSummary)
+			ByteBuffer[] frames = new ByteBuffer[1+listID.length*10];
+			frames[0]=Protocol.text(requestid, listID.length);
+			int k=1;
+			for(long fileID : listID) {
+				for(ByteBuffer line : FilesDB.getIstance().getFileInfo(fileID).getSummary()) {
+					frames[k++]=Protocol.header(Protocol.TEXT, requestid, line.remaining());
+					frames[k++]=line;
+				}
+			}
+			out.write(frames);
+		}
+
+		/**
+		 * edit
+		 *
+		 * Si blocca un sezione per essere editata dall'user che ne fa richiesta.
+		 * Con un quarto argomento (secondi, al massimo Leases.MAX_WAIT) se la sezione
+		 * è bloccata ci si mette in coda: la risposta arriva quando la sezione passa
+		 * all'utente o, con -2, allo scadere dell'attesa.
+		 *
+		 * pt1)
+		 * 		>0 #file con quel nome + lista file
+		 *  	 0 Il file non esiste
+		 * pt2) Dopo aver chiesto quale file editare (vedi edit(String))
+		 * 		>0 #sezioni file + file da editare
+		 * 		-1 La scelta non è consentita
+		 * 		-2 Il file è già bloccato in modifca da un altro utente
+		 * 		-3 La sezione richiesta non esiste
+		 */
+		else if(command[0].equals("edit")) {
+			filePicker(command);
+		}
+
+		/**
+		 * end-edit
+		 *
+		 * Si sblocca la sezione precedentemente sotto modifica
+		 * e si aggiornano le modifiche sul server.
+		 *
+		 * Risponde al client
+		 * >0 Sezione aggiornata e sbloccata
+		 * seguito da un ACK con l'offset da cui riprendere un upload interrotto (0 se non c'è).
+		 * Durante la ricezione della sezione si confermano i byte ricevuti con altri ACK,
+		 * l'ultimo dei quali conferma la sezione intera.
+		 * Se la sezione viene inviata come delta (vedi applyDelta) si risponde invece:
+		 *  0 delta applicato
+		 * -1 versione di base diversa, si attende la sezione intera
+		 * Se il lease è scaduto, o non c'è alcuna sezione in modifica, si risponde subito -2.
+		 * Se scade durante la ricezione, la sezione ricevuta viene scartata e si risponde -2
+		 * al posto della conferma finale (vedi onExpired).*/
+		else if(command[0].equals("end-edit") && !editmode) {
+			println(-2);
+		}
+		else if(command[0].equals("end-edit")) {
+			FileData fd = FilesDB.getIstance().getFileInfo(fileinedit);
+			if(lease.isHeld()) {
+				int ret=fd.getNumberOfSections();
+				println(ret);
+				if(resumed!=null) out.write(new ByteBuffer[] {Protocol.ack(requestid, resumed.getConfirmed(), resumed.getSize(), resumed.getCrc().getValue())});
+				else out.write(new ByteBuffer[] {Protocol.ack(requestid, 0, 0, 0)});
+				//Si attende la lunghezza e poi il file (vedi beginReceive)
+				incomingname=fd.getFileName()+"("+sectioninedit+"-"+ret+")";
+				state=State.RECEIVING_LENGTH;
+			}
+			else {//Lease scaduto: la sezione è stata sbloccata (vedi Leases)
+				println(-2);
+				if(resumed!=null) {
+					Files.deleteIfExists(resumed.getPart());
+					resumed=null;
+				}
+				sectioninedit=0;
+				fileinedit=0;
+				lease=null;
+				editmode=false;
+			}
+		}
+
+		/**
+		 * logout
+		 *
+		 * Esegue il logout dell'utente precedentemente collegato
+		 *
+		 * Risponde al client:
+		 *  0 utente correttamente scollegato
+		 */
+		else if(command[0].equals("logout")) {
+			int ret = UsersDB.getIstance().logOut(username);
+			println(ret);
+			if(resumed!=null) {//Upload interrotto mai ripreso
+				Files.deleteIfExists(resumed.getPart());
+				resumed=null;
+			}
+			recoverAndTerminate();
+		}
+	}
+
+	/**
+	 * Seconda parte del comando show, eseguita una volta scelto il file.
+	 *
+	 * @param command Comando originale inviato dal client
+	 * @param fileID ID univoco del file scelto
+	 */
+	private void show(String[] command, long fileID) throws IOException {
+		int ret=0; int section=0;
+		FileData fd=FilesDB.getIstance().getFileInfo(fileID);
+		if(command.length==3) { //Caso una sola sezione
+			try {
+				section=Integer.parseInt(command[2]);
+				if(section>fd.getNumberOfSections() || section<1) ret=-2; //Sezione non presente
+			}
+			catch(NumberFormatException e) {
+				ret=SYNTAX_ERROR;
+			}
+		}
+		else section=0; //Caso tutto le sezioni
+
+		//Invio al client le risposte
+		if(ret==0) {
+			int numsections=fd.getNumberOfSections();
+			println(numsections);
+			uploadFile(fileID, section, null);
+		}
+		else {
+			println(ret);
+		}
+	}
+
+	/**
+	 * Seconda parte del comando edit, eseguita una volta scelto il file.
+	 *
+	 * @param command Comando originale inviato dal client
+	 * @param fileID ID univoco del file scelto
+	 */
+	private void edit(String[] command, long fileID) throws IOException {
+		int ret=0; int section=0;
+		FileData fd=null;
+		try{
+			section=Integer.parseInt(command[2]);
+			int wait=command.length>3 ? Integer.parseInt(command[3]) : 0;
+			//Si locka immediatamente la modifica (operazione atomica, vedi FileData) con un lease
+			fd = FilesDB.getIstance().getFileInfo(fileID);
+			if(wait<0 || wait>Leases.MAX_WAIT) {ret=SYNTAX_ERROR;}
+			else if(section<=fd.getNumberOfSections() && section>=1) {
+				if(wait==0) lease=Leases.getIstance().acquire(fileID, section);
+				else {//Se bloccata ci si mette in coda
+					ongrant = granted -> out.execute(() -> onGrant(granted));
+					waitcommand=command;
+					waitingfile=fileID;
+					waitingsection=section;
+					state=State.WAITING;
+					lease=Leases.getIstance().await(fileID, section, wait*1000L, ongrant);
+					if(lease==null) return; //Si risponde quando la sezione viene concessa
+					state=State.COMMAND;
+					ongrant=null;
+					waitcommand=null;
+				}
+				if(lease!=null) {
+					beginEdit(command, fileID, section);
+					return;
+				}
+				else {ret=-2;}//File già lockato
+			}
+			else {ret=-3;} //Sezione non presente
+		}catch(NumberFormatException e) {
+			ret=SYNTAX_ERROR;//Errore nel messaggio
+		}
+		println(ret);
+	}
+
+	/**
+	 * Entra in editmode sulla sezione appena bloccata (lease già ottenuto)
+	 * e la invia al client insieme all'indirizzo della chat.
+	 */
+	private void beginEdit(String[] command, long fileID, int section) throws IOException {
+		FileData fd=FilesDB.getIstance().getFileInfo(fileID);
+		InetAddress chat=FilesDB.getIstance().getChat(fileID);
+		int ret=fd.getNumberOfSections();
+		fileinedit=fileID;
+		sectioninedit=section;
+		editmode=true;
+		println(ret);
+		uploadFile(fileID, section, chat.toString());
+	}
+
+	/**
+	 * Conclude un edit in coda: la sezione è passata all'utente (lease) oppure
+	 * l'attesa è scaduta (null). Viene eseguita attraverso SessionOutput.execute,
+	 * dopodiché si processano i comandi arrivati nel frattempo.
+	 *
+	 * @param granted Lease della sezione concessa, null se l'attesa è scaduta
+	 */
+	private void onGrant(Leases.Lease granted) {
+		if(exit || state!=State.WAITING) {//Sessione terminata nel frattempo
+			if(granted!=null) granted.release();
+			return;
+		}
+		String[] command=waitcommand;
+		waitcommand=null;
+		ongrant=null;
+		state=State.COMMAND;
+		try {
+			if(granted==null) println(-2); //Ancora bloccata allo scadere dell'attesa
+			else {
+				lease=granted;
+				beginEdit(command, granted.getFileID(), granted.getSection());
+			}
+			drain();
+		} catch(IOException e) {
+			System.out.println("###FATAL ERROR: Client closed connection or an errorappeared.");
+			recoverAndTerminate();
+		}
+	}
+
+	/**
+	 * Funzione di terminazione della sessione.
+	 * Si occupa di gestire anche i casi di terminazione improvvisa da parte del client
+	 * chiudendo e portando a termine tutte le operazioni che potrebbero lasciare
+	 * inconsisteti le strutture dati.
+	 * Chiude il canale verso il client.
+	 */
+	public void recoverAndTerminate() {
+		if(exit) return;
+
+		if(state==State.WAITING) {//Si esce dalla coda (una concessione già in viaggio viene rilasciata da onGrant)
+			Leases.getIstance().cancel(waitingfile, waitingsection, ongrant);
+			ongrant=null;
+		}
+
+		if(sending!=null) {//Invio interrotto: si rilasciano le versioni non ancora lette
+			sending.cancel();
+			sending=null;
+		}
+
+		if(incoming!=null) {//Ricezione interrotta a metà: si conserva per la ripresa, fino all'ultimo byte scritto
+			incoming.close();
+			resumed=new PendingUploads.Upload(lease, partOf(incomingname), length, incoming.getWritten(), crc);
+			incoming=null;
+		}
+		if(inflater!=null) {
+			inflater.end();
+			inflater=null;
+		}
+		if(resumed!=null && username!=null) {//La sezione resta bloccata in attesa della ripresa
+			PendingUploads.getIstance().park(username, resumed);
+			resumed=null;
+			lease=null;
+			editmode=false;
+		}
+
+		if(editmode && state!=State.COMMITTING) {//Se ci sono sezioni in modifica si sbloccano (se in pubblicazione, lo fa onCommit)
+			unlockSectionInEdit();
+		}
+
+		if(username!=null) {//Si slogga l'utente
+			UsersDB.getIstance().logOut(username);
+			username=null;
+		}
+
+		out.close();
+		Admission.getIstance().disconnect(); //Connessione ammessa in Server.tcpDeamon
+		exit=true;
+	}
+
+	/**
+	 * Sblocca la sezione correntemente in modifica (se il lease non è già scaduto)
+	 * ed esce dall'editmode.
+	 */
+	private void unlockSectionInEdit() {
+		lease.release();
+		lease=null;
+		editmode=false;
+		fileinedit=0;
+		sectioninedit=0;
+	}
+
+	/**
+	 * Funzione che in caso di richieste di condivisione file pendenti
+	 * notifica l'utente con un frame NOTIFY, senza attendere un suo comando.
+	 */
+	public void checkPreviousShare() throws IOException {
+		if(UsersDB.getIstance().getData(username).takeRequest()) {
+			out.write(new ByteBuffer[] {Protocol.notification(SHARE_REQUEST)});
+		}
+	}
+
+	/**
+	 * Notifica un nuovo invito appena la condivisione avviene.
+	 * Viene eseguita dal trasporto di questa sessione attraverso SessionOutput.execute
+	 * (vedi UserData.setRequest): la scrittura non blocca mai la sessione di chi condivide.
+	 */
+	private void notifyShare() {
+		if(exit || username==null) return; //Sessione terminata: l'invito verrà notificato al prossimo login
+		try {
+			checkPreviousShare();
+		} catch(IOException e) {
+			System.out.println("###FATAL ERROR: Client closed connection or an errorappeared.");
+			recoverAndTerminate();
+		}
+	}
+
+	/**
+	 * Funzione che consente di far scegliere ad un utente un file
+	 * tra quelli visualizzabili/editabili.
+	 * Utilizza un semplice meccanismo di scambio messaggi: si inviano i candidati
+	 * e la sessione resta sospesa fino alla ricezione della scelta (vedi onChoice).
+	 *
+	 * @param command Comando (show o edit) che ha richiesto la scelta
+	 */
+	private void filePicker(String[] command) throws IOException {
+		//Si cercano i documenti con quel nome (indice per nome di UserData)
+		long[] howmany = UsersDB.getIstance().getData(username).getFiles(command[1]);
+
+		//Si inviano quanti file ho trovato (0 nessun file || n numero file)
+		println(howmany.length);
+		if(howmany.length>0) {
+			for(long fileID : howmany) {
+				println(FilesDB.getIstance().getFileInfo(fileID).getAuthor());
+			}
+			pending=command;
+			candidates=howmany;
+			state=State.PICKING;
+		}
+		else System.out.println("#Scelta non consentita");//File non esistente
+	}
+
+	/**
+	 * Riceve la scelta del file e riprende il comando sospeso.
+	 * La scelta può essere l'indice del file tra quelli inviati (frame TEXT, Client a riga
+	 * di comando) oppure il nome del suo autore (frame PICK, inviato dal TuringClient
+	 * insieme al comando senza attendere la lista). Solo nel secondo caso una scelta
+	 * non consentita viene notificata con -1, perché il Client a riga di comando la
+	 * scarta già prima di inviarla.
+	 *
+	 * @param line Indice del file scelto dal client o nome dell'autore
+	 * @param byauthor true se la scelta è il nome dell'autore
+	 */
+	private void onChoice(String line, boolean byauthor) throws IOException {
+		String[] command=pending;
+		long[] howmany=candidates;
+		pending=null;
+		candidates=null;
+		state=State.COMMAND;
+
+		int choiche=-1;
+		if(byauthor) {
+			for(int i=0; i<howmany.length && choiche==-1; i++) {
+				if(FilesDB.getIstance().getFileInfo(howmany[i]).getAuthor().equals(line)) choiche=i;
+			}
+		}
+		else {
+			try {
+				choiche = Integer.parseInt(line.trim());
+				if(choiche<0 || choiche>=howmany.length) {
+					choiche=-1;
+				}
+			} catch (NumberFormatException e) {
+				choiche=-1;
+				e.printStackTrace();
+			}
+		}
+
+		if(choiche==-1) {
+			System.out.println("#Scelta non consentita.");
+			if(byauthor) println(-1);
+			return;
+		}
+
+		if(command[0].equals("show")) show(command, howmany[choiche]);
+		else edit(command, howmany[choiche]);
+	}
+
+	/**
+	 * Funzione che fa l'upload di un file "from Server to Client".
+	 * Una singola sezione viene inviata con un frame FILE, mentre l'intero
+	 * documento viene inviato in un'unica risposta (vedi Protocol.document):
+	 * in entrambi i casi le sezioni sono le ultime versioni pubblicate (vedi SectionStore).
+	 * Una sezione presente in SectionCache viene inviata dalla sua copia (e dal suo
+	 * flusso compresso), rilasciando subito la versione; le altre vengono lette dal
+	 * disco in modo asincrono (vedi SectionIO.Send) e la sessione resta in SENDING,
+	 * senza processare altri comandi, finché tutti i frame non sono stati accodati.
+	 * Anche la verifica di un download ripreso legge la sezione, quindi viene eseguita
+	 * da un Thread di SectionIO e l'invio continua in {@link #sendSection}.
+	 * Se la compressione è stata negoziata, i trasferimenti di almeno
+	 * Compression.THRESHOLD byte vengono inviati compressi.
+	 *
+	 * @param fileID ID del file
+	 * @param section Sezione che si vuole caricare (se=0 indica tutto il file)
+	 * @param trailer Messaggio da inviare dopo il file (null se non c'è)
+	 */
+	private void uploadFile(long fileID, int section, Object trailer) throws IOException {
+		String filename=FilesDB.getIstance().getFileInfo(fileID).getFileName();
+		if(section!=0) {//Una sola sezione
+			SectionStore.Version version=SectionStore.getIstance().read(fileID, section);
+			SectionCache.Entry cached=SectionCache.getIstance().lookup(version);
+			if(resumeoffset>0) {//Si riprende solo se i byte già ricevuti dal client coincidono
+				long resume=resumeoffset, checksum=resumecrc;
+				resumeoffset=0;
+				state=State.SENDING;
+				SectionIO.getIstance().execute(() -> {
+					long offset=0;
+					try {
+						ByteBuffer received=(cached!=null ? cached.content() : version.content()).duplicate();
+						if(resume<=received.remaining()) {
+							received.limit((int)resume);
+							if(Protocol.checksum(received)==checksum) offset=resume;
+						}
+					} catch(RuntimeException e) {
+						e.printStackTrace(); //Si invia la sezione intera
+					}
+					long from=offset;
+					out.execute(() -> resumeSection(filename, section, version, cached, from, trailer));
+				});
+				return;
+			}
+			sendSection(filename, section, version, cached, 0, trailer);
+			return;
+		}
+
+		//Tutto il file (tutte le sezioni)
+		SectionStore.Version[] versions = SectionStore.getIstance().readAll(fileID);
+		SectionCache.Entry[] cached = new SectionCache.Entry[versions.length];
+		for(int i=0; i<versions.length; i++) cached[i]=SectionCache.getIstance().lookup(versions[i]);
+		//Le lunghezze per il frame DOCUMENT: le sezioni vengono lette dopo
+		ByteBuffer[] sections = SectionStore.contents(versions);
+		long total=0;
+		for(ByteBuffer s : sections) total+=s.remaining();
+		Admission.getIstance().transferred(username, total);
+		boolean deflate = compression && total>=Compression.THRESHOLD;
+		System.out.println("|Inviato documento"+(deflate ? " compresso" : "")+": "+filename+" - #"+sections.length+" sezioni, "+total+"byte");
+		ByteBuffer header=Protocol.table(requestid, sections);
+		send(versions, cached, 0, deflate, deflate ? Protocol.compressed(header) : header, trailer);
+	}
+
+	/**
+	 * Invia una singola sezione a partire da offset: dalla copia in SectionCache se c'è,
+	 * altrimenti leggendola dal disco (vedi send).
+	 *
+	 * @return true se la sezione è stata inviata dalla cache (la sessione non è in SENDING)
+	 */
+	private boolean sendSection(String filename, int section, SectionStore.Version version, SectionCache.Entry cached, long offset, Object trailer) throws IOException {
+		//Senza copia in cache basta la lunghezza della versione: la sezione viene letta da SectionIO.Send
+		long size = cached!=null ? cached.content().remaining() : version.getLength();
+		Admission.getIstance().transferred(username, size-offset);
+		boolean deflate = compression && size-offset>=Compression.THRESHOLD;
+		System.out.println("|Inviato file"+(deflate ? " compresso" : "")+(cached!=null ? " dalla cache" : "")+": "+filename+"("+section+") - "+size+"byte da "+offset);
+		if(cached==null) {
+			ByteBuffer header=Protocol.file(requestid, size, offset);
+			send(new SectionStore.Version[] {version}, new SectionCache.Entry[1], offset, deflate, deflate ? Protocol.compressed(header) : header, trailer);
+			return false;
+		}
+		version.release(); //La copia in cache non dipende dalla versione
+		ByteBuffer content=cached.content();
+		if(deflate && offset==0) {//Flusso compresso già calcolato
+			out.write(Compression.file(requestid, size, cached.deflated()));
+		}
+		else if(deflate) {
+			out.write(Compression.file(requestid, content, offset));
+		}
+		else {
+			ByteBuffer rest=content.duplicate();
+			rest.position((int)offset);
+			ByteBuffer[] data=Protocol.data(requestid, rest);
+			ByteBuffer[] frames=new ByteBuffer[data.length+1];
+			frames[0]=Protocol.file(requestid, size, offset);
+			System.arraycopy(data, 0, frames, 1, data.length);
+			out.write(frames);
+		}
+		if(trailer!=null) println(trailer);
+		return true;
+	}
+
+	/**
+	 * Continua un download ripreso una volta verificati i byte già ricevuti dal client,
+	 * attraverso SessionOutput.execute: offset è 0 se non coincidono.
+	 */
+	private void resumeSection(String filename, int section, SectionStore.Version version, SectionCache.Entry cached, long offset, Object trailer) {
+		if(exit) {
+			version.release();
+			return;
+		}
+		try {
+			if(sendSection(filename, section, version, cached, offset, trailer)) {
+				state=State.COMMAND;
+				drain();
+			}
+		} catch(IOException e) {
+			System.out.println("###FATAL ERROR: Client closed connection or an errorappeared.");
+			recoverAndTerminate();
+		}
+	}
+
+	/**
+	 * Avvia l'invio asincrono delle versioni (vedi SectionIO.Send), che rilascia le versioni.
+	 */
+	private void send(SectionStore.Version[] versions, SectionCache.Entry[] cached, long offset, boolean deflate, ByteBuffer header, Object trailer) throws IOException {
+		state=State.SENDING;
+		sending=new SectionIO.Send(out, requestid, versions, cached, offset, deflate, error -> onSent(error, trailer));
+		sending.start(header);
+	}
+
+	/**
+	 * Conclude un invio di sezioni lette dal disco, una volta accodati tutti i frame
+	 * (anche prima che SectionIO.Send.start termini), dopodiché si processano i comandi
+	 * arrivati nel frattempo.
+	 *
+	 * @param error null se l'invio è terminato, altrimenti l'errore che lo ha interrotto
+	 * @param trailer Messaggio da inviare dopo il file (null se non c'è)
+	 */
+	private void onSent(IOException error, Object trailer) {
+		sending=null;
+		if(exit) return;
+		state=State.COMMAND;
+		try {
+			if(error!=null) throw error;
+			if(trailer!=null) println(trailer);
+			drain();
+		} catch(IOException e) {
+			System.out.println("###FATAL ERROR: Client closed connection or an errorappeared.");
+			recoverAndTerminate();
+		}
+	}
+
+	/**
+	 * Inizio della ricezione di un file "from Client to Server":
+	 * si riceve la lunghezza in bytes e si apre il file parziale, che sostituirà
+	 * la sezione solo a ricezione completata. L'offset può essere diverso da 0 solo
+	 * per riprendere l'upload interrotto offerto con l'ACK di end-edit.
+	 *
+	 * @param size Lunghezza in bytes della sezione (non compressa)
+	 * @param offset Primo byte trasportato dai frame DATA
+	 * @param compressed true se i frame DATA trasportano un flusso compresso
+	 */
+	private void beginReceive(long size, long offset, boolean compressed) throws IOException {
+		if(offset!=0 && (resumed==null || offset!=resumed.getConfirmed() || size!=resumed.getSize()))
+			throw new IOException("Offset di ripresa non valido: "+offset);
+		crc = offset==0 ? new CRC32() : resumed.getCrc();
+		resumed=null;
+		length=size;
+		remaining=length-offset;
+		acked=offset;
+		if(compressed) inflater=new Inflater();
+
+		incoming = new SectionIO.Part(out, partOf(incomingname), offset, crc, this::onWritten);
+		state=State.RECEIVING_DATA;
+		if(remaining==0 && inflater==null) endReceive();
+	}
+
+	/**
+	 * @return il percorso del file parziale in cui si riceve una sezione
+	 */
+	private Path partOf(String section) {
+		return FilesDB.getIstance().getFileInfo(fileinedit).getPath().resolve(section+".part");
+	}
+
+	/**
+	 * Inizio della ricezione di un delta "from Client to Server" (vedi Protocol.delta):
+	 * il delta viene raccolto in memoria e applicato a ricezione terminata.
+	 *
+	 * @param header Payload del frame DELTA
+	 * @param compressed true se i frame DATA trasportano un flusso compresso
+	 */
+	private void beginDelta(ByteBuffer header, boolean compressed) throws IOException {
+		baselength=header.getLong();
+		basechecksum=header.getLong();
+		length=header.getLong();
+		long size=header.getLong();
+		if(size<0 || size>MAX_DELTA) throw new IOException("Delta troppo grande: "+size+"byte");
+		if(resumed!=null) {//Il client non riprende l'upload interrotto
+			Files.deleteIfExists(resumed.getPart());
+			resumed=null;
+		}
+		delta=ByteBuffer.allocate((int)size);
+		remaining=size;
+		if(compressed) inflater=new Inflater();
+		state=State.RECEIVING_DATA;
+		if(remaining==0 && inflater==null) endReceive();
+	}
+
+	/**
+	 * Accoda per la scrittura sul file in ricezione (o scrive nel delta) i byte del frame
+	 * DATA disponibili nel buffer. I byte vengono confermati al client una volta scritti (vedi onWritten).
+	 */
+	private void receive(ByteBuffer in) throws IOException {
+		int n=Math.min(chunk, in.remaining());
+		ByteBuffer data=in.duplicate();
+		data.limit(in.position()+n);
+		in.position(in.position()+n);
+		chunk-=n;
+		Admission.getIstance().transferred(username, n);
+		if(inflater!=null) {
+			data=Compression.inflate(inflater, data);
+			if(data.remaining()>remaining || (inflater.finished() && chunk>0))
+				throw new IOException("Flusso compresso non valido");
+		}
+		remaining-=data.remaining();
+		if(delta!=null) delta.put(data);
+		else incoming.write(data);
+		//Un flusso compresso termina solo con il suo marcatore di fine
+		if(inflater==null ? remaining==0 : inflater.finished()) {
+			if(remaining!=0) throw new IOException("Sezione incompleta");
+			endReceive();
+		}
+	}
+
+	/**
+	 * Fine della ricezione: si attende che il file sia scritto per intero (vedi onWritten)
+	 * e poi lo si pubblica come nuova versione della sezione (vedi commit).
+	 */
+	private void endReceive() throws IOException {
+		if(inflater!=null) {
+			inflater.end();
+			inflater=null;
+		}
+		if(delta!=null) {
+			applyDelta();
+			return;
+		}
+		incoming.flush();
+		state=State.COMMITTING;
+		if(incoming.isDrained()) commit();
+	}
+
+	/**
+	 * Avanzamento della scrittura del file in ricezione (vedi SectionIO.Part), eseguita
+	 * attraverso SessionOutput.execute: si confermano al client i byte scritti e, a ricezione
+	 * terminata, si pubblica la sezione appena il file è scritto per intero.
+	 */
+	private void onWritten() {
+		if(exit || incoming==null) return;
+		try {
+			incoming.check();
+			if(state==State.COMMITTING) {
+				if(incoming.isDrained()) commit();
+			}
+			else if(incoming.getWritten()-acked>=ACK_INTERVAL) ack();
+		} catch(IOException e) {
+			System.out.println("###FATAL ERROR: Client closed connection or an errorappeared.");
+			recoverAndTerminate();
+		}
+	}
+
+	/**
+	 * Chiude il file ricevuto e lo copia nel documento come nuova versione della sezione
+	 * (vedi SectionStore) con un Thread di SectionIO, così da non attendere il disco:
+	 * il file parziale viene cancellato prima di concludere l'end-edit (vedi onCommit).
+	 */
+	private void commit() {
+		incoming.close();
+		incoming=null;
+		Path part=partOf(incomingname);
+		long fileID=fileinedit;
+		int section=sectioninedit;
+		Leases.Lease held=lease;
+		SectionIO.getIstance().execute(() -> {
+			try {
+				if(!held.isHeld()) {//Scaduto durante la ricezione: la sezione potrebbe già essere di un altro
+					committed(part, null, true);
+					return;
+				}
+				SectionStore.getIstance().write(fileID, section, part, error -> committed(part, error, false));
+			} catch(IOException e) {
+				committed(part, e, false);
+			} catch(RuntimeException e) {
+				committed(part, new IOException("Pubblicazione fallita", e), false);
+			}
+		});
+		System.out.println("|Ricevuto file: "+incomingname+" - "+length+"byte");
+	}
+
+	/*Nuova versione pubblicata, fallita o scartata (lease scaduto): il file parziale non serve più*/
+	private void committed(Path part, IOException error, boolean expired) {
+		try {
+			Files.deleteIfExists(part);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if(expired) out.execute(this::onExpired);
+		else out.execute(() -> onCommit(error, false));
+	}
+
+	/**
+	 * Conclude un end-edit una volta pubblicata la nuova versione della sezione (vedi
+	 * SectionStore): si sblocca la sezione e si conferma al client. Viene eseguita
+	 * attraverso SessionOutput.execute, dopodiché si processano i comandi arrivati nel frattempo.
+	 *
+	 * @param error null se la versione è stata pubblicata, altrimenti l'errore che lo ha impedito
+	 * @param fromdelta true se la versione è stata ricevuta come delta
+	 */
+	private void onCommit(IOException error, boolean fromdelta) {
+		incomingname=null;
+		//Si unlocka dopo la pubblicazione, anche se la sessione è terminata nel frattempo
+		unlockSectionInEdit();
+		if(exit) return;
+		state=State.COMMAND;
+		try {
+			if(error!=null) throw error;
+			if(fromdelta) println(0);
+			else ack(); //Conferma della sezione intera
+			crc=null;
+			drain();
+		} catch(IOException e) {
+			System.out.println("###FATAL ERROR: Client closed connection or an errorappeared.");
+			recoverAndTerminate();
+		}
+	}
+
+	/**
+	 * Conferma al client i byte della sezione ricevuti e scritti finora.
+	 */
+	private void ack() throws IOException {
+		acked = incoming!=null ? incoming.getWritten() : length;
+		out.write(new ByteBuffer[] {Protocol.ack(requestid, acked, length, crc.getValue())});
+	}
+
+	/**
+	 * Applica il delta ricevuto alla sezione salvata sul server, solo se questa
+	 * coincide con la versione di base del client (lunghezza e CRC32).
+	 * Sia il confronto sia la nuova versione, scritta direttamente come nuova versione
+	 * della sezione (vedi SectionStore), vengono eseguiti con un Thread di SectionIO,
+	 * mentre la base resta trattenuta finché il delta non è applicato.
+	 * Se la base non coincide si risponde -1 e si attende la sezione intera (vedi onBaseMismatch).
+	 */
+	private void applyDelta() throws IOException {
+		ByteBuffer received=delta;
+		received.flip();
+		delta=null;
+
+		SectionStore.Version version=SectionStore.getIstance().read(fileinedit, sectioninedit);
+		long fileID=fileinedit, size=length, expectedlength=baselength, expectedcrc=basechecksum;
+		int section=sectioninedit;
+		Leases.Lease held=lease;
+		Consumer<IOException> committed = error -> out.execute(() -> onCommit(error, true));
+		SectionIO.getIstance().execute(() -> {
+			try {
+				if(!held.isHeld()) {//Scaduto durante la ricezione
+					out.execute(this::onExpired);
+					return;
+				}
+				ByteBuffer base=version.content();
+				if(base.remaining()!=expectedlength || Protocol.checksum(base)!=expectedcrc) {
+					out.execute(this::onBaseMismatch);
+					return;
+				}
+				SectionStore.getIstance().write(fileID, section, size, out -> Delta.apply(base, received, size, out), committed);
+			} catch(IOException e) {
+				committed.accept(e);
+			} catch(RuntimeException e) {
+				committed.accept(new IOException("Pubblicazione fallita", e));
+			} finally {
+				version.release();
+			}
+		});
+		state=State.COMMITTING;
+		System.out.println("|Ricevuto delta: "+incomingname+" - "+received.limit()+"byte per "+length+"byte");
+	}
+
+	/**
+	 * Conclude un end-edit la cui sezione è arrivata dopo la scadenza del lease (vedi Leases):
+	 * la sezione non viene pubblicata, perché nel frattempo potrebbe essere passata ad un altro
+	 * utente, e si risponde -2. Viene eseguita attraverso SessionOutput.execute.
+	 */
+	private void onExpired() {
+		System.out.println("|Lease scaduto prima della pubblicazione: "+incomingname+" - sezione scartata");
+		incomingname=null;
+		crc=null;
+		unlockSectionInEdit(); //Il lease scaduto non viene rilasciato di nuovo
+		if(exit) return;
+		state=State.COMMAND;
+		try {
+			println(-2);
+			drain();
+		} catch(IOException e) {
+			System.out.println("###FATAL ERROR: Client closed connection or an errorappeared.");
+			recoverAndTerminate();
+		}
+	}
+
+	/**
+	 * La base del delta non coincide con la sezione salvata: si chiede al client la sezione
+	 * intera, attraverso SessionOutput.execute. Se nel frattempo la sessione è terminata
+	 * si sblocca la sezione, come avrebbe fatto onCommit.
+	 */
+	private void onBaseMismatch() {
+		if(exit) {
+			unlockSectionInEdit();
+			return;
+		}
+		System.out.println("|Versione di base diversa: "+incomingname+" - si attende la sezione intera");
+		state=State.RECEIVING_LENGTH;
+		try {
+			println(-1);
+		} catch(IOException e) {
+			System.out.println("###FATAL ERROR: Client closed connection or an errorappeared.");
+			recoverAndTerminate();
+		}
+	}
+
+	/*Comando o scelta in attesa di essere processati*/
+	private static class Queued {
+		private byte opcode;
+		private int id;
+		private String message;
+
+		Queued(byte opcode, int id, String message) {
+			this.opcode=opcode;
+			this.id=id;
+			this.message=message;
+		}
+	}
+}
@@ -0,0 +1,217 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.function.ObjIntConsumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressione dei contenuti delle sezioni durante i trasferimenti.
+ * <p>
+ * La compressione viene negoziata al login: il client aggiunge la capacità
+ * {@value #CAPABILITY} al comando e il server, se la accetta, risponde con il
+ * frame TEXT marcato dal flag Protocol.DEFLATE. Da quel momento, in entrambe le
+ * direzioni, i trasferimenti di almeno {@value #THRESHOLD} byte possono essere
+ * compressi: il frame FILE/DOCUMENT che li annuncia viene marcato con il flag
+ * (e riporta comunque le dimensioni originali) e i frame DATA seguenti trasportano
+ * un unico flusso deflate. Sotto la soglia i dati viaggiano in chiaro.
+ *
+ * @author Stefano Spadola 534919
+ */
+
+public class Compression {
+
+	public static final String CAPABILITY = "deflate";
+	/*Dimensione minima (in byte) di un trasferimento perché valga la pena comprimerlo*/
+	public static final int THRESHOLD = 2048;
+
+	private Compression() {}
+
+	/**
+	 * Crea la risposta con un file compresso: il frame FILE (con il flag DEFLATE
+	 * e la dimensione originale) seguito dal flusso compresso.
+	 *
+	 * @param id Id della richiesta
+	 * @param content Contenuto del file
+	 * @return i buffer da inviare, in ordine
+	 */
+	public static ByteBuffer[] file(int id, ByteBuffer content) {
+		return file(id, content, 0);
+	}
+
+	/**
+	 * Come {@link #file(int, ByteBuffer)}, ma il flusso compresso contiene
+	 * solo i byte da offset in poi (trasferimento ripreso).
+	 */
+	public static ByteBuffer[] file(int id, ByteBuffer content, long offset) {
+		ByteBuffer rest = content.duplicate();
+		rest.position(rest.position()+(int)offset);
+		return concat(Protocol.compressed(Protocol.file(id, content.remaining(), offset)), deflate(id, rest));
+	}
+
+	/**
+	 * Crea la risposta con un intero documento compresso: il frame DOCUMENT (con il
+	 * flag DEFLATE e le lunghezze originali) seguito da un unico flusso compresso.
+	 *
+	 * @param id Id della richiesta
+	 * @param sections Contenuto delle sezioni, in ordine
+	 * @return i buffer da inviare, in ordine
+	 */
+	public static ByteBuffer[] document(int id, ByteBuffer[] sections) {
+		return concat(Protocol.compressed(Protocol.table(id, sections)), deflate(id, sections));
+	}
+
+	/**
+	 * Come {@link #file(int, ByteBuffer)}, con il flusso compresso dell'intero file già
+	 * calcolato (vedi SectionCache), che viene inviato senza copiarlo.
+	 *
+	 * @param id Id della richiesta
+	 * @param size Dimensione originale del file
+	 * @param stream Flusso deflate del file
+	 * @return i buffer da inviare, in ordine
+	 */
+	public static ByteBuffer[] file(int id, long size, ByteBuffer stream) {
+		return concat(Protocol.compressed(Protocol.file(id, size, 0)), Protocol.data(id, stream));
+	}
+
+	private static ByteBuffer[] concat(ByteBuffer first, ByteBuffer[] frames) {
+		ByteBuffer[] all = new ByteBuffer[frames.length+1];
+		all[0]=first;
+		System.arraycopy(frames, 0, all, 1, frames.length);
+		return all;
+	}
+
+	/**
+	 * Comprime il contenuto (concatenato) dei buffer in un unico flusso deflate
+	 * suddiviso in frame DATA.
+	 *
+	 * @param id Id della richiesta
+	 * @param contents Contenuti da comprimere, in ordine
+	 * @return i frame DATA da inviare, in ordine
+	 */
+	public static ByteBuffer[] deflate(int id, ByteBuffer... contents) {
+		ArrayList<ByteBuffer> frames = new ArrayList<ByteBuffer>();
+		deflate(contents, (output, n) -> frame(frames, id, output, n));
+		return toArray(frames);
+	}
+
+	/**
+	 * Comprime un contenuto in un unico flusso deflate, non suddiviso in frame.
+	 *
+	 * @param content Contenuto da comprimere
+	 * @return il flusso compresso (in modalità lettura)
+	 */
+	public static ByteBuffer deflate(ByteBuffer content) {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream(content.remaining()/2+64);
+		deflate(new ByteBuffer[] {content}, (output, n) -> stream.write(output, 0, n));
+		return ByteBuffer.wrap(stream.toByteArray());
+	}
+
+	/*Comprime i contenuti (concatenati) passando a sink i primi n byte di ogni blocco compresso*/
+	private static void deflate(ByteBuffer[] contents, ObjIntConsumer<byte[]> sink) {
+		Stream stream = new Stream();
+		for(ByteBuffer content : contents) stream.update(content, sink);
+		stream.finish(sink);
+	}
+
+	private static void frame(ArrayList<ByteBuffer> frames, int id, byte[] output, int n) {
+		if(n==0) return;
+		byte[] payload = new byte[n];
+		System.arraycopy(output, 0, payload, 0, n);
+		frames.add(Protocol.header(Protocol.DATA, id, n));
+		frames.add(ByteBuffer.wrap(payload));
+	}
+
+	private static ByteBuffer[] toArray(ArrayList<ByteBuffer> frames) {
+		return frames.toArray(new ByteBuffer[frames.size()]);
+	}
+
+	/**
+	 * Decomprime il payload di un frame DATA appartenente ad un flusso deflate.
+	 *
+	 * @param inflater Decompressore del flusso (uno per trasferimento)
+	 * @param payload Payload compresso
+	 * @return i byte decompressi (in modalità lettura)
+	 */
+	public static ByteBuffer inflate(Inflater inflater, ByteBuffer payload) throws IOException {
+		byte[] input = new byte[payload.remaining()];
+		payload.get(input);
+		inflater.setInput(input);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(input.length*4);
+		byte[] output = new byte[Protocol.CHUNK_SIZE];
+		try {
+			while(!inflater.finished() && !inflater.needsInput()) {
+				int n = inflater.inflate(output);
+				if(n==0 && inflater.needsDictionary()) throw new IOException("Flusso compresso non valido");
+				out.write(output, 0, n);
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Flusso compresso non valido", e);
+		}
+		return ByteBuffer.wrap(out.toByteArray());
+	}
+
+	/**
+	 * Flusso deflate costruito un blocco alla volta, per i contenuti che non sono
+	 * tutti in memoria quando inizia l'invio (vedi SectionIO.Send).
+	 */
+	public static class Stream {
+		private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		private final byte[] input = new byte[Protocol.CHUNK_SIZE];
+		private final byte[] output = new byte[Protocol.CHUNK_SIZE];
+
+		/**
+		 * Comprime il blocco successivo del flusso: il blocco non serve più quando il metodo termina.
+		 *
+		 * @param id Id della richiesta
+		 * @param content Blocco da comprimere
+		 * @return i frame DATA con i byte compressi già disponibili (anche nessuno), in ordine
+		 */
+		public ByteBuffer[] deflate(int id, ByteBuffer content) {
+			ArrayList<ByteBuffer> frames = new ArrayList<ByteBuffer>();
+			update(content, (output, n) -> frame(frames, id, output, n));
+			return toArray(frames);
+		}
+
+		/**
+		 * Termina il flusso e libera il compressore.
+		 *
+		 * @param id Id della richiesta
+		 * @return gli ultimi frame DATA del flusso, in ordine
+		 */
+		public ByteBuffer[] finish(int id) {
+			ArrayList<ByteBuffer> frames = new ArrayList<ByteBuffer>();
+			finish((output, n) -> frame(frames, id, output, n));
+			return toArray(frames);
+		}
+
+		/**
+		 * Libera il compressore di un flusso interrotto.
+		 */
+		public void end() {
+			deflater.end();
+		}
+
+		private void update(ByteBuffer content, ObjIntConsumer<byte[]> sink) {
+			ByteBuffer in = content.duplicate();
+			while(in.hasRemaining()) {
+				int n = Math.min(input.length, in.remaining());
+				in.get(input, 0, n);
+				deflater.setInput(input, 0, n);
+				while(!deflater.needsInput()) {
+					sink.accept(output, deflater.deflate(output));
+				}
+			}
+		}
+
+		private void finish(ObjIntConsumer<byte[]> sink) {
+			deflater.finish();
+			while(!deflater.finished()) {
+				sink.accept(output, deflater.deflate(output));
+			}
+			deflater.end();
+		}
+	}
+}
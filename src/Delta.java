@@ -0,0 +1,233 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Differenze binarie tra due versioni di una sezione, usate da end-edit per
+ * inviare solo le modifiche rispetto alla versione ricevuta con edit.
+ * <p>
+ * Un delta è una sequenza di operazioni sulla versione di base:
+ * <pre>
+ *  COPY:   | 1 | offset nella base (8 byte) | lunghezza (4 byte) |
+ *  INSERT: | 2 | lunghezza (4 byte) | byte da inserire |
+ * </pre>
+ * Viene calcolato togliendo il prefisso e il suffisso comuni e cercando nella
+ * parte centrale i blocchi della base (hash scorrevole, come rsync), così che
+ * sia piccolo anche quando le modifiche sono sparse o spostano del testo.
+ * <p>
+ * L'upload è annunciato da un frame DELTA (vedi Protocol) con lunghezza e CRC32
+ * della base: il server applica il delta solo se la sua copia della sezione
+ * coincide, altrimenti risponde -1 e il client invia la sezione intera.
+ *
+ * @author Stefano Spadola 534919
+ */
+
+public class Delta {
+
+	private static final byte COPY = 1;
+	private static final byte INSERT = 2;
+	/*Dimensione dei blocchi cercati nella base*/
+	private static final int BLOCK = 32;
+	/*31^(BLOCK-1), per far scorrere l'hash di un byte*/
+	private static final int POWER;
+	static {
+		int p=1;
+		for(int i=1; i<BLOCK; i++) p*=31;
+		POWER=p;
+	}
+	/*Sotto questa dimensione una sezione viene sempre inviata intera*/
+	public static final int MIN_SIZE = 4096;
+
+	private Delta() {}
+
+	/**
+	 * Crea l'upload di una sezione come delta rispetto alla versione di base:
+	 * il frame DELTA seguito dai frame DATA con il delta (compresso se richiesto).
+	 *
+	 * @param id Id della richiesta
+	 * @param base Versione di base (ricevuta con edit)
+	 * @param target Nuova versione della sezione
+	 * @param compression true se il server ha accettato la compressione
+	 * @return i buffer da inviare, null se conviene inviare la sezione intera
+	 */
+	public static ByteBuffer[] upload(int id, ByteBuffer base, ByteBuffer target, boolean compression) {
+		if(target.remaining()<MIN_SIZE) return null;
+		ByteBuffer delta = diff(base, target);
+		if(delta.remaining()>target.remaining()/2) return null;
+
+		ByteBuffer header = Protocol.delta(id, base.remaining(), Protocol.checksum(base), target.remaining(), delta.remaining());
+		ArrayList<ByteBuffer> frames = new ArrayList<ByteBuffer>();
+		if(compression && delta.remaining()>=Compression.THRESHOLD) {
+			frames.add(Protocol.compressed(header));
+			Collections.addAll(frames, Compression.deflate(id, delta));
+		}
+		else {
+			frames.add(header);
+			Collections.addAll(frames, Protocol.data(id, delta));
+		}
+		return frames.toArray(new ByteBuffer[frames.size()]);
+	}
+
+	/**
+	 * Calcola il delta che trasforma base in target.
+	 *
+	 * @return il delta codificato (in modalità lettura)
+	 */
+	public static ByteBuffer diff(ByteBuffer base, ByteBuffer target) {
+		int n=base.remaining(), m=target.remaining();
+		int b0=base.position(), t0=target.position();
+		Encoder out = new Encoder(target);
+
+		//Prefisso e suffisso comuni
+		int prefix=0;
+		while(prefix<n && prefix<m && base.get(b0+prefix)==target.get(t0+prefix)) prefix++;
+		int suffix=0;
+		while(suffix<n-prefix && suffix<m-prefix && base.get(b0+n-1-suffix)==target.get(t0+m-1-suffix)) suffix++;
+		out.copy(0, prefix);
+
+		//Parte centrale: si cercano i blocchi della base
+		int end=m-suffix;
+		int literal=prefix;
+		if(end-prefix>=4*BLOCK && n>=BLOCK) {
+			HashMap<Integer, Integer> blocks = new HashMap<Integer, Integer>();
+			for(int off=0; off+BLOCK<=n; off+=BLOCK) blocks.putIfAbsent(hash(base, b0+off), off);
+
+			int i=prefix;
+			int h=hash(target, t0+i);
+			while(i+BLOCK<=end) {
+				Integer off=blocks.get(h);
+				if(off!=null && equal(base, b0+off, target, t0+i)) {
+					//Si estende il blocco in avanti e indietro
+					int len=BLOCK;
+					while(off+len<n && i+len<end && base.get(b0+off+len)==target.get(t0+i+len)) len++;
+					int back=0;
+					while(back<i-literal && off-back>0 && base.get(b0+off-back-1)==target.get(t0+i-back-1)) back++;
+					out.insert(literal, i-back-literal);
+					out.copy(off-back, len+back);
+					i+=len;
+					literal=i;
+					if(i+BLOCK<=end) h=hash(target, t0+i);
+				}
+				else {
+					if(i+BLOCK<end) h=(h-target.get(t0+i)*POWER)*31+target.get(t0+i+BLOCK);
+					i++;
+				}
+			}
+		}
+		out.insert(literal, end-literal);
+		out.copy(n-suffix, suffix);
+		return out.toBuffer();
+	}
+
+	/**
+	 * Applica un delta alla versione di base scrivendo la nuova versione.
+	 * Il delta viene rifiutato prima di scrivere un'operazione che supererebbe
+	 * la lunghezza attesa, così che un delta malformato non possa far scrivere
+	 * oltre lo spazio riservato alla sezione.
+	 *
+	 * @param base Versione di base
+	 * @param delta Delta da applicare
+	 * @param length Lunghezza attesa della nuova versione
+	 * @param out Canale su cui scrivere la nuova versione
+	 * @return il numero di byte scritti
+	 * @throws IOException se il delta non è valido per la base o supera la lunghezza attesa
+	 */
+	public static long apply(ByteBuffer base, ByteBuffer delta, long length, WritableByteChannel out) throws IOException {
+		long written=0;
+		try {
+			while(delta.hasRemaining()) {
+				ByteBuffer slice;
+				byte op=delta.get();
+				if(op==COPY) {
+					long offset=delta.getLong();
+					int len=delta.getInt();
+					if(offset<0 || len<0 || offset+len>base.remaining()) throw new IOException("Delta non valido");
+					slice=base.duplicate();
+					slice.position(base.position()+(int)offset);
+					slice.limit(slice.position()+len);
+				}
+				else if(op==INSERT) {
+					int len=delta.getInt();
+					if(len<0 || len>delta.remaining()) throw new IOException("Delta non valido");
+					slice=delta.slice();
+					slice.limit(len);
+					delta.position(delta.position()+len);
+				}
+				else throw new IOException("Delta non valido");
+				if(written+slice.remaining()>length) throw new IOException("Delta più lungo della sezione attesa");
+				while(slice.hasRemaining()) written+=out.write(slice);
+			}
+		} catch(RuntimeException e) {//Operazione troncata
+			throw new IOException("Delta non valido", e);
+		}
+		return written;
+	}
+
+	private static int hash(ByteBuffer b, int from) {
+		int h=0;
+		for(int i=0; i<BLOCK; i++) h=h*31+b.get(from+i);
+		return h;
+	}
+
+	private static boolean equal(ByteBuffer a, int from, ByteBuffer b, int to) {
+		for(int i=0; i<BLOCK; i++) if(a.get(from+i)!=b.get(to+i)) return false;
+		return true;
+	}
+
+	/*Scrive le operazioni del delta, unendo le COPY contigue*/
+	private static class Encoder {
+		private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private DataOutputStream out = new DataOutputStream(bytes);
+		private ByteBuffer target;
+		private long copyoffset=-1;
+		private int copylength=0;
+
+		Encoder(ByteBuffer target) {
+			this.target=target;
+		}
+
+		void copy(long offset, int length) {
+			if(length==0) return;
+			if(copylength>0 && copyoffset+copylength==offset) copylength+=length;
+			else {
+				flush();
+				copyoffset=offset;
+				copylength=length;
+			}
+		}
+
+		void insert(int from, int length) {
+			if(length==0) return;
+			flush();
+			try {
+				out.writeByte(INSERT);
+				out.writeInt(length);
+				byte[] literal = new byte[length];
+				ByteBuffer slice = target.duplicate();
+				slice.position(target.position()+from);
+				slice.get(literal);
+				out.write(literal);
+			} catch(IOException e) {/*Impossibile su ByteArrayOutputStream*/}
+		}
+
+		private void flush() {
+			if(copylength==0) return;
+			try {
+				out.writeByte(COPY);
+				out.writeLong(copyoffset);
+				out.writeInt(copylength);
+			} catch(IOException e) {/*Impossibile su ByteArrayOutputStream*/}
+			copylength=0;
+		}
+
+		ByteBuffer toBuffer() {
+			flush();
+			return ByteBuffer.wrap(bytes.toByteArray());
+		}
+	}
+}
@@ -0,0 +1,92 @@
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Thread che multiplexa un insieme di connessioni non bloccanti
+ * attraverso un <strong>Selector</strong>.
+ * Ogni connessione è una SelectorConnection con la propria ClientSession:
+ * un utente collegato ma inattivo non occupa alcun Thread.
+ * <p>
+ * Tutte le operazioni su selector e connessioni vengono eseguite dal Thread
+ * dell'EventLoop; gli altri Thread possono richiederle con {@link #execute(Runnable)}.
+ *
+ * @author Stefano Spadola 534919
+ */
+
+public class EventLoop implements Runnable {
+
+	private Selector selector;
+	//Operazioni richieste da altri Thread
+	private Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	public EventLoop() throws IOException {
+		this.selector=Selector.open();
+	}
+
+	/**
+	 * Affida una nuova connessione (non bloccante) all'EventLoop.
+	 *
+	 * @param client SocketChannel appena accettato
+	 */
+	public void register(SocketChannel client) {
+		execute(() -> {
+			try {
+				SelectorConnection conn = new SelectorConnection(client, this);
+				conn.setKey(client.register(selector, SelectionKey.OP_READ, conn));
+			} catch (IOException | RuntimeException e) {
+				e.printStackTrace();
+				System.out.println("#SERVER ERROR: Impossibile registrare il Client");
+				Admission.getIstance().disconnect();
+				Server.close(client);
+			}
+		});
+	}
+
+	/**
+	 * Esegue un'operazione all'interno del Thread dell'EventLoop.
+	 *
+	 * @param task Operazione da eseguire
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		while(true) {
+			try {
+				selector.select();
+
+				//Operazioni richieste da altri Thread
+				Runnable task;
+				while((task=tasks.poll())!=null) {
+					task.run();
+				}
+
+				//Connessioni pronte in lettura/scrittura
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while(it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					SelectorConnection conn = (SelectorConnection) key.attachment();
+					try {
+						if(key.isValid() && key.isReadable()) conn.onReadable();
+						if(key.isValid() && key.isWritable()) conn.flush();
+					} catch(IOException | RuntimeException e) {
+						System.out.println("###FATAL ERROR: Client closed connection or an errorappeared.");
+						conn.abort();
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.out.println("#SERVER ERROR: Errore nell'EventLoop "+Thread.currentThread().getName());
+			}
+		}
+	}
+}
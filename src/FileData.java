@@ -1,7 +1,11 @@
 import java.io.Serializable;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Classe d'appoggio usata da FilesDB per
@@ -9,6 +13,19 @@ import java.util.ArrayList;
  * i suoi autori, i suoi coautori, il numero delle sezioni
  * di cui sono composti, il percorso dove sono salvati e strutture
  * per capire quali sezioni sono correntemente in modifica.
+ * <p>
+ * I lock delle sezioni non seguono il copy-on-write del resto della classe:
+ * sono una tabella atomica (un intero per sezione, 1 se bloccata) condivisa da
+ * tutte le copie del documento, così che lock e unlock siano una singola
+ * operazione atomica senza riallocare il FileData né ritentare il replace.
+ * Allo stesso modo la chat è un unico long atomico condiviso che contiene il
+ * numero di editor (32 bit alti) e l'indirizzo assegnato (vedi ChatAddresses):
+ * l'indirizzo viene assegnato al primo editor e restituito quando esce l'ultimo.
+ * <p>
+ * Le righe con cui il documento compare nella risposta a "list" vengono
+ * codificate una sola volta e conservate (vedi {@link #getSummary()}): le prime
+ * quattro non cambiano mai per una stessa versione del FileData, mentre quella
+ * con le sezioni in modifica viene ricodificata solo quando cambia un lock.
  * 
  * @author Stefano Spadola 534919 
  */
@@ -20,29 +37,31 @@ public class FileData implements Serializable {
 	private String filename;
 	private String author;
 	private ArrayList<String> coauthors;
-	private boolean[] sections;
+	private AtomicIntegerArray sections;
+	private AtomicInteger lockversion; //Incrementato ad ogni lock/unlock (condiviso come sections)
+	private transient volatile Summary summary=null;
 	private int numsections;
 	private Path path;
-	private InetAddress chat;
+	private AtomicLong chat; //Editor e indice dell'indirizzo+1 (0 = nessun indirizzo)
 	
 	public FileData(String filename, String author, Integer numberofsections, Path path) {
 		this.filename=new String(filename);
 		this.author=new String(author);
 		this.coauthors=new ArrayList<String>(0);
-		this.sections=new boolean[numberofsections];
+		this.sections=new AtomicIntegerArray(numberofsections);
+		this.lockversion=new AtomicInteger(0);
 		this.numsections=numberofsections;
-		for(int i=0; i<numberofsections; i++)
-			sections[i]=false;
 		this.path=path;
-		this.chat=null;
+		this.chat=new AtomicLong(0);
 	}
 	
-	/*Costruttore per la copia (deep copy)*/
+	/*Costruttore per la copia (deep copy, tranne la tabella dei lock che resta condivisa)*/
 	public FileData(FileData that) {
 		this.filename=new String(that.filename);
 		this.author=new String(that.author);
 		this.coauthors=new ArrayList<String>(that.coauthors);
 		this.sections=that.sections;
+		this.lockversion=that.lockversion;
 		this.numsections=that.numsections;
 		this.path=that.path;
 		this.chat=that.chat;
@@ -52,18 +71,35 @@ public class FileData implements Serializable {
 	public String getFileName() {return this.filename;}
 	public String getAuthor() {return this.author;}
 	public ArrayList<String> getCoauthors(){return this.coauthors;}
-	public boolean[] getSections() {return this.sections;}
 	public Path getPath() {return this.path;}
 	public int getNumberOfSections() {return this.numsections;}
-	public InetAddress getChat() {return this.chat;}
 	
 	/**
-	 * Esegue il lock di una sezione.
+	 * @return l'indirizzo della chat, null se nessuno sta modificando il documento
+	 */
+	public InetAddress getChat() {
+		int index=(int)chat.get();
+		return index!=0 ? ChatAddresses.toAddress(index-1) : null;
+	}
+	
+	/**
+	 * @param section Sezione (a partire da 1)
+	 * @return true se la sezione è in modifica
+	 */
+	public boolean isLocked(int section) {
+		return sections.get(section-1)==1;
+	}
+	
+	/**
+	 * Esegue il lock di una sezione (atomicamente).
 	 * 
 	 * @param section Sezione da lockare
+	 * @return true se la sezione era libera ed è stata bloccata
 	 */
-	public void lockSection(int section) {
-		sections[section-1]=true;
+	public boolean lockSection(int section) {
+		if(!sections.compareAndSet(section-1, 0, 1)) return false;
+		lockversion.incrementAndGet();
+		return true;
 	}
 	
 	/**
@@ -72,7 +108,47 @@ public class FileData implements Serializable {
 	 * @param section Sezione da unlockare
 	 */
 	public void unlockSection(int section) {
-		sections[section-1]=false;
+		sections.set(section-1, 0);
+		lockversion.incrementAndGet();
+	}
+	
+	/**
+	 * Restituisce le cinque righe (già codificate) con cui il documento compare
+	 * nella risposta a "list": nome, autore, coautori, numero di sezioni e sezioni
+	 * in modifica. Le righe vengono ricalcolate solo se è cambiato un lock dall'ultima
+	 * volta, e in quel caso solo l'ultima.
+	 * 
+	 * @return i payload delle righe (da non modificare)
+	 */
+	public ByteBuffer[] getSummary() {
+		//La versione si legge prima dei lock: se cambia nel frattempo la copia non sarà più valida
+		int version=lockversion.get();
+		Summary current=summary;
+		if(current==null || current.version!=version) {
+			ByteBuffer[] lines = new ByteBuffer[5];
+			if(current!=null) System.arraycopy(current.lines, 0, lines, 0, 4);
+			else {
+				lines[0]=encode("Documento: "+filename);
+				lines[1]=encode("Autore:    "+author);
+				lines[2]=encode("Coautori:  "+coauthors);
+				lines[3]=encode("#Sezioni:  "+numsections);
+			}
+			StringBuilder modified = new StringBuilder("Attualmente sotto modifica le sezioni: {");
+			for(int j=1; j<=numsections; j++) {
+				if(sections.get(j-1)==1) modified.append(' ').append(j);
+			}
+			modified.append(" }");
+			lines[4]=encode(modified);
+			current=new Summary(version, lines);
+			summary=current;
+		}
+		ByteBuffer[] lines = new ByteBuffer[5];
+		for(int i=0; i<5; i++) lines[i]=current.lines[i].duplicate();
+		return lines;
+	}
+	
+	private static ByteBuffer encode(CharSequence line) {
+		return ByteBuffer.wrap(line.toString().getBytes(Protocol.CHARSET)).asReadOnlyBuffer();
 	}
 	
 	/**
@@ -85,19 +161,48 @@ public class FileData implements Serializable {
 	}
 	
 	/**
-	 * Assegna un indirizzo multicast ad un file
-	 * 
-	 * @param address Indirizzo multicast per la chat relativa al file
+	 * Aggiunge un editor alla chat, assegnandole un indirizzo multicast se non
+	 * ne ha uno (primo editor, o indirizzi esauriti al suo ingresso).
+	 * Usa un ciclo per garantire il corretto inserimento del valore.
 	 */
-	public void setChat(InetAddress address) {
-		this.chat=address;
+	public void joinChat() {
+		int allocated=-1;
+		long current, updated;
+		do {
+			current=chat.get();
+			long index=current&0xFFFFFFFFL;
+			if(index==0) {
+				if(allocated<0) allocated=ChatAddresses.getIstance().allocate();
+				if(allocated>=0) index=allocated+1;
+			}
+			updated=((current>>>32)+1)<<32 | index;
+		} while(!chat.compareAndSet(current, updated));
+		//Un altro editor ha assegnato l'indirizzo per primo
+		if(allocated>=0 && (int)updated!=allocated+1) ChatAddresses.getIstance().release(allocated);
 	}
 	
 	/**
-	 * Revoca l'indirizzo multicast usato per la chat
+	 * Toglie un editor dalla chat: l'ultimo restituisce l'indirizzo multicast.
 	 */
-	public void unsetChat() {
-		this.chat=null;
+	public void leaveChat() {
+		long current, updated;
+		do {
+			current=chat.get();
+			long editors=(current>>>32)-1;
+			updated = editors>0 ? editors<<32 | (current&0xFFFFFFFFL) : 0;
+		} while(!chat.compareAndSet(current, updated));
+		if(updated==0 && (int)current!=0) ChatAddresses.getIstance().release((int)current-1);
+	}
+	
+	/*Righe di "list" codificate, valide finché non cambia la versione dei lock*/
+	private static class Summary {
+		private int version;
+		private ByteBuffer[] lines;
+		
+		Summary(int version, ByteBuffer[] lines) {
+			this.version=version;
+			this.lines=lines;
+		}
 	}
 
 }
@@ -1,25 +1,28 @@
 import java.io.IOException;
+import java.net.InetAddress;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Struttura dati utilizzata per memorizzare i file degli utenti.
- * È composta da una <strong>ConcurrentHashMap</strong> che garantisce
- * alta scalabilità alla struttura.
- * Chiave della struttura è il fileID che è composto dalla concatenazione di
- * <strong>nomefile+nomeutente</strong> garantendo l'unicità della chiave 
- * da parte degli utilizzatori.
+ * Ogni documento riceve alla creazione un fileID numerico, assegnato in
+ * sequenza: la struttura è quindi una tabella indicizzata direttamente dal
+ * fileID, divisa in blocchi di {@value #CHUNK_SIZE} documenti allocati al primo
+ * utilizzo (<strong>AtomicReferenceArray</strong>), così che ogni ricerca sia
+ * un doppio accesso ad array senza calcolare hash né allocare chiavi.
  * La classe è costruita attraverso l'uso del pattern Signleton, in modo
  * da creare un unica istanza utilizzabile dal Server.
  * Tutte le operazioni sono fatte in modo tale da garantire un ottima 
  * concorrenza dei metodi.
- * La maggior parte delle operazioni sono fatte usando l'operatore: 
- * <strong>replace(key,oldValue,newValue)</strong> che è garantito dalla
- * dcumentazione Java essere atomico.
- * {@link java.util.concurrent.ConcurrentHashMap#replace(K,V,V) replace}
+ * La maggior parte delle operazioni sono fatte sostituendo atomicamente
+ * il FileData nella tabella con l'operatore:
+ * <strong>compareAndSet(index,oldValue,newValue)</strong>.
+ * {@link java.util.concurrent.atomic.AtomicReferenceArray#compareAndSet(int,Object,Object) compareAndSet}
+ * Fanno eccezione i lock delle sezioni, che sono operazioni atomiche sulla
+ * tabella dei lock del documento (vedi FileData) e non sostituiscono la entry.
  * 
  * @author Stefano Spadola 534919 
  */
@@ -27,7 +30,11 @@ import java.util.concurrent.ConcurrentMap;
 public class FilesDB {
 	
 	private static FilesDB istance=null;
-	private ConcurrentMap<String,FileData> files;
+	/*Tabella dei documenti: blocco fileID/CHUNK_SIZE, posizione fileID%CHUNK_SIZE*/
+	public static final int CHUNK_SIZE = 1024;
+	private static final int CHUNKS = 1<<16;
+	private AtomicReferenceArray<AtomicReferenceArray<FileData>> files;
+	private AtomicLong lastid;
 	
 	/**
 	 * Costruttore Singleton
@@ -39,7 +46,8 @@ public class FilesDB {
 	}
 	
 	private FilesDB() {
-		files = new ConcurrentHashMap<String,FileData>();
+		files = new AtomicReferenceArray<AtomicReferenceArray<FileData>>(CHUNKS);
+		lastid = new AtomicLong(0);
 	}
 	
 	/**
@@ -48,11 +56,11 @@ public class FilesDB {
 	 * @param filename Nome del file da aggiungere
 	 * @param sections Numero sezioni di cui è composto il file
 	 * @param authro Autore del file
-	 * @return 0 on Success || -1 Se il file esiste già || -2 In caso di Errori IO
+	 * @return il fileID assegnato (>0) on Success || -2 In caso di Errori IO
 	 */
-	public int createFile(String filename, Integer sections, String author) {
+	public long createFile(String filename, Integer sections, String author) {
 		
-		int ret=0;
+		long ret=0;
 		
 		//Controlla se esiste già una directory per quell'utente
 		//Directory che contiene tutti i file dell'utente (Autore)
@@ -66,28 +74,28 @@ public class FilesDB {
 			}
 		}
 		
-		//Si creano tutti i file della sezione
-		for(int i=1; i<=sections; i++) {
-			Path fileToCreate = path.resolve(filename+"("+i+"-"+sections+")");
+		//Si crea il file del documento, con tutte le sezioni vuote (vedi SectionStore)
+		if(ret!=-2) {
 			try {
-				Files.createFile(fileToCreate);
+				SectionStore.create(path.resolve(filename), sections);
 			} catch (IOException e) {
-				System.out.println("#File già esistenti... IO_ERROR");
-				i=sections+1; //exit
+				System.out.println("#File già esistente... IO_ERROR");
 				ret=-2;
 			}
 		}
 		
 		if(ret!=-2) {
-			//Si crea un oggetto di tipo FileData e lo si inserisce nella tabella Hash
-			FileData data = new FileData(filename, author,sections, path);
-			
-			if(files.putIfAbsent(filename+author,data)!=null) {
-				System.out.println("#File già esistente!");
-				ret=-1;
+			//Si crea un oggetto di tipo FileData e lo si inserisce nella tabella con un nuovo fileID
+			long fileID = lastid.incrementAndGet();
+			AtomicReferenceArray<FileData> chunk = chunkOf(fileID, true);
+			if(chunk==null) {
+				System.out.println("#Tabella dei file piena!");
+				ret=-2;
 			}
-			else{
-				System.out.println("File creato correttamente con #"+sections+" sezioni");		
+			else {
+				chunk.set(indexOf(fileID), new FileData(filename, author,sections, path));
+				System.out.println("File creato correttamente con #"+sections+" sezioni (fileID "+fileID+")");
+				ret=fileID;
 			}
 		}
 		
@@ -100,20 +108,43 @@ public class FilesDB {
 	 * @param fileID ID univoco del file inserito
 	 * @return FileData un oggetto della classe FileData contenente tutte le info
 	 */
-	public FileData getFileInfo(String fileID) {
-		return files.get(fileID);
+	public FileData getFileInfo(long fileID) {
+		AtomicReferenceArray<FileData> chunk = chunkOf(fileID, false);
+		return chunk!=null ? chunk.get(indexOf(fileID)) : null;
 	}
 	
 	/**
 	 * Metodo che modifica una entry (già precedentemente inserita) nella struttura.
 	 * 
-	 * @param key È il fileID univoco (chiave)
+	 * @param fileID È il fileID univoco
 	 * @param oldValue è il vecchio valore da sostituire
 	 * @param newValue è il nuovo valore da sostituire
 	 * @return true se va a buon fine, false altrimenti
 	 */
-	public boolean modifyEntry(String key, FileData oldValue, FileData newValue) {
-		return files.replace(key,oldValue,newValue);
+	public boolean modifyEntry(long fileID, FileData oldValue, FileData newValue) {
+		return chunkOf(fileID, false).compareAndSet(indexOf(fileID), oldValue, newValue);
+	}
+	
+	/**
+	 * Restituisce il blocco della tabella che contiene un fileID.
+	 * 
+	 * @param fileID ID del file
+	 * @param create true per allocare il blocco se non esiste ancora
+	 * @return il blocco, null se il fileID non è valido (o il blocco non esiste)
+	 */
+	private AtomicReferenceArray<FileData> chunkOf(long fileID, boolean create) {
+		if(fileID<=0 || fileID>=(long)CHUNKS*CHUNK_SIZE) return null;
+		int c = (int)(fileID/CHUNK_SIZE);
+		AtomicReferenceArray<FileData> chunk = files.get(c);
+		if(chunk==null && create) {
+			files.compareAndSet(c, null, new AtomicReferenceArray<FileData>(CHUNK_SIZE));
+			chunk = files.get(c);
+		}
+		return chunk;
+	}
+	
+	private static int indexOf(long fileID) {
+		return (int)(fileID%CHUNK_SIZE);
 	}
 	
 	/**
@@ -124,14 +155,91 @@ public class FilesDB {
 	 * @param fileID ID del file univoco
 	 * @param coauthro Coautore da aggiungere
 	 */
-	public void addCoauthor(String fileID, String coauthor) {
+	public void addCoauthor(long fileID, String coauthor) {
 		FileData fd;
 		FileData acopy;
 		do{
 			fd= FilesDB.getIstance().getFileInfo(fileID);
 			acopy= new FileData(fd);
 			acopy.addCoauthor(coauthor);
-		}while(!files.replace(fileID,fd,acopy));
+		}while(!modifyEntry(fileID,fd,acopy));
+		Journal.getIstance().shared(fileID, coauthor);
+	}
+	
+	/**
+	 * Reinserisce un file durante il ripristino (vedi Journal), con il suo fileID.
+	 * I file delle sezioni sono già su disco e non vengono creati.
+	 * 
+	 * @param fileID ID del file
+	 * @param filename Nome del file
+	 * @param author Autore del file
+	 * @param sections Numero sezioni di cui è composto il file
+	 */
+	public void restoreFile(long fileID, String filename, String author, int sections) {
+		AtomicReferenceArray<FileData> chunk = chunkOf(fileID, true);
+		if(chunk==null) return;
+		chunk.compareAndSet(indexOf(fileID), null, new FileData(filename, author, sections, Paths.get(author)));
+		long current;
+		do {
+			current=lastid.get();
+		} while(current<fileID && !lastid.compareAndSet(current, fileID));
+	}
+	
+	/**
+	 * @return l'ultimo fileID assegnato
+	 */
+	public long getLastID() {
+		return lastid.get();
+	}
+	
+	/**
+	 * Metodo che blocca una sezione del file per la modifica.
+	 * 
+	 * @param fileID ID del file univoco
+	 * @param section Sezione da bloccare
+	 * @return true se la sezione era libera ed è stata bloccata
+	 */
+	public boolean lockSection(long fileID, int section) {
+		return getFileInfo(fileID).lockSection(section);
+	}
+	
+	/**
+	 * Metodo che sblocca una sezione del file.
+	 * 
+	 * @param fileID ID del file univoco
+	 * @param section Sezione da sbloccare
+	 */
+	public void unlockSection(long fileID, int section) {
+		getFileInfo(fileID).unlockSection(section);
+	}
+	
+	/**
+	 * Metodo che restituisce l'indirizzo multicast della chat del file.
+	 * L'indirizzo viene assegnato quando un editor entra nella chat (vedi joinChat).
+	 * 
+	 * @param fileID ID del file univoco
+	 * @return l'indirizzo della chat (null se gli indirizzi sono esauriti)
+	 */
+	public InetAddress getChat(long fileID) {
+		return getFileInfo(fileID).getChat();
+	}
+	
+	/**
+	 * Metodo che aggiunge un editor alla chat del file.
+	 * 
+	 * @param fileID ID del file univoco
+	 */
+	public void joinChat(long fileID) {
+		getFileInfo(fileID).joinChat();
+	}
+	
+	/**
+	 * Metodo che toglie un editor dalla chat del file: l'ultimo ne libera l'indirizzo.
+	 * 
+	 * @param fileID ID del file univoco
+	 */
+	public void leaveChat(long fileID) {
+		getFileInfo(fileID).leaveChat();
 	}
 
 }
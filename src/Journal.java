@@ -0,0 +1,423 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log di UsersDB e FilesDB, così che utenti, documenti, coautori e
+ * condivisioni sopravvivano al riavvio del server.
+ * Ogni registrazione, creazione e condivisione viene prima applicata in memoria e poi
+ * accodata al log come record [lunghezza][crc32][tipo, campi]: un record incompleto o
+ * corrotto in coda al log (server terminato durante la scrittura) viene riconosciuto e scartato.
+ * Il record viene forzato su disco prima della risposta al client. Le fsync sono raggruppate:
+ * chi trova una fsync in corso la attende e, se questa non copre già il suo record, ne fa
+ * una sola per tutti i record accodati nel frattempo.
+ * <p>
+ * Ogni {@value #SNAPSHOT_EVERY} record (proprietà <strong>turing.snapshot</strong>)
+ * il log passa ad un nuovo segmento e un Thread in background scrive uno snapshot
+ * compatto di tutti gli utenti e i documenti, dopo il quale i segmenti precedenti
+ * vengono cancellati: al riavvio si carica lo snapshot e si rieseguono solo i segmenti
+ * successivi, così che il tempo di ripristino non cresca con la storia del server.
+ * Lo snapshot viene scritto senza fermare il server e può quindi contenere anche
+ * operazioni registrate nei segmenti successivi: le operazioni aggiungono soltanto
+ * (utenti, documenti, coautori) e rieseguirle è innocuo.
+ * <p>
+ * I lock delle sezioni non vengono registrati: appartengono ai lease delle sessioni
+ * (vedi Leases), che non sopravvivono al riavvio, e ogni sezione riparte sbloccata.
+ * Le liste dei file degli utenti non vengono salvate ma ricostruite da autori e coautori.
+ * I file vengono salvati nella directory <strong>turing.journal</strong>
+ * (default {@value #DIRECTORY}).
+ * La classe è costruita attraverso l'uso del pattern Signleton.
+ *
+ * @author Stefano Spadola 534919
+ */
+
+public class Journal {
+
+	public static final int SNAPSHOT_EVERY = 10000;
+	public static final String DIRECTORY = ".turing-journal";
+	private static final int MAGIC = 0x54524e47; //"TRNG"
+	private static final String SNAPSHOT = "snapshot";
+	private static final String SEGMENT = "log.";
+	private static final int MAX_RECORD = 1<<16;
+
+	//Tipi dei record
+	private static final byte SUBSCRIBE = 1;
+	private static final byte CREATE = 2;
+	private static final byte SHARE = 3;
+
+	private static Journal istance=null;
+	private Path dir;
+	private int every;
+	/*Segmento corrente (accesso sincronizzato sull'istanza), null finché non si è ripristinato*/
+	private FileChannel log=null;
+	private long segment;
+	private int records;
+	/*Record accodati (accesso sincronizzato sull'istanza) e record forzati su disco (accesso sincronizzato su forcing)*/
+	private long appended=0;
+	private long durable=0;
+	private final Object forcing = new Object();
+	private ExecutorService snapshotter;
+
+	/**
+	 * Costruttore Singleton
+	 */
+	public static synchronized Journal getIstance() {
+		if(istance==null)
+			istance=new Journal();
+		return istance;
+	}
+
+	private Journal() {
+		dir = Paths.get(System.getProperty("turing.journal", DIRECTORY));
+		every = Math.max(1, Integer.getInteger("turing.snapshot", SNAPSHOT_EVERY));
+		snapshotter = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "Journal-snapshot");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/*			----(Ripristino)----			*/
+
+	/**
+	 * Ripristina utenti e documenti dall'ultimo snapshot e dai segmenti successivi,
+	 * poi apre un nuovo segmento per le operazioni successive.
+	 * Va chiamato una sola volta, all'avvio e prima di accettare client.
+	 */
+	public synchronized void recover() throws IOException {
+		Files.createDirectories(dir);
+		long start=1;
+		Path snapshot = dir.resolve(SNAPSHOT);
+		if(Files.exists(snapshot)) start=readSnapshot(snapshot);
+		long last=start-1;
+		for(long s : segments()) {
+			if(s<start) Files.delete(segmentPath(s)); //Già nello snapshot
+			else {
+				replay(segmentPath(s));
+				last=s;
+			}
+		}
+		//Mai in coda ad un segmento esistente: potrebbe terminare con un record troncato
+		segment=last+1;
+		log=FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		forceDirectory();
+		//Si assorbono i segmenti rieseguiti, così che non si accumulino tra un riavvio e l'altro
+		if(last>=start) snapshot(segment);
+	}
+
+	/*Carica uno snapshot e restituisce il primo segmento da rieseguire*/
+	private long readSnapshot(Path snapshot) throws IOException {
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))){
+			if(in.readInt()!=MAGIC) throw new IOException("Snapshot non valido: "+snapshot);
+			long start = in.readLong();
+			int users = in.readInt();
+			for(int i=0; i<users; i++) {
+				String user = in.readUTF();
+				UsersDB.getIstance().restoreUser(user, in.readInt(), in.readInt(), in.readBoolean());
+			}
+			int files = in.readInt();
+			for(int i=0; i<files; i++) {
+				long fileID = in.readLong();
+				String filename = in.readUTF();
+				String author = in.readUTF();
+				int sections = in.readInt();
+				restoreFile(fileID, filename, author, sections);
+				int coauthors = in.readInt();
+				for(int j=0; j<coauthors; j++) restoreShare(fileID, in.readUTF());
+			}
+			System.out.println("Snapshot caricato: #"+users+" utenti e #"+files+" documenti");
+			return start;
+		}
+	}
+
+	/*Riesegue i record di un segmento, fermandosi al primo incompleto o corrotto*/
+	private void replay(Path path) throws IOException {
+		int count=0;
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))){
+			CRC32 crc = new CRC32();
+			while(true) {
+				int length;
+				try {
+					length = in.readInt();
+				} catch(EOFException e) {
+					break; //Fine del segmento
+				}
+				byte[] record = length>=0 && length<=MAX_RECORD ? new byte[length] : null;
+				try {
+					long expected = in.readInt()&0xffffffffL;
+					if(record!=null) {
+						in.readFully(record);
+						crc.reset();
+						crc.update(record);
+						if(crc.getValue()!=expected) record=null;
+					}
+				} catch(EOFException e) {
+					record=null;
+				}
+				if(record==null) {
+					System.out.println("#Journal: record troncato scartato in "+path.getFileName());
+					break;
+				}
+				apply(new DataInputStream(new ByteArrayInputStream(record)));
+				count++;
+			}
+		}
+		System.out.println("Segmento "+path.getFileName()+" rieseguito: #"+count+" operazioni");
+	}
+
+	private void apply(DataInputStream in) throws IOException {
+		switch(in.readByte()) {
+			case SUBSCRIBE:
+				String user = in.readUTF();
+				UsersDB.getIstance().restoreUser(user, in.readInt(), in.readInt(), false);
+				break;
+			case CREATE:
+				long fileID = in.readLong();
+				String filename = in.readUTF();
+				String author = in.readUTF();
+				restoreFile(fileID, filename, author, in.readInt());
+				break;
+			case SHARE:
+				long shared = in.readLong();
+				String coauthor = in.readUTF();
+				if(restoreShare(shared, coauthor)) UsersDB.getIstance().getData(coauthor).setRequest();
+				break;
+			default:
+				throw new IOException("Tipo di record sconosciuto");
+		}
+	}
+
+	private static void restoreFile(long fileID, String filename, String author, int sections) {
+		FilesDB.getIstance().restoreFile(fileID, filename, author, sections);
+		UserData data = UsersDB.getIstance().getData(author);
+		if(data!=null) data.addFile(filename, fileID);
+	}
+
+	/*Aggiunge un coautore (se non lo è già) e il file alla sua lista*/
+	private static boolean restoreShare(long fileID, String coauthor) {
+		FileData fd = FilesDB.getIstance().getFileInfo(fileID);
+		UserData data = UsersDB.getIstance().getData(coauthor);
+		if(fd==null || data==null) return false;
+		if(!fd.getCoauthors().contains(coauthor)) FilesDB.getIstance().addCoauthor(fileID, coauthor);
+		return data.addFile(fd.getFileName(), fileID);
+	}
+
+	/*			----(Registrazione)----			*/
+
+	/**
+	 * Registra un nuovo utente (già inserito in UsersDB).
+	 */
+	public void subscribed(String user, UserData data) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(SUBSCRIBE);
+			out.writeUTF(user);
+			out.writeInt(data.getSeed());
+			out.writeInt(data.getPasswordHash());
+			append(bytes.toByteArray());
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Registra un nuovo documento (già inserito in FilesDB e nella lista dell'autore).
+	 */
+	public void created(long fileID) {
+		FileData fd = FilesDB.getIstance().getFileInfo(fileID);
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(CREATE);
+			out.writeLong(fileID);
+			out.writeUTF(fd.getFileName());
+			out.writeUTF(fd.getAuthor());
+			out.writeInt(fd.getNumberOfSections());
+			append(bytes.toByteArray());
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Registra un nuovo coautore (già aggiunto al documento e alla sua lista).
+	 */
+	public void shared(long fileID, String coauthor) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(SHARE);
+			out.writeLong(fileID);
+			out.writeUTF(coauthor);
+			append(bytes.toByteArray());
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*Accoda un record e ritorna solo quando è su disco*/
+	private void append(byte[] record) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		ByteBuffer buffer = ByteBuffer.allocate(8+record.length);
+		buffer.putInt(record.length).putInt((int)crc.getValue()).put(record).flip();
+		long seq;
+		synchronized(this) {
+			if(log==null) return; //Journal non attivo (ripristino in corso o server senza journal)
+			while(buffer.hasRemaining()) log.write(buffer);
+			seq=++appended;
+			if(++records>=every) rotate();
+		}
+		force(seq);
+	}
+
+	/**
+	 * Forza su disco il log almeno fino al record seq. Una sola fsync alla volta: chi attende
+	 * la trova spesso già fatta per il suo record, altrimenti ne fa una per tutti i record
+	 * accodati fino a quel momento.
+	 */
+	private void force(long seq) throws IOException {
+		synchronized(forcing) {
+			if(durable>=seq) return; //Coperto da una fsync concorrente
+			long upto;
+			FileChannel channel;
+			synchronized(this) {
+				upto=appended;
+				channel=log;
+			}
+			try {
+				channel.force(false);
+			} catch(ClosedChannelException e) {
+				//Segmento chiuso da rotate, che lo ha forzato prima di chiuderlo
+			}
+			durable=upto;
+		}
+	}
+
+	/*Forza su disco la directory del journal (nuovi segmenti e snapshot spostato)*/
+	private void forceDirectory() throws IOException {
+		try(FileChannel d = FileChannel.open(dir, StandardOpenOption.READ)) {
+			d.force(true);
+		}
+	}
+
+	/*			----(Snapshot)----			*/
+
+	/*Passa ad un nuovo segmento e fa partire lo snapshot di tutto ciò che lo precede*/
+	private void rotate() throws IOException {
+		log.force(false);
+		log.close();
+		segment++;
+		records=0;
+		log=FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		forceDirectory();
+		snapshot(segment);
+	}
+
+	/*Scrive in background lo snapshot di tutto ciò che precede il segmento start*/
+	private void snapshot(long start) {
+		snapshotter.execute(() -> {
+			try {
+				writeSnapshot(start);
+			} catch(IOException e) {
+				System.out.println("#Journal: snapshot non riuscito, si mantengono i segmenti");
+				e.printStackTrace();
+			}
+		});
+	}
+
+	/**
+	 * Scrive lo snapshot di tutto ciò che è stato registrato prima del segmento start
+	 * e cancella i segmenti precedenti.
+	 * I documenti vengono raccolti prima degli utenti, così che ogni autore e coautore
+	 * di un documento nello snapshot sia a sua volta nello snapshot.
+	 */
+	private void writeSnapshot(long start) throws IOException {
+		ArrayList<Long> ids = new ArrayList<Long>();
+		ArrayList<FileData> files = new ArrayList<FileData>();
+		FilesDB db = FilesDB.getIstance();
+		long last = db.getLastID();
+		for(long fileID=1; fileID<=last; fileID++) {
+			FileData fd = db.getFileInfo(fileID);
+			if(fd!=null) {
+				ids.add(fileID);
+				files.add(fd);
+			}
+		}
+		ArrayList<String> names = new ArrayList<String>();
+		ArrayList<UserData> users = new ArrayList<UserData>();
+		UsersDB.getIstance().forEachUser((name, data) -> {names.add(name); users.add(data);});
+		Path tmp = dir.resolve(SNAPSHOT+".tmp");
+		try(FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1<<16));
+			out.writeInt(MAGIC);
+			out.writeLong(start);
+			out.writeInt(names.size());
+			for(int i=0; i<names.size(); i++) {
+				UserData data = users.get(i);
+				out.writeUTF(names.get(i));
+				out.writeInt(data.getSeed());
+				out.writeInt(data.getPasswordHash());
+				out.writeBoolean(data.hasSharingRequest());
+			}
+			out.writeInt(files.size());
+			for(int i=0; i<files.size(); i++) {
+				FileData fd = files.get(i);
+				out.writeLong(ids.get(i));
+				out.writeUTF(fd.getFileName());
+				out.writeUTF(fd.getAuthor());
+				out.writeInt(fd.getNumberOfSections());
+				ArrayList<String> coauthors = fd.getCoauthors();
+				out.writeInt(coauthors.size());
+				for(String coauthor : coauthors) out.writeUTF(coauthor);
+			}
+			out.flush();
+			channel.force(true);
+		}
+		Files.move(tmp, dir.resolve(SNAPSHOT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		forceDirectory(); //Lo snapshot deve restare anche se un crash segue la cancellazione dei segmenti
+		for(long s : segments()) {
+			if(s<start) Files.deleteIfExists(segmentPath(s));
+		}
+		System.out.println("Snapshot scritto: #"+names.size()+" utenti e #"+files.size()+" documenti");
+	}
+
+	private Path segmentPath(long s) {
+		return dir.resolve(SEGMENT+s);
+	}
+
+	/*Numeri dei segmenti presenti, in ordine*/
+	private ArrayList<Long> segments() throws IOException {
+		ArrayList<Long> list = new ArrayList<Long>();
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir, SEGMENT+"*")){
+			for(Path p : stream) {
+				try {
+					list.add(Long.parseLong(p.getFileName().toString().substring(SEGMENT.length())));
+				} catch(NumberFormatException e) {/*Non è un segmento*/}
+			}
+		}
+		Collections.sort(list);
+		return list;
+	}
+}
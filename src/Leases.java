@@ -0,0 +1,325 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.function.Consumer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Gestore dei lease delle sezioni in modifica.
+ * Una sezione bloccata con edit resta tale solo finché il lease del client che
+ * l'ha bloccata non scade: ogni frame ricevuto dal client (compresi i frame PING
+ * che i client inviano ogni {@value Protocol#HEARTBEAT} secondi durante la modifica)
+ * rinnova il lease, mentre una connessione mezza aperta smette di rinnovarlo e la
+ * sezione viene sbloccata senza attendere che il TCP se ne accorga.
+ * <p>
+ * Le scadenze sono gestite da una timing wheel: un array di {@value #SLOTS} slot,
+ * uno per ogni tick di un secondo, in cui ogni lease viene inserito nello slot della
+ * propria scadenza. Ad ogni tick si esamina solo lo slot corrente, così che il costo
+ * non dipenda dal numero di lease attivi. Il rinnovo si limita ad aggiornare la
+ * scadenza (nessuno spostamento): un lease trovato nello slot ma non ancora scaduto,
+ * perché rinnovato o perché scade ad un giro successivo della ruota, viene
+ * reinserito nello slot della nuova scadenza.
+ * <p>
+ * Chi trova una sezione bloccata può mettersi in coda (vedi {@link #await}) per al
+ * massimo {@value #MAX_WAIT} secondi: quando il lease viene rilasciato o scade, la
+ * sezione passa direttamente, ancora bloccata, al primo della coda (FIFO), senza che
+ * un altro edit possa inserirsi. Anche le attese scadono attraverso la timing wheel.
+ * <p>
+ * Ogni lease è anche un editor della chat del documento (vedi FileData.joinChat):
+ * nel passaggio di una sezione il nuovo lease entra nella chat prima che il vecchio
+ * ne esca, così che l'indirizzo non venga liberato e subito riassegnato.
+ * <p>
+ * La durata si configura con la proprietà di sistema <strong>turing.lease</strong>
+ * (secondi, default {@value #LEASE}), e deve essere maggiore dell'intervallo dei PING.
+ * La classe è costruita attraverso l'uso del pattern Signleton.
+ *
+ * @author Stefano Spadola 534919
+ */
+
+public class Leases {
+
+	/*Durata di default di un lease (secondi)*/
+	public static final int LEASE = 120;
+	private static final long TICK = 1000;
+	private static final int SLOTS = 64;
+	/*Attesa massima di una sezione bloccata (secondi)*/
+	public static final int MAX_WAIT = 300;
+
+	private static Leases istance=null;
+	private long duration;
+	private ArrayList<ArrayDeque<Timed>> wheel;
+	/*Code di attesa delle sezioni bloccate (accesso sincronizzato sulla mappa)*/
+	private HashMap<Section,ArrayDeque<Waiter>> waiting;
+	/*Ultimo tick esaminato (scritto solo dal Thread della ruota, con il lock del suo slot)*/
+	private volatile long cursor;
+
+	/**
+	 * Costruttore Singleton
+	 */
+	public static synchronized Leases getIstance() {
+		if(istance==null)
+			istance=new Leases();
+		return istance;
+	}
+
+	private Leases() {
+		duration = Integer.getInteger("turing.lease", LEASE)*1000L;
+		wheel = new ArrayList<ArrayDeque<Timed>>(SLOTS);
+		for(int i=0; i<SLOTS; i++) wheel.add(new ArrayDeque<Timed>());
+		waiting = new HashMap<Section,ArrayDeque<Waiter>>();
+		cursor = System.currentTimeMillis()/TICK;
+		ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "Leases-wheel");
+			t.setDaemon(true);
+			return t;
+		});
+		ticker.scheduleAtFixedRate(this::tick, TICK, TICK, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Blocca una sezione per la modifica con un nuovo lease.
+	 *
+	 * @param fileID ID del file
+	 * @param section Sezione da bloccare
+	 * @return il lease, null se la sezione era già bloccata
+	 */
+	public Lease acquire(long fileID, int section) {
+		if(!FilesDB.getIstance().lockSection(fileID, section)) return null;
+		return grant(new Section(fileID, section));
+	}
+
+	/**
+	 * Blocca una sezione per la modifica oppure, se è già bloccata, si mette in coda.
+	 * La coda viene controllata anche dopo essersi inseriti, così che un rilascio
+	 * concorrente non lasci l'attesa senza nessuno che la serva.
+	 *
+	 * @param fileID ID del file
+	 * @param section Sezione da bloccare
+	 * @param timeout Millisecondi di attesa massima
+	 * @param ongrant Azione eseguita (da un altro Thread) con il lease quando la sezione
+	 *        passa al richiedente, con null se l'attesa scade
+	 * @return il lease se la sezione era libera (ongrant non viene eseguita),
+	 *         null se ci si è messi in coda (ongrant può essere eseguita anche
+	 *         dal Thread chiamante, prima che await termini)
+	 */
+	public Lease await(long fileID, int section, long timeout, Consumer<Lease> ongrant) {
+		Lease lease = acquire(fileID, section);
+		if(lease!=null) return lease;
+		Waiter waiter = new Waiter(new Section(fileID, section), ongrant);
+		waiter.deadline = System.currentTimeMillis()+timeout;
+		synchronized(waiting) {
+			waiting.computeIfAbsent(waiter.section, k -> new ArrayDeque<Waiter>()).add(waiter);
+		}
+		schedule(waiter);
+		//Sezione rilasciata mentre ci si inseriva: la si passa al primo della coda
+		if(FilesDB.getIstance().lockSection(fileID, section)) handoff(waiter.section);
+		return null;
+	}
+
+	/**
+	 * Annulla tutte le attese di una sezione registrate con una data azione
+	 * (ad esempio perché il client si è disconnesso). Se la sezione è stata
+	 * concessa nel frattempo l'azione viene comunque eseguita.
+	 *
+	 * @param fileID ID del file
+	 * @param section Sezione attesa
+	 * @param ongrant Azione passata ad await
+	 */
+	public void cancel(long fileID, int section, Consumer<Lease> ongrant) {
+		Section key = new Section(fileID, section);
+		synchronized(waiting) {
+			ArrayDeque<Waiter> queue = waiting.get(key);
+			if(queue==null) return;
+			for(Waiter waiter : queue) {
+				if(waiter.ongrant==ongrant) waiter.done.set(true);
+			}
+			queue.removeIf(w -> w.ongrant==ongrant);
+			if(queue.isEmpty()) waiting.remove(key);
+		}
+	}
+
+	/**
+	 * Passa la sezione (bloccata dal chiamante) al primo della coda ancora in attesa,
+	 * oppure la sblocca se la coda è vuota.
+	 */
+	private void handoff(Section section) {
+		while(true) {
+			Waiter next;
+			synchronized(waiting) {
+				ArrayDeque<Waiter> queue = waiting.get(section);
+				next = queue!=null ? queue.poll() : null;
+				if(queue!=null && queue.isEmpty()) waiting.remove(section);
+				if(next==null) {
+					FilesDB.getIstance().unlockSection(section.fileID, section.section);
+					return;
+				}
+			}
+			if(next.done.compareAndSet(false, true)) {
+				System.out.println("|Sezione passata al primo in attesa: fileID "+section.fileID+" sezione "+section.section);
+				next.ongrant.accept(grant(section));
+				return;
+			}
+		}
+	}
+
+	/*Nuovo lease per una sezione già bloccata*/
+	private Lease grant(Section section) {
+		FilesDB.getIstance().joinChat(section.fileID);
+		Lease lease = new Lease(section.fileID, section.section);
+		lease.renew();
+		schedule(lease);
+		return lease;
+	}
+
+	/**
+	 * Inserisce un elemento nello slot del primo tick successivo alla scadenza, ma mai
+	 * in uno slot già esaminato (compreso quello che la ruota sta svuotando), dove
+	 * attenderebbe un giro intero: si riprova se il tick scelto viene esaminato nel frattempo.
+	 */
+	private void schedule(Timed entry) {
+		while(true) {
+			long target = Math.max(entry.deadline/TICK+1, cursor+1);
+			ArrayDeque<Timed> slot = wheel.get((int)(target%SLOTS));
+			synchronized(slot) {
+				if(target>cursor) {
+					slot.add(entry);
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Esamina gli slot dei tick trascorsi (di solito uno solo), sblocca
+	 * le sezioni dei lease scaduti e termina le attese scadute.
+	 */
+	private void tick() {
+		long now = System.currentTimeMillis();
+		long last = Math.min(now/TICK, cursor+SLOTS);
+		while(cursor<last) {
+			long current = cursor+1;
+			ArrayDeque<Timed> slot = wheel.get((int)(current%SLOTS));
+			ArrayDeque<Timed> due;
+			synchronized(slot) {
+				cursor = current;
+				due = new ArrayDeque<Timed>(slot);
+				slot.clear();
+			}
+			for(Timed entry : due) {
+				if(!entry.isActive()) continue; //Già terminato
+				if(entry.deadline>now) schedule(entry); //Rinnovato o non ancora al suo giro
+				else entry.expire();
+			}
+		}
+		cursor = Math.max(cursor, now/TICK);
+	}
+
+	/*Elemento della timing wheel*/
+	abstract class Timed {
+		protected volatile long deadline;
+
+		abstract boolean isActive();
+		abstract void expire();
+	}
+
+	/*Lease di una sezione bloccata: termina una sola volta, rilasciato o scaduto*/
+	public class Lease extends Timed {
+		private final long fileID;
+		private final int section;
+		private final AtomicBoolean ended = new AtomicBoolean(false);
+
+		private Lease(long fileID, int section) {
+			this.fileID=fileID;
+			this.section=section;
+		}
+
+		public long getFileID() {return this.fileID;}
+		public int getSection() {return this.section;}
+
+		/**
+		 * Rinvia la scadenza di un'intera durata (la ruota se ne accorge al vecchio slot).
+		 */
+		public void renew() {
+			this.deadline=System.currentTimeMillis()+duration;
+		}
+
+		/**
+		 * @return true se la sezione è ancora bloccata da questo lease
+		 */
+		public boolean isHeld() {
+			return !ended.get();
+		}
+
+		/**
+		 * Rilascia il lease, se non è già scaduto: la sezione passa al primo
+		 * in attesa o viene sbloccata.
+		 *
+		 * @return true se la sezione è stata rilasciata da questa chiamata
+		 */
+		public boolean release() {
+			if(!ended.compareAndSet(false, true)) return false;
+			handoff(new Section(fileID, section));
+			FilesDB.getIstance().leaveChat(fileID);
+			return true;
+		}
+
+		@Override
+		boolean isActive() {return isHeld();}
+
+		@Override
+		void expire() {
+			if(release()) System.out.println("|Lease scaduto: fileID "+fileID+" sezione "+section);
+		}
+	}
+
+	/*Richiesta in coda per una sezione bloccata: concessa o scaduta una sola volta*/
+	private class Waiter extends Timed {
+		private final Section section;
+		private final Consumer<Lease> ongrant;
+		private final AtomicBoolean done = new AtomicBoolean(false);
+
+		Waiter(Section section, Consumer<Lease> ongrant) {
+			this.section=section;
+			this.ongrant=ongrant;
+		}
+
+		@Override
+		boolean isActive() {return !done.get();}
+
+		@Override
+		void expire() {
+			synchronized(waiting) {
+				ArrayDeque<Waiter> queue = waiting.get(section);
+				if(queue!=null) {
+					queue.remove(this);
+					if(queue.isEmpty()) waiting.remove(section);
+				}
+			}
+			if(done.compareAndSet(false, true)) ongrant.accept(null);
+		}
+	}
+
+	/*Chiave delle code di attesa*/
+	private static class Section {
+		private final long fileID;
+		private final int section;
+
+		Section(long fileID, int section) {
+			this.fileID=fileID;
+			this.section=section;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Section && ((Section)o).fileID==fileID && ((Section)o).section==section;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(fileID)*31+section;
+		}
+	}
+}
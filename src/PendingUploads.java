@@ -0,0 +1,123 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Struttura dati che conserva gli upload di end-edit interrotti dalla caduta
+ * della connessione, così che il client possa riprenderli dall'ultimo byte
+ * confermato invece di ricominciare.
+ * <p>
+ * Un upload interrotto mantiene bloccata la sezione in modifica (il suo lease viene
+ * rinnovato, vedi Leases) e il file parziale ricevuto: quando l'utente rieffettua il login la sessione recupera l'editmode
+ * e al successivo end-edit offre l'offset da cui riprendere (vedi Protocol.ack).
+ * Se l'utente non torna entro {@value #TIMEOUT} secondi la sezione viene sbloccata
+ * e il file parziale cancellato.
+ * La classe è costruita attraverso l'uso del pattern Signleton.
+ *
+ * @author Stefano Spadola 534919
+ */
+
+public class PendingUploads {
+
+	/*Secondi entro cui riprendere un upload interrotto*/
+	public static final int TIMEOUT = 60;
+
+	private static PendingUploads istance=null;
+	private ConcurrentMap<String,Upload> uploads;
+
+	/**
+	 * Costruttore Singleton
+	 */
+	public static synchronized PendingUploads getIstance() {
+		if(istance==null)
+			istance=new PendingUploads();
+		return istance;
+	}
+
+	private PendingUploads() {
+		uploads = new ConcurrentHashMap<String,Upload>();
+		ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "PendingUploads-sweeper");
+			t.setDaemon(true);
+			return t;
+		});
+		sweeper.scheduleWithFixedDelay(this::expire, 1, 1, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Conserva l'upload interrotto di un utente (la sezione resta bloccata).
+	 *
+	 * @param username Utente che stava caricando la sezione
+	 * @param upload Stato dell'upload
+	 */
+	public void park(String username, Upload upload) {
+		System.out.println("|Upload interrotto: "+upload.getPart()+" - "+upload.getConfirmed()+"/"+upload.getSize()+"byte");
+		upload.getLease().renew();
+		Upload old = uploads.put(username, upload);
+		if(old!=null) release(old);
+	}
+
+	/**
+	 * Recupera (e rimuove) l'upload interrotto di un utente.
+	 *
+	 * @return l'upload interrotto, null se non c'è
+	 */
+	public Upload take(String username) {
+		return uploads.remove(username);
+	}
+
+	/**
+	 * Abbandona un upload interrotto: sblocca la sezione e cancella il file parziale.
+	 */
+	public void release(Upload upload) {
+		upload.getLease().release();
+		try {
+			Files.deleteIfExists(upload.getPart());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void expire() {
+		long now = System.currentTimeMillis();
+		for(Map.Entry<String,Upload> e : uploads.entrySet()) {
+			if(e.getValue().expiry<now && uploads.remove(e.getKey(), e.getValue())) {
+				System.out.println("|Upload scaduto: "+e.getValue().getPart());
+				release(e.getValue());
+			}
+		}
+	}
+
+	/*Upload interrotto: sezione bloccata, file parziale e byte confermati*/
+	public static class Upload {
+		private Leases.Lease lease;
+		private Path part;
+		private long size;
+		private long confirmed;
+		private CRC32 crc;
+		private long expiry;
+
+		public Upload(Leases.Lease lease, Path part, long size, long confirmed, CRC32 crc) {
+			this.lease=lease;
+			this.part=part;
+			this.size=size;
+			this.confirmed=confirmed;
+			this.crc=crc;
+			this.expiry=System.currentTimeMillis()+TIMEOUT*1000L;
+		}
+
+		public Leases.Lease getLease() {return this.lease;}
+		public Path getPart() {return this.part;}
+		public long getSize() {return this.size;}
+		public long getConfirmed() {return this.confirmed;}
+		/*CRC32 dei byte confermati (continua ad essere aggiornato alla ripresa)*/
+		public CRC32 getCrc() {return this.crc;}
+	}
+}
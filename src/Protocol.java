@@ -0,0 +1,325 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * Protocollo binario a frame parlato da Client e Server.
+ * Ogni frame è composto da un header di dimensione fissa:
+ * <pre>
+ *  | opcode (1 byte) | id richiesta (4 byte) | lunghezza payload (4 byte) |
+ * </pre>
+ * seguito dal payload. I messaggi testuali (comandi e risposte) viaggiano in frame
+ * TEXT, mentre i file sono annunciati da un frame FILE (che contiene la dimensione)
+ * e trasportati da uno o più frame DATA. Un intero documento viene invece annunciato
+ * da un frame DOCUMENT con la tabella delle lunghezze delle sezioni, seguito da un
+ * unico flusso di frame DATA con tutte le sezioni una di seguito all'altra.
+ * Ogni frame di risposta riporta l'id della richiesta a cui si riferisce, così che
+ * un client possa avere più richieste in corso sulla stessa connessione; per lo stesso
+ * motivo un frame PICK permette di scegliere il file per autore (show/edit) insieme
+ * al comando, senza attendere la lista dei file candidati. Con end-edit la sezione
+ * può essere inviata come differenza rispetto alla versione ricevuta con edit: un frame
+ * DELTA seguito dai frame DATA con il delta (vedi Delta).
+ * <p>
+ * I trasferimenti di una singola sezione possono riprendere da un offset: il frame FILE
+ * indica da quale byte parte il contenuto che segue. Durante un upload il server conferma
+ * periodicamente con frame ACK i byte ricevuti (e il loro CRC32), e all'inizio di ogni
+ * end-edit offre con un ACK l'offset da cui riprendere un upload interrotto.
+ * <p>
+ * Mentre una sezione è in modifica il client invia ogni {@link #HEARTBEAT} secondi
+ * un frame PING senza payload, che non riceve risposta e serve solo a rinnovare il
+ * lease della sezione (vedi Leases).
+ * <p>
+ * Il server può inviare in qualunque momento tra due frame di risposta un frame NOTIFY
+ * (id 0), non legato ad alcuna richiesta: ad esempio l'invito a nuovi documenti condivisi
+ * viene notificato appena la condivisione avviene.
+ * <p>
+ * Il bit più alto dell'opcode è il flag {@link #DEFLATE}: su un frame FILE o DOCUMENT
+ * indica che i frame DATA seguenti trasportano un flusso compresso (vedi Compression),
+ * sulla risposta al login che il server ha accettato la compressione.
+ * <p>
+ * Poiché i confini di ogni messaggio sono espliciti, righe di testo e byte dei file
+ * non passano mai per lo stesso reader bufferizzato e non servono pause tra l'annuncio
+ * di un file e il suo contenuto.
+ *
+ * @author Stefano Spadola 534919
+ */
+
+public class Protocol {
+
+	/*Opcode*/
+	public static final byte TEXT = 1;
+	public static final byte FILE = 2;
+	public static final byte DATA = 3;
+	public static final byte DOCUMENT = 4;
+	public static final byte PICK = 5;
+	public static final byte DELTA = 6;
+	public static final byte ACK = 7;
+	public static final byte PING = 8;
+	public static final byte NOTIFY = 9;
+	/*Flag dell'opcode: contenuto compresso / compressione accettata*/
+	public static final byte DEFLATE = (byte)0x80;
+
+	public static final int HEADER_SIZE = 9;
+	/*Dimensione massima del payload di un frame DATA*/
+	public static final int CHUNK_SIZE = 64*1024;
+	/*Secondi tra due PING durante la modifica di una sezione*/
+	public static final int HEARTBEAT = 30;
+	public static final Charset CHARSET = StandardCharsets.UTF_8;
+
+	private Protocol() {}
+
+	/**
+	 * Crea l'header di un frame.
+	 *
+	 * @param opcode Tipo del frame
+	 * @param id Id della richiesta
+	 * @param length Lunghezza del payload
+	 * @return buffer (in modalità lettura) contenente l'header
+	 */
+	public static ByteBuffer header(byte opcode, int id, int length) {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.put(opcode).putInt(id).putInt(length);
+		header.flip();
+		return header;
+	}
+
+	/**
+	 * @return il tipo del frame, senza flag
+	 */
+	public static byte type(byte opcode) {
+		return (byte)(opcode & ~DEFLATE);
+	}
+
+	/**
+	 * @return true se l'opcode ha il flag DEFLATE
+	 */
+	public static boolean isCompressed(byte opcode) {
+		return (opcode & DEFLATE)!=0;
+	}
+
+	/**
+	 * Imposta il flag DEFLATE sull'opcode di un frame già creato.
+	 *
+	 * @return lo stesso frame
+	 */
+	public static ByteBuffer compressed(ByteBuffer frame) {
+		frame.put(frame.position(), (byte)(frame.get(frame.position()) | DEFLATE));
+		return frame;
+	}
+
+	/**
+	 * Crea un frame TEXT completo.
+	 *
+	 * @param id Id della richiesta
+	 * @param message Messaggio (ne viene inviata la rappresentazione testuale)
+	 */
+	public static ByteBuffer text(int id, Object message) {
+		return message(TEXT, id, message);
+	}
+
+	/**
+	 * Crea un frame PICK completo, che sceglie il file per autore.
+	 *
+	 * @param id Id della richiesta (show o edit) a cui si riferisce la scelta
+	 * @param author Autore del file scelto
+	 */
+	public static ByteBuffer pick(int id, String author) {
+		return message(PICK, id, author);
+	}
+
+	/**
+	 * Crea un frame PING, che rinnova il lease della sezione in modifica.
+	 */
+	public static ByteBuffer ping() {
+		return header(PING, 0, 0);
+	}
+
+	/**
+	 * Crea un frame NOTIFY completo.
+	 *
+	 * @param message Notifica (ne viene inviata la rappresentazione testuale)
+	 */
+	public static ByteBuffer notification(Object message) {
+		return message(NOTIFY, 0, message);
+	}
+
+	private static ByteBuffer message(byte opcode, int id, Object message) {
+		byte[] payload = String.valueOf(message).getBytes(CHARSET);
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE+payload.length);
+		frame.put(opcode).putInt(id).putInt(payload.length).put(payload);
+		frame.flip();
+		return frame;
+	}
+
+	/**
+	 * Crea un frame FILE completo, che annuncia la dimensione del file in arrivo.
+	 *
+	 * @param id Id della richiesta
+	 * @param size Dimensione in byte del file
+	 */
+	public static ByteBuffer file(int id, long size) {
+		return file(id, size, 0);
+	}
+
+	/**
+	 * Crea un frame FILE completo per un trasferimento che riprende da un offset:
+	 * i frame DATA seguenti trasportano solo i byte da offset in poi.
+	 * <pre>
+	 *  FILE: | dimensione (8 byte) | offset (8 byte) |
+	 * </pre>
+	 *
+	 * @param id Id della richiesta
+	 * @param size Dimensione in byte del file
+	 * @param offset Primo byte trasportato
+	 */
+	public static ByteBuffer file(int id, long size, long offset) {
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE+16);
+		frame.put(FILE).putInt(id).putInt(16).putLong(size).putLong(offset);
+		frame.flip();
+		return frame;
+	}
+
+	/**
+	 * Crea un frame ACK completo, che conferma i byte ricevuti di un upload.
+	 * <pre>
+	 *  ACK: | offset confermato (8 byte) | dimensione (8 byte) | CRC32 dei byte confermati (8 byte) |
+	 * </pre>
+	 *
+	 * @param id Id della richiesta (end-edit)
+	 * @param offset Byte ricevuti e scritti
+	 * @param size Dimensione in byte del file
+	 * @param checksum CRC32 dei primi offset byte
+	 */
+	public static ByteBuffer ack(int id, long offset, long size, long checksum) {
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE+24);
+		frame.put(ACK).putInt(id).putInt(24).putLong(offset).putLong(size).putLong(checksum);
+		frame.flip();
+		return frame;
+	}
+
+	/**
+	 * @return il CRC32 del contenuto del buffer
+	 */
+	public static long checksum(ByteBuffer content) {
+		CRC32 crc = new CRC32();
+		crc.update(content.duplicate());
+		return crc.getValue();
+	}
+
+	/**
+	 * Crea un frame DELTA completo, che annuncia l'upload di una sezione come delta.
+	 * <pre>
+	 *  DELTA: | lunghezza base (8 byte) | CRC32 base (8 byte) | lunghezza nuova versione (8 byte) | lunghezza delta (8 byte) |
+	 * </pre>
+	 *
+	 * @param id Id della richiesta
+	 * @param baselength Lunghezza della versione di base
+	 * @param basechecksum CRC32 della versione di base
+	 * @param length Lunghezza della nuova versione
+	 * @param deltalength Lunghezza del delta che segue nei frame DATA
+	 */
+	public static ByteBuffer delta(int id, long baselength, long basechecksum, long length, long deltalength) {
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE+32);
+		frame.put(DELTA).putInt(id).putInt(32).putLong(baselength).putLong(basechecksum).putLong(length).putLong(deltalength);
+		frame.flip();
+		return frame;
+	}
+
+	/**
+	 * Crea la risposta con un intero documento: il frame DOCUMENT con la tabella
+	 * delle sezioni seguito dai frame DATA che trasportano tutte le sezioni in un
+	 * unico flusso (un frame DATA può contenere la fine di una sezione e l'inizio
+	 * della successiva). I buffer delle sezioni non vengono copiati ma solo
+	 * suddivisi, così da poter essere inviati con una scrittura gathering.
+	 * <pre>
+	 *  DOCUMENT: | #sezioni (4 byte) | lunghezza sezione 1 (8 byte) | ... | lunghezza sezione n (8 byte) |
+	 * </pre>
+	 *
+	 * @param id Id della richiesta
+	 * @param sections Contenuto delle sezioni, in ordine
+	 * @return i buffer da inviare, in ordine
+	 */
+	public static ByteBuffer[] document(int id, ByteBuffer[] sections) {
+		ByteBuffer[] data = data(id, sections);
+		ByteBuffer[] frames = new ByteBuffer[data.length+1];
+		frames[0]=table(id, sections);
+		System.arraycopy(data, 0, frames, 1, data.length);
+		return frames;
+	}
+
+	/**
+	 * Suddivide il contenuto (concatenato) dei buffer in frame DATA, senza copiarlo.
+	 *
+	 * @param id Id della richiesta
+	 * @param contents Contenuti da inviare, in ordine
+	 * @return gli header e le porzioni dei buffer da inviare, in ordine
+	 */
+	public static ByteBuffer[] data(int id, ByteBuffer... contents) {
+		long total=0;
+		for(ByteBuffer s : contents) total+=s.remaining();
+
+		ArrayList<ByteBuffer> frames = new ArrayList<ByteBuffer>();
+		int i=0;
+		ByteBuffer current=null;
+		while(total>0) {
+			int chunk=(int)Math.min(CHUNK_SIZE, total);
+			frames.add(header(DATA, id, chunk));
+			int missing=chunk;
+			while(missing>0) {
+				while(current==null || !current.hasRemaining()) current=contents[i++].duplicate();
+				int n=Math.min(missing, current.remaining());
+				ByteBuffer slice=current.slice();
+				slice.limit(n);
+				frames.add(slice);
+				current.position(current.position()+n);
+				missing-=n;
+			}
+			total-=chunk;
+		}
+		return frames.toArray(new ByteBuffer[frames.size()]);
+	}
+
+	/**
+	 * Crea il frame DOCUMENT con la tabella delle lunghezze delle sezioni.
+	 *
+	 * @param id Id della richiesta
+	 * @param sections Contenuto delle sezioni, in ordine
+	 */
+	public static ByteBuffer table(int id, ByteBuffer[] sections) {
+		ByteBuffer table = ByteBuffer.allocate(HEADER_SIZE+4+8*sections.length);
+		table.put(DOCUMENT).putInt(id).putInt(4+8*sections.length).putInt(sections.length);
+		for(ByteBuffer s : sections) table.putLong(s.remaining());
+		table.flip();
+		return table;
+	}
+
+	/**
+	 * Scrive completamente i buffer su un canale bloccante
+	 * con il minor numero possibile di scritture (gathering).
+	 */
+	public static void write(GatheringByteChannel channel, ByteBuffer... buffers) throws IOException {
+		int first=0;
+		while(first<buffers.length) {
+			channel.write(buffers, first, buffers.length-first);
+			while(first<buffers.length && !buffers[first].hasRemaining()) first++;
+		}
+	}
+
+	/**
+	 * Riempie completamente il buffer leggendo da un canale bloccante.
+	 *
+	 * @throws EOFException se il canale viene chiuso prima
+	 */
+	public static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) {
+			if(channel.read(buffer)<0) throw new EOFException("Connessione chiusa");
+		}
+		buffer.flip();
+	}
+}
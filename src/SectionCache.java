@@ -0,0 +1,208 @@
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache LRU, fuori dallo heap, delle sezioni più lette.
+ * Le sezioni che show o edit leggono dal disco vengono lette in ByteBuffer diretti (vedi
+ * SectionIO.Send) che restano in cache, così che le letture successive le inviino dalla
+ * memoria del server senza toccare il disco e senza trattenere la versione (vedi
+ * SectionStore.Version) durante l'invio.
+ * Per i client che hanno negoziato la compressione viene conservato, al primo invio
+ * compresso, anche il flusso deflate della sezione, che non viene quindi ricalcolato.
+ * <p>
+ * Le sezioni sono indicizzate dallo SHA-256 del contenuto: sezioni uguali di documenti
+ * diversi condividono la stessa copia, e una sezione modificata non può mai essere letta
+ * dalla copia vecchia. Per lo stesso motivo una versione superata da un end-edit non viene
+ * tolta dalla cache (lo stesso contenuto può essere ancora la versione corrente di un altro
+ * documento): se non viene più letta, esce dalla cache come le altre sezioni meno recenti.
+ * La dimensione totale delle copie è limitata a <strong>turing.cache</strong> MB (default
+ * {@value #BUDGET}, 0 disabilita la cache), contando anche le copie ancora in lettura
+ * dal disco (vedi {@link #reserve(long)}): quando viene superata si scartano le sezioni
+ * lette meno di recente, e una sezione più grande di 1/{@value #MAX_SHARE} del totale non
+ * viene copiata (né una sezione letta solo in parte, per riprendere un download).
+ * Le copie scartate durante un invio restano valide fino alla sua fine.
+ * Hit, miss e sezioni scartate vengono riportate ogni {@value #REPORT} letture.
+ * La classe è costruita attraverso l'uso del pattern Signleton.
+ *
+ * @author Stefano Spadola 534919
+ */
+
+public class SectionCache {
+
+	/*Dimensione totale di default (MB)*/
+	public static final int BUDGET = 64;
+	private static final int MAX_SHARE = 8;
+	private static final int REPORT = 1000;
+
+	private static SectionCache istance=null;
+	private long budget;
+	/*Sezioni in ordine di accesso, byte occupati (comprese le copie in lettura) e byte delle
+	  copie in lettura (accesso sincronizzato sull'istanza)*/
+	private LinkedHashMap<ByteBuffer,Entry> entries;
+	private long used=0;
+	private long reserved=0;
+	private AtomicLong hits = new AtomicLong(0);
+	private AtomicLong misses = new AtomicLong(0);
+	private AtomicLong evictions = new AtomicLong(0);
+
+	/**
+	 * Costruttore Singleton
+	 */
+	public static synchronized SectionCache getIstance() {
+		if(istance==null)
+			istance=new SectionCache();
+		return istance;
+	}
+
+	private SectionCache() {
+		budget = Math.max(0, Integer.getInteger("turing.cache", BUDGET))*1024L*1024L;
+		entries = new LinkedHashMap<ByteBuffer,Entry>(16, 0.75f, true);
+	}
+
+	/**
+	 * Copia in cache di una versione, se c'è.
+	 *
+	 * @param version Versione trattenuta dal chiamante
+	 * @return la copia, null se la cache è disabilitata o la sezione non è in cache
+	 */
+	public Entry lookup(SectionStore.Version version) {
+		if(budget==0) return null;
+		Entry entry;
+		synchronized(this) {
+			entry = entries.get(ByteBuffer.wrap(version.getHash()));
+		}
+		if(entry!=null) hits.incrementAndGet();
+		else misses.incrementAndGet();
+		report();
+		return entry;
+	}
+
+	/**
+	 * Riserva lo spazio per la copia di una sezione che sta per essere letta dal disco:
+	 * le copie in lettura non possono superare il totale e fanno scartare le sezioni meno recenti.
+	 * Lo spazio passa alla copia con {@link #put}, oppure va restituito con {@link #cancel(long)}.
+	 *
+	 * @return true se una sezione lunga length byte può essere copiata in cache
+	 */
+	public synchronized boolean reserve(long length) {
+		if(length<=0 || length>budget/MAX_SHARE || reserved+length>budget) return false;
+		reserved+=length;
+		used+=length;
+		evict();
+		return true;
+	}
+
+	/**
+	 * Restituisce lo spazio di una copia riservata ma non completata (invio annullato).
+	 */
+	public synchronized void cancel(long length) {
+		reserved-=length;
+		used-=length;
+	}
+
+	/**
+	 * Aggiunge la copia di una versione appena letta dal disco (vedi SectionIO.Send),
+	 * nello spazio riservato con {@link #reserve(long)}.
+	 *
+	 * @param version Versione copiata (non serve che sia ancora trattenuta)
+	 * @param copy Contenuto della versione in un ByteBuffer diretto, che non verrà più modificato
+	 * @return la copia in cache, che può essere quella aggiunta nel frattempo da un'altra lettura
+	 */
+	public synchronized Entry put(SectionStore.Version version, ByteBuffer copy) {
+		reserved-=copy.capacity();
+		ByteBuffer key = ByteBuffer.wrap(version.getHash());
+		Entry entry = new Entry(key, copy.asReadOnlyBuffer());
+		Entry other = entries.putIfAbsent(key, entry);
+		if(other!=null) {//Copia doppia: lo spazio riservato torna libero
+			used-=entry.size;
+			return other;
+		}
+		evict();
+		return entry;
+	}
+
+	/*Aggiunge i byte del flusso compresso di una copia, se è ancora in cache*/
+	private synchronized void grow(Entry entry, long size) {
+		if(entries.get(entry.key)!=entry) return;
+		entry.size+=size;
+		used+=size;
+		evict();
+	}
+
+	/*Scarta le copie lette meno di recente finché non si rientra nel limite (le copie in lettura restano)*/
+	private void evict() {
+		Iterator<Entry> lru = entries.values().iterator();
+		while(used>budget && lru.hasNext()) {
+			used-=lru.next().size;
+			lru.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	private void report() {
+		long h=hits.get(), m=misses.get();
+		if((h+m)%REPORT!=0) return;
+		long n, u;
+		synchronized(this) {
+			n=entries.size();
+			u=used;
+		}
+		System.out.println("|Cache sezioni: #"+h+" hit, #"+m+" miss ("+(h*100/(h+m))+"% hit), #"+evictions.get()+" scartate, #"+n+" sezioni in "+u+"/"+budget+"byte");
+	}
+
+	public long getHits() {return hits.get();}
+	public long getMisses() {return misses.get();}
+	public long getEvictions() {return evictions.get();}
+
+	/**
+	 * @return i byte occupati dalle copie in cache
+	 */
+	public synchronized long getUsed() {
+		return used;
+	}
+
+	/**
+	 * Copia di una sezione in memoria diretta, immutabile.
+	 */
+	public class Entry {
+		private final ByteBuffer key;
+		private final ByteBuffer content;
+		/*Flusso deflate del contenuto, calcolato al primo invio compresso (accesso sincronizzato)*/
+		private ByteBuffer deflated=null;
+		/*Byte occupati, contando anche il flusso compresso (accesso sincronizzato sulla cache)*/
+		private long size;
+
+		private Entry(ByteBuffer key, ByteBuffer content) {
+			this.key=key;
+			this.content=content;
+			this.size=content.capacity();
+		}
+
+		/**
+		 * @return il contenuto della sezione (in sola lettura)
+		 */
+		public ByteBuffer content() {
+			return content.duplicate();
+		}
+
+		/**
+		 * @return il flusso deflate dell'intero contenuto (in sola lettura)
+		 */
+		public ByteBuffer deflated() {
+			ByteBuffer stream;
+			synchronized(this) {
+				if(deflated==null) {
+					ByteBuffer compressed = Compression.deflate(content());
+					stream = ByteBuffer.allocateDirect(compressed.remaining());
+					stream.put(compressed).flip();
+					deflated = stream.asReadOnlyBuffer();
+				}
+				else return deflated.duplicate();
+			}
+			grow(this, stream.capacity());
+			return stream.asReadOnlyBuffer();
+		}
+	}
+}
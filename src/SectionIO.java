@@ -0,0 +1,555 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.EnumSet;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * I/O asincrono delle sezioni trasferite con show, edit ed end-edit, così che il Thread
+ * della sessione (un Thread del pool, o l'EventLoop che ne serve migliaia) non si fermi
+ * ad attendere il disco.
+ * <p>
+ * Letture e scritture passano per AsynchronousFileChannel legati ad un pool di Thread
+ * daemon, e ogni operazione completata torna alla sessione attraverso SessionOutput.execute:
+ * <ul>
+ * <li>{@link Send} legge le sezioni a blocchi di {@value #BLOCK} byte e avvia la lettura
+ * del blocco successivo prima di inviare quello appena letto, così che il disco lavori
+ * mentre il blocco precedente è sul socket;</li>
+ * <li>{@link Part} scrive a blocchi il file parziale di un upload, mentre la sessione
+ * continua a ricevere i frame DATA successivi;</li>
+ * <li>la copia del file parziale nel documento (vedi SectionStore) viene eseguita da un
+ * Thread del pool ({@link #execute(Runnable)}).</li>
+ * </ul>
+ * I blocchi sono ByteBuffer diretti riutilizzati dai trasferimenti successivi (ne vengono
+ * conservati al massimo {@value #POOL}). Il pool di Thread cresce solo se i suoi Thread
+ * restano occupati: le operazioni completate vengono passate al trasporto della sessione
+ * (vedi SessionOutput.execute), che invia le risposte.
+ * La classe è costruita attraverso l'uso del pattern Signleton.
+ *
+ * @author Stefano Spadola 534919
+ */
+
+public class SectionIO {
+
+	/*Dimensione dei blocchi letti e scritti (byte)*/
+	public static final int BLOCK = 256*1024;
+	private static final int POOL = 64;
+	/*Blocchi di un upload in attesa di essere scritti oltre i quali si sospende la ricezione*/
+	private static final int MAX_PENDING = 16;
+
+	private static SectionIO istance=null;
+	private ExecutorService executor;
+	/*Blocchi liberi e loro numero*/
+	private Queue<ByteBuffer> blocks;
+	private AtomicInteger free = new AtomicInteger(0);
+
+	/**
+	 * Costruttore Singleton
+	 */
+	public static synchronized SectionIO getIstance() {
+		if(istance==null)
+			istance=new SectionIO();
+		return istance;
+	}
+
+	private SectionIO() {
+		AtomicInteger threads = new AtomicInteger(0);
+		executor = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "SectionIO-"+threads.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		blocks = new ConcurrentLinkedQueue<ByteBuffer>();
+	}
+
+	/**
+	 * Esegue un'operazione bloccante sul disco con un Thread del pool.
+	 *
+	 * @param task Operazione da eseguire
+	 */
+	public void execute(Runnable task) {
+		executor.execute(task);
+	}
+
+	/*Canale le cui operazioni, e le loro notifiche, vengono eseguite dal pool*/
+	private AsynchronousFileChannel open(Path file, StandardOpenOption... options) throws IOException {
+		EnumSet<StandardOpenOption> set = EnumSet.noneOf(StandardOpenOption.class);
+		for(StandardOpenOption o : options) set.add(o);
+		return AsynchronousFileChannel.open(file, set, executor);
+	}
+
+	/*Blocco vuoto, riutilizzato se ce n'è uno libero*/
+	private ByteBuffer block() {
+		ByteBuffer block = blocks.poll();
+		if(block==null) return ByteBuffer.allocateDirect(BLOCK);
+		free.decrementAndGet();
+		block.clear();
+		return block;
+	}
+
+	/*Blocco che non serve più, conservato se il pool non è pieno*/
+	private void recycle(ByteBuffer block) {
+		if(free.incrementAndGet()<=POOL) blocks.add(block);
+		else free.decrementAndGet();
+	}
+
+	/**
+	 * Invio di una sezione, o di tutte le sezioni di un documento, lette dal disco.
+	 * Le sezioni in cache (vedi SectionCache) vengono inviate dalla loro copia, le altre
+	 * vengono lette a blocchi, una lettura alla volta e con al massimo due blocchi in uso:
+	 * quello in lettura e l'ultimo inviato. Una sezione che entra in cache viene letta
+	 * direttamente nella sua copia, che va in cache a lettura terminata.
+	 * Ogni versione viene rilasciata appena la sua sezione è stata letta.
+	 * Tutti i metodi vanno invocati nel contesto della sessione.
+	 */
+	public static class Send {
+		private final SessionOutput out;
+		private final int id;
+		private final SectionStore.Version[] versions;
+		private final SectionCache.Entry[] cached;
+		private final Compression.Stream deflater; //null se l'invio è in chiaro
+		private final Consumer<IOException> done;
+		//Sezione in lettura (le precedenti sono già rilasciate) e prossimo byte da leggere
+		private int segment=0;
+		private long position;
+		private AsynchronousFileChannel channel=null;
+		private ByteBuffer copy=null; //Copia della sezione destinata alla cache
+		//Blocco in lettura, blocco letto da inviare e blocchi del pool che si possono ancora usare
+		private ByteBuffer reading=null;
+		private boolean readingpooled;
+		private ByteBuffer ready=null;
+		private boolean readypooled;
+		private int available=2;
+		private boolean pumping=false;
+		private boolean again=false;
+		private boolean closed=false;
+
+		private final CompletionHandler<Integer,ByteBuffer> handler = new CompletionHandler<Integer,ByteBuffer>() {
+			@Override
+			public void completed(Integer n, ByteBuffer target) {
+				out.execute(() -> onRead(target, n, null));
+			}
+
+			@Override
+			public void failed(Throwable e, ByteBuffer target) {
+				out.execute(() -> onRead(target, -1, e));
+			}
+		};
+
+		/**
+		 * @param out Canale verso il client
+		 * @param id Id della richiesta
+		 * @param versions Versioni trattenute da inviare, in ordine (le rilascia l'invio)
+		 * @param cached Copie in cache delle versioni (null dove non ci sono)
+		 * @param offset Primo byte da inviare della prima sezione (download ripreso)
+		 * @param deflate true per inviare un unico flusso compresso (vedi Compression)
+		 * @param done Eseguita una volta accodati tutti i frame (con null) o se l'invio fallisce
+		 *        (con l'errore), anche prima che start termini; mai dopo {@link #cancel()}
+		 */
+		public Send(SessionOutput out, int id, SectionStore.Version[] versions, SectionCache.Entry[] cached, long offset, boolean deflate, Consumer<IOException> done) {
+			this.out=out;
+			this.id=id;
+			this.versions=versions;
+			this.cached=cached;
+			this.position=offset;
+			this.deflater=deflate ? new Compression.Stream() : null;
+			this.done=done;
+		}
+
+		/**
+		 * Invia il frame che annuncia il trasferimento (FILE o DOCUMENT) e avvia le letture.
+		 *
+		 * @param header Frame da inviare per primo
+		 */
+		public void start(ByteBuffer header) throws IOException {
+			out.write(new ByteBuffer[] {header});
+			pump();
+		}
+
+		/**
+		 * Annulla l'invio (sessione terminata) e rilascia le versioni non ancora lette.
+		 * Il blocco in lettura e quelli in viaggio tornano liberi quando le loro operazioni terminano.
+		 */
+		public void cancel() {
+			if(closed) return;
+			closed=true;
+			close();
+			if(copy!=null) SectionCache.getIstance().cancel(copy.capacity());
+			copy=null;
+			if(deflater!=null) deflater.end();
+			for(; segment<versions.length; segment++) versions[segment].release();
+		}
+
+		/*Avanza finché possibile: una chiamata annidata (da un blocco appena inviato) ripete il ciclo*/
+		private void pump() throws IOException {
+			if(pumping) {
+				again=true;
+				return;
+			}
+			pumping=true;
+			try {
+				do {
+					again=false;
+					step();
+				} while(again && !closed);
+			} finally {
+				pumping=false;
+			}
+		}
+
+		private void step() throws IOException {
+			while(!closed) {
+				if(ready!=null) {//Si avvia la lettura del blocco successivo, poi si invia quello letto
+					ByteBuffer block=ready;
+					ready=null;
+					advance(false);
+					emit(block, readypooled);
+				}
+				else if(reading!=null || !advance(true)) return;
+			}
+		}
+
+		/*Chiude le sezioni lette, invia quelle in cache (solo con send, se non c'è nulla da inviare
+		  prima) e avvia la lettura del prossimo blocco: false se non è stata avviata*/
+		private boolean advance(boolean send) throws IOException {
+			while(segment<versions.length) {
+				SectionStore.Version version=versions[segment];
+				if(position==version.getLength()) {
+					next();
+					continue;
+				}
+				if(cached[segment]!=null) {
+					if(!send) return false;
+					ByteBuffer content=cached[segment].content();
+					content.position((int)position);
+					position=version.getLength();
+					emit(content, false);
+					continue;
+				}
+				return read();
+			}
+			if(send) finish();
+			return false;
+		}
+
+		/*Avvia la lettura del prossimo blocco della sezione corrente, se c'è un blocco libero*/
+		private boolean read() throws IOException {
+			SectionStore.Version version=versions[segment];
+			int n=(int)Math.min(BLOCK, version.getLength()-position);
+			if(channel==null) {
+				channel=getIstance().open(version.getFile(), StandardOpenOption.READ);
+				if(position==0 && SectionCache.getIstance().reserve(version.getLength()))
+					copy=ByteBuffer.allocateDirect((int)version.getLength());
+			}
+			if(copy!=null) {
+				ByteBuffer target=copy.duplicate();
+				target.position((int)position);
+				target.limit((int)position+n);
+				reading=target.slice();
+				readingpooled=false;
+			}
+			else if(available>0) {
+				reading=getIstance().block();
+				reading.limit(n);
+				readingpooled=true;
+				available--;
+			}
+			else return false; //Si attende che l'ultimo blocco inviato torni libero
+			fill();
+			return true;
+		}
+
+		private void fill() {
+			channel.read(reading, versions[segment].getPosition()+position+reading.position(), reading, handler);
+		}
+
+		/*Lettura completata o fallita, nel contesto della sessione*/
+		private void onRead(ByteBuffer target, int n, Throwable error) {
+			if(closed) {//Invio annullato: il blocco non serve più
+				if(readingpooled) getIstance().recycle(target);
+				return;
+			}
+			try {
+				if(error!=null) throw new IOException("Lettura fallita: "+versions[segment].getFile(), error);
+				if(n<=0) throw new IOException("Sezione incompleta: "+versions[segment].getFile());
+				if(target.hasRemaining()) {//Lettura parziale
+					fill();
+					return;
+				}
+				target.flip();
+				position+=target.remaining();
+				reading=null;
+				ready=target;
+				readypooled=readingpooled;
+				pump();
+			} catch(IOException e) {
+				fail(e);
+			}
+		}
+
+		/*Sezione letta per intero: la copia va in cache e la versione viene rilasciata*/
+		private void next() {
+			SectionStore.Version version=versions[segment];
+			close();
+			if(copy!=null) {
+				SectionCache.getIstance().put(version, copy);
+				copy=null;
+			}
+			version.release();
+			segment++;
+			position=0;
+		}
+
+		private void close() {
+			if(channel==null) return;
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			channel=null;
+		}
+
+		/*Accoda i frame DATA di un contenuto: un blocco del pool torna libero una volta inviato*/
+		private void emit(ByteBuffer content, boolean pooled) throws IOException {
+			if(deflater!=null) {//Il flusso compresso è una copia
+				ByteBuffer[] frames=deflater.deflate(id, content);
+				if(pooled) recycle(content);
+				if(frames.length>0) out.write(frames);
+			}
+			else if(pooled) out.write(Protocol.data(id, content), () -> recycle(content));
+			else if(content.hasRemaining()) out.write(Protocol.data(id, content));
+		}
+
+		/*Un blocco inviato (o scartato) torna libero: si riprende la lettura se lo attendeva*/
+		private void recycle(ByteBuffer block) {
+			getIstance().recycle(block);
+			available++;
+			if(closed) return;
+			try {
+				pump();
+			} catch(IOException e) {
+				fail(e);
+			}
+		}
+
+		private void finish() throws IOException {
+			if(deflater!=null) out.write(deflater.finish(id));
+			closed=true;
+			done.accept(null);
+		}
+
+		private void fail(IOException e) {
+			if(closed) return;
+			cancel();
+			done.accept(e);
+		}
+	}
+
+	/**
+	 * Scrittura asincrona del file parziale di un upload (end-edit).
+	 * I byte ricevuti vengono copiati in blocchi, scritti in ordine uno alla volta mentre la
+	 * sessione continua a ricevere. Il CRC32 e i byte scritti avanzano solo quando un blocco
+	 * è sul file, così che le conferme al client (vedi Protocol.ack) e un upload interrotto
+	 * (vedi PendingUploads) non riportino mai byte non ancora scritti.
+	 * Se il disco resta indietro di più di {@value #MAX_PENDING} blocchi la sessione smette di
+	 * consumare i byte ricevuti (vedi {@link #isBacklogged()}) e il trasporto di leggere dal
+	 * socket, finché i blocchi scritti non vengono raccolti: nessun Thread resta in attesa del disco.
+	 * Tutti i metodi vanno invocati nel contesto della sessione.
+	 */
+	public static class Part {
+		private final SessionOutput out;
+		private final AsynchronousFileChannel channel;
+		private final CRC32 crc;
+		private final Runnable progress;
+		/*Blocchi da scrivere, in ordine: il primo è in scrittura*/
+		private final ArrayDeque<Block> queue = new ArrayDeque<Block>();
+		private ByteBuffer filling=null; //Blocco in riempimento
+		private long position; //Posizione nel file del blocco in riempimento
+		private long written;
+		private IOException error=null;
+		private boolean closed=false;
+
+		private final CompletionHandler<Integer,Block> handler = new CompletionHandler<Integer,Block>() {
+			@Override
+			public void completed(Integer n, Block block) {
+				if(block.data.hasRemaining()) {//Scrittura parziale
+					block.start();
+					return;
+				}
+				block.complete(null);
+			}
+
+			@Override
+			public void failed(Throwable e, Block block) {
+				block.complete(e);
+			}
+		};
+
+		/**
+		 * Apre il file parziale, troncandolo ai byte già ricevuti.
+		 *
+		 * @param out Canale verso il client (per tornare nel contesto della sessione)
+		 * @param file File parziale
+		 * @param offset Byte già ricevuti e scritti (upload ripreso)
+		 * @param crc CRC32 dei byte già scritti, aggiornato man mano che i blocchi vengono scritti
+		 * @param progress Eseguita nel contesto della sessione dopo i blocchi scritti (o falliti)
+		 */
+		public Part(SessionOutput out, Path file, long offset, CRC32 crc, Runnable progress) throws IOException {
+			this.out=out;
+			this.crc=crc;
+			this.progress=progress;
+			this.position=offset;
+			this.written=offset;
+			this.channel=getIstance().open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			try {
+				channel.truncate(offset);
+			} catch(IOException e) {
+				channel.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Accoda i byte ricevuti, che vengono copiati.
+		 *
+		 * @param data Byte ricevuti (in modalità lettura)
+		 */
+		public void write(ByteBuffer data) throws IOException {
+			check();
+			while(data.hasRemaining()) {
+				if(filling==null) filling=getIstance().block();
+				ByteBuffer part=data.duplicate();
+				part.limit(part.position()+Math.min(filling.remaining(), data.remaining()));
+				filling.put(part);
+				data.position(part.position());
+				if(!filling.hasRemaining()) flush();
+			}
+		}
+
+		/**
+		 * Accoda anche il blocco in riempimento (ricezione terminata).
+		 */
+		public void flush() {
+			if(filling==null) return;
+			filling.flip();
+			if(filling.hasRemaining()) {
+				Block block=new Block(filling, position);
+				position+=filling.remaining();
+				queue.add(block);
+				if(queue.size()==1) block.start();
+			}
+			else getIstance().recycle(filling);
+			filling=null;
+		}
+
+		/**
+		 * @throws IOException se la scrittura di un blocco è fallita
+		 */
+		public void check() throws IOException {
+			if(error!=null) throw error;
+		}
+
+		/**
+		 * @return i byte scritti sul file (compresi quelli già ricevuti prima della ripresa)
+		 */
+		public long getWritten() {
+			return written;
+		}
+
+		/**
+		 * @return true se il disco è indietro di più di {@value #MAX_PENDING} blocchi:
+		 *         non vanno accodati altri byte finché i blocchi scritti non vengono raccolti
+		 */
+		public boolean isBacklogged() {
+			return !closed && queue.size()>MAX_PENDING;
+		}
+
+		/**
+		 * @return true se tutti i byte accodati sono stati scritti
+		 */
+		public boolean isDrained() {
+			return filling==null && queue.isEmpty();
+		}
+
+		/**
+		 * Chiude il file parziale: i blocchi non ancora scritti vengono scartati.
+		 */
+		public void close() {
+			if(closed) return;
+			closed=true;
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			if(filling!=null) getIstance().recycle(filling);
+			filling=null;
+			//Il blocco in scrittura viene lasciato al suo Thread
+			queue.poll();
+			for(Block block : queue) getIstance().recycle(block.data);
+			queue.clear();
+		}
+
+		/*Blocchi scritti, nel contesto della sessione: avanzano CRC e byte scritti e parte il blocco successivo*/
+		private void collect() {
+			Block block;
+			while(!closed && error==null && (block=queue.peek())!=null && block.isDone()) {
+				queue.poll();
+				if(block.failure!=null) {
+					error=new IOException("Scrittura del file parziale fallita", block.failure);
+					return;
+				}
+				block.data.flip();
+				written+=block.data.remaining();
+				crc.update(block.data);
+				getIstance().recycle(block.data);
+				if(!queue.isEmpty()) queue.peek().start();
+			}
+		}
+
+		/*Blocco da scrivere in una posizione del file*/
+		private class Block {
+			private final ByteBuffer data;
+			private final long position;
+			/*Scrittura terminata ed eventuale errore (accesso sincronizzato sul blocco)*/
+			private boolean done=false;
+			private Throwable failure=null;
+
+			Block(ByteBuffer data, long position) {
+				this.data=data;
+				this.position=position;
+			}
+
+			void start() {
+				channel.write(data, position+data.position(), this, handler);
+			}
+
+			/*Scrittura terminata, da uno dei Thread del pool: la sessione raccoglie il blocco*/
+			void complete(Throwable e) {
+				synchronized(this) {
+					failure=e;
+					done=true;
+				}
+				out.execute(() -> {
+					collect();
+					if(!closed) progress.run();
+				});
+			}
+
+			synchronized boolean isDone() {
+				return done;
+			}
+		}
+	}
+}
@@ -0,0 +1,743 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Archivio delle sezioni dei documenti: ogni documento è un unico file, nella directory
+ * del suo autore e con il suo nome, mappato in memoria.
+ * <pre>
+ *  | MAGIC (4 byte) | #sezioni (4 byte) | offset sezione 1 (8 byte) | lunghezza sezione 1 (8 byte) | SHA-256 sezione 1 (32 byte) | ... | dati |
+ * </pre>
+ * Il contenuto di ogni sezione è una versione immutabile (MVCC): ogni end-edit scrive
+ * una nuova versione in uno spazio libero del file (o dopo la sua fine), ne aggiorna la
+ * voce della tabella e la pubblica atomicamente, senza mai toccare la versione corrente.
+ * Le letture (show, edit, delta) non prendono alcun lock e non fanno chiamate di sistema:
+ * ottengono l'ultima versione pubblicata come porzione della mappatura e la trattengono
+ * ({@link #read}) finché il trasferimento non è terminato ({@link Version#release()}),
+ * così che non venga mai letta a metà, né sovrascritta mentre è ancora in viaggio.
+ * Una versione superata resta valida finché qualcuno la trattiene, poi il suo spazio
+ * torna libero e viene riusato dalle versioni successive (o restituito al filesystem
+ * se si trova in fondo al file).
+ * <p>
+ * Le sezioni di almeno <strong>turing.dedup</strong> byte (default {@value #DEDUP}) non
+ * vengono scritte nel file del documento ma nell'archivio content-addressed dei blob (vedi
+ * Blobs), con offset {@value #BLOB} nella tabella: una sezione uguale a quella di un altro
+ * documento, anche di un altro autore, è salvata una sola volta. Grazie all'hash nella
+ * tabella, un end-edit che non cambia il contenuto della sezione viene riconosciuto e non
+ * scrive né pubblica nulla; se l'hash della sezione ricevuta è noto prima di scriverla,
+ * nemmeno un contenuto già presente tra i blob viene riscritto.
+ * <p>
+ * Con <strong>turing.durability=group</strong> una nuova versione viene pubblicata (e
+ * l'end-edit confermato al client) solo dopo essere stata forzata su disco: prima i dati
+ * (nel documento, oppure i nuovi blob e la loro directory), poi la voce della tabella.
+ * Le fsync sono raggruppate da un unico Thread, che attende al massimo
+ * <strong>turing.commitwindow</strong> millisecondi (default {@value #WINDOW}) dal primo
+ * commit del gruppo per raccogliere quelli concorrenti, e fa due sole fsync per ogni
+ * documento del gruppo, qualunque sia il numero di sezioni (più una per ogni nuovo blob e
+ * una sola per la directory dei blob). Con il valore di default <strong>none</strong> le
+ * versioni vengono pubblicate appena scritte, lasciando al sistema operativo il momento
+ * della scrittura su disco: i blob superati vengono cancellati solo dopo aver forzato su disco
+ * le tabelle che li hanno sostituiti (vedi {@link #force()} e Blobs).
+ * <p>
+ * Un documento mappato non tiene aperto alcun file: i file vengono aperti solo per
+ * scrivere una nuova versione. Un documento non può superare i 2GB (una mappatura).
+ * I documenti vengono caricati al primo accesso e quelli creati con una sezione per file
+ * (filename(i-N)) o con la tabella senza hash vengono convertiti.
+ * La classe è costruita attraverso l'uso del pattern Signleton.
+ *
+ * @author Stefano Spadola 534919
+ */
+
+public class SectionStore {
+
+	private static final int MAGIC = 0x54534332; //"TSC2"
+	private static final int OLD_MAGIC = 0x54534543; //"TSEC", tabella senza hash
+	private static final int HEADER = 8;
+	private static final int ENTRY = 16+Blobs.HASH;
+	private static final int OLD_ENTRY = 16;
+	/*Offset nella tabella delle sezioni salvate come blob*/
+	public static final long BLOB = -1;
+	/*Dimensione minima di default (byte) delle sezioni salvate come blob*/
+	public static final int DEDUP = 4096;
+	private static final byte[] EMPTY = Blobs.digest(ByteBuffer.allocate(0));
+
+	//Modalità di durabilità delle nuove versioni
+	public static final String NONE = "none";
+	public static final String GROUP = "group";
+	/*Attesa massima di default (millisecondi) per raccogliere un gruppo di commit*/
+	public static final int WINDOW = 2;
+	private static final int MAX_BATCH = 256;
+
+	private static SectionStore istance=null;
+	private ConcurrentMap<Long,Document> documents;
+	/*Commit in attesa di fsync (solo in modalità group)*/
+	private BlockingQueue<Commit> commits=null;
+	/*Documenti con voci di tabella non ancora forzate su disco (solo in modalità none)*/
+	private Set<Document> dirty=null;
+	private long window;
+	private long dedup;
+
+	/**
+	 * Costruttore Singleton
+	 */
+	public static synchronized SectionStore getIstance() {
+		if(istance==null)
+			istance=new SectionStore();
+		return istance;
+	}
+
+	private SectionStore() {
+		documents = new ConcurrentHashMap<Long,Document>();
+		dedup = Math.max(1, Integer.getInteger("turing.dedup", DEDUP));
+		if(System.getProperty("turing.durability", NONE).equals(GROUP)) {
+			window = TimeUnit.MILLISECONDS.toNanos(Math.max(0, Integer.getInteger("turing.commitwindow", WINDOW)));
+			commits = new LinkedBlockingQueue<Commit>();
+			Thread committer = new Thread(this::groupCommit, "SectionStore-commit");
+			committer.setDaemon(true);
+			committer.start();
+		}
+		else dirty = ConcurrentHashMap.newKeySet();
+	}
+
+	/**
+	 * Crea il file di un nuovo documento con tutte le sezioni vuote.
+	 *
+	 * @param file Percorso del documento
+	 * @param sections Numero di sezioni
+	 * @throws IOException se il file esiste già o non può essere scritto
+	 */
+	public static void create(Path file, int sections) throws IOException {
+		write(file, new ByteBuffer[sections], StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * Conta i riferimenti ai blob (vedi Blobs) dalle tabelle di tutti i documenti e
+	 * cancella i blob non più usati. Va chiamato una sola volta, all'avvio, dopo aver
+	 * ripristinato i documenti (vedi Journal) e prima di accettare client.
+	 */
+	public void recover() throws IOException {
+		long last = FilesDB.getIstance().getLastID();
+		for(long id=1; id<=last; id++) {
+			FileData fd = FilesDB.getIstance().getFileInfo(id);
+			if(fd==null) continue;
+			Path file = fd.getPath().resolve(fd.getFileName());
+			if(!Files.exists(file)) continue; //Ancora con un file per sezione
+			try(FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER);
+				while(header.hasRemaining() && fc.read(header, header.position())>0);
+				if(header.hasRemaining() || header.getInt(0)!=MAGIC) continue; //Senza hash, quindi senza blob
+				ByteBuffer table = ByteBuffer.allocate(ENTRY*header.getInt(4));
+				while(table.hasRemaining() && fc.read(table, HEADER+table.position())>0);
+				int length = table.position();
+				for(int i=0; i+ENTRY<=length; i+=ENTRY) {
+					if(table.getLong(i)!=BLOB) continue;
+					byte[] hash = new byte[Blobs.HASH];
+					table.position(i+16);
+					table.get(hash);
+					Blobs.getIstance().count(hash);
+				}
+			}
+		}
+		Blobs.getIstance().clean();
+	}
+
+	/**
+	 * Trattiene l'ultima versione pubblicata di una sezione.
+	 *
+	 * @param fileID ID del file
+	 * @param section Sezione (da 1)
+	 * @return la versione, da rilasciare con {@link Version#release()} a lettura terminata
+	 */
+	public Version read(long fileID, int section) throws IOException {
+		return open(fileID).pin(section);
+	}
+
+	/**
+	 * Trattiene l'ultima versione pubblicata di tutte le sezioni.
+	 *
+	 * @param fileID ID del file
+	 * @return le versioni, in ordine, da rilasciare a lettura terminata (vedi {@link #release(Version[])})
+	 */
+	public Version[] readAll(long fileID) throws IOException {
+		Document document = open(fileID);
+		Version[] versions = new Version[document.sections.length()];
+		for(int i=1; i<=versions.length; i++) versions[i-1]=document.pin(i);
+		return versions;
+	}
+
+	/**
+	 * @return il contenuto delle versioni (in sola lettura), in ordine
+	 */
+	public static ByteBuffer[] contents(Version[] versions) {
+		ByteBuffer[] contents = new ByteBuffer[versions.length];
+		for(int i=0; i<versions.length; i++) contents[i]=versions[i].content();
+		return contents;
+	}
+
+	/**
+	 * Rilascia tutte le versioni.
+	 */
+	public static void release(Version[] versions) {
+		for(Version v : versions) v.release();
+	}
+
+	/**
+	 * Sostituisce una sezione con il contenuto di un file (ad esempio la parte ricevuta con end-edit).
+	 *
+	 * @param fileID ID del file
+	 * @param section Sezione (da 1)
+	 * @param source File con la nuova versione (può essere cancellato appena il metodo termina)
+	 * @param committed Vedi {@link #write(long, int, long, Writer, Consumer)}
+	 */
+	public void write(long fileID, int section, Path source, Consumer<IOException> committed) throws IOException {
+		try(FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+			long size = in.size();
+			//L'hash prima di scrivere: un contenuto invariato o già salvato non viene riscritto
+			write(fileID, section, size, Blobs.digest(in), out -> {
+				long position=out.position(), n=0, t;
+				while(n<size && (t=out.transferFrom(in, position+n, size-n))>0) n+=t;
+				return n;
+			}, committed);
+		}
+	}
+
+	/**
+	 * Scrive una nuova versione di una sezione con writer e la pubblica (subito, oppure
+	 * una volta su disco se la durabilità è group): se writer fallisce, o non scrive
+	 * esattamente length byte, la sezione non cambia e si lancia l'eccezione.
+	 *
+	 * @param fileID ID del file
+	 * @param section Sezione (da 1)
+	 * @param length Lunghezza della nuova versione
+	 * @param writer Scrive la nuova versione sul canale ricevuto, dalla sua posizione corrente
+	 * @param committed Eseguita una volta pubblicata la versione (con null), o se non è stato
+	 *        possibile renderla durevole (con l'errore); anche dal Thread chiamante, prima che write termini
+	 */
+	public void write(long fileID, int section, long length, Writer writer, Consumer<IOException> committed) throws IOException {
+		write(fileID, section, length, null, writer, committed);
+	}
+
+	/*Come sopra, con l'hash della nuova versione se già noto*/
+	private void write(long fileID, int section, long length, byte[] hash, Writer writer, Consumer<IOException> committed) throws IOException {
+		Document document = open(fileID);
+		Commit commit;
+		if(dirty!=null) dirty.add(document); //Prima della voce della tabella, vedi force()
+		if(hash!=null && document.unchanged(section, hash)) commit = null;
+		else if(length>=dedup) commit = document.write(section, Blobs.getIstance().write(hash, length, writer), length, commits==null);
+		else commit = document.write(section, length, writer, commits==null);
+		if(commit==null) {//Stesso contenuto della versione corrente: nulla da pubblicare
+			System.out.println("|Sezione invariata: fileID "+fileID+" sezione "+section);
+			committed.accept(null);
+			return;
+		}
+		commit.committed = committed;
+		if(commits!=null) commits.add(commit);
+		else committed.accept(publish(commit, null));
+	}
+
+	/**
+	 * Forza su disco le tabelle dei documenti scritti con la durabilità none: quando termina,
+	 * tutte le voci scritte prima della chiamata sono su disco (vedi Blobs, che solo allora
+	 * cancella i blob che esse hanno sostituito). Con la durabilità group non fa nulla.
+	 */
+	public void force() throws IOException {
+		if(dirty==null) return;
+		ArrayList<Document> failed = new ArrayList<Document>();
+		IOException error = null;
+		for(Document document : dirty) {
+			dirty.remove(document);
+			try(FileChannel fc = FileChannel.open(document.file, StandardOpenOption.WRITE)) {
+				fc.force(false);
+			} catch(IOException e) {
+				failed.add(document);
+				error = e;
+			}
+		}
+		dirty.addAll(failed);
+		if(error!=null) throw error;
+	}
+
+	/*Pubblica una versione scritta (se error è null) oppure vi rinuncia: restituisce l'errore, null se pubblicata*/
+	private static IOException publish(Commit commit, IOException error) {
+		if(error==null) {
+			try {
+				commit.document.publish(commit);
+				return null;
+			} catch(RuntimeException e) {
+				error = new IOException("Pubblicazione fallita", e);
+			}
+		}
+		commit.document.abort(commit);
+		return error;
+	}
+
+	/**
+	 * Thread dei commit in modalità group: raccoglie i commit arrivati entro la finestra
+	 * (o durante la fsync del gruppo precedente) e li rende durevoli insieme.
+	 */
+	private void groupCommit() {
+		ArrayList<Commit> batch = new ArrayList<Commit>();
+		while(true) {
+			try {
+				batch.add(commits.take());
+				long deadline = System.nanoTime()+window;
+				long wait;
+				while(batch.size()<MAX_BATCH && (wait=deadline-System.nanoTime())>0) {
+					Commit next = commits.poll(wait, TimeUnit.NANOSECONDS);
+					if(next==null) break;
+					batch.add(next);
+				}
+				commits.drainTo(batch, MAX_BATCH-batch.size());
+			} catch(InterruptedException e) {
+				return;
+			}
+			sync(batch);
+			batch.clear();
+		}
+	}
+
+	/*Forza su disco i dati del gruppo (i nuovi blob con una sola fsync della loro directory), poi le voci della tabella, un documento alla volta*/
+	private void sync(ArrayList<Commit> batch) {
+		long start = System.nanoTime();
+		ArrayList<Blobs.Blob> blobs = new ArrayList<Blobs.Blob>();
+		for(Commit c : batch) if(c.blob!=null) blobs.add(c.blob);
+		IOException blobserror = null;
+		try {
+			Blobs.getIstance().force(blobs);
+		} catch(IOException ex) {
+			blobserror = ex;
+		}
+		LinkedHashMap<Document,ArrayList<Commit>> bydocument = new LinkedHashMap<Document,ArrayList<Commit>>();
+		for(Commit c : batch) {
+			if(c.blob!=null && blobserror!=null) c.committed.accept(publish(c, blobserror)); //Blob non durevole: la voce non va scritta
+			else bydocument.computeIfAbsent(c.document, d -> new ArrayList<Commit>()).add(c);
+		}
+		for(Map.Entry<Document,ArrayList<Commit>> e : bydocument.entrySet()) {
+			Document document = e.getKey();
+			IOException error = null;
+			try(FileChannel fc = FileChannel.open(document.file, StandardOpenOption.WRITE)) {
+				fc.force(false);
+				for(Commit c : e.getValue()) document.record(fc, c);
+				fc.force(false);
+			} catch(IOException ex) {
+				error = ex;
+			}
+			for(Commit c : e.getValue()) c.committed.accept(publish(c, error));
+		}
+		System.out.println("|Group commit: #"+batch.size()+" sezioni in #"+bydocument.size()+" documenti - "+(System.nanoTime()-start)/1000+"us");
+	}
+
+	/*Documento già caricato o caricato ora dal suo file*/
+	private Document open(long fileID) throws IOException {
+		try {
+			return documents.computeIfAbsent(fileID, id -> {
+				try {
+					return new Document(FilesDB.getIstance().getFileInfo(id));
+				} catch(IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch(UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/*Scrive un documento completo (sezioni null = vuote) e lo forza su disco*/
+	private static void write(Path file, ByteBuffer[] sections, OpenOption... options) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER+ENTRY*sections.length);
+		header.putInt(MAGIC).putInt(sections.length);
+		long position = header.capacity();
+		for(ByteBuffer s : sections) {
+			long length = s!=null ? s.remaining() : 0;
+			header.putLong(position).putLong(length).put(s!=null ? Blobs.digest(s) : EMPTY);
+			position+=length;
+		}
+		header.flip();
+		try(FileChannel fc = FileChannel.open(file, options)) {
+			while(header.hasRemaining()) fc.write(header);
+			for(ByteBuffer s : sections) {
+				if(s==null) continue;
+				ByteBuffer data = s.duplicate();
+				while(data.hasRemaining()) fc.write(data);
+			}
+			fc.force(true);
+		}
+	}
+
+	/**
+	 * Scrittura di una nuova versione di una sezione.
+	 */
+	@FunctionalInterface
+	public interface Writer {
+		/**
+		 * @param out Canale del documento, posizionato dove scrivere
+		 * @return il numero di byte scritti
+		 */
+		long writeTo(FileChannel out) throws IOException;
+	}
+
+	/**
+	 * Versione immutabile di una sezione, trattenuta dalla tabella del documento finché
+	 * è quella corrente e da ogni lettura in corso: quando nessuno la trattiene più il
+	 * suo spazio nel file torna libero.
+	 */
+	public static class Version {
+		private final Document document;
+		private final long offset;
+		private final long length;
+		private final ByteBuffer content;
+		private final byte[] hash;
+		/*Blob che contiene la versione (offset BLOB), null se è nel file del documento*/
+		private final Blobs.Blob blob;
+		/*Riferimenti: la tabella (finché è corrente) e le letture; 0 = spazio liberato*/
+		private final AtomicInteger refs = new AtomicInteger(1);
+
+		private Version(Document document, long offset, long length, ByteBuffer content, byte[] hash, Blobs.Blob blob) {
+			this.document=document;
+			this.offset=offset;
+			this.length=length;
+			this.content=content;
+			this.hash=hash;
+			this.blob=blob;
+		}
+
+		/**
+		 * @return il contenuto della versione (in sola lettura)
+		 */
+		public ByteBuffer content() {
+			return content.duplicate();
+		}
+
+		/**
+		 * @return lo SHA-256 del contenuto
+		 */
+		public byte[] getHash() {
+			return hash;
+		}
+
+		/**
+		 * @return la lunghezza del contenuto
+		 */
+		public long getLength() {
+			return length;
+		}
+
+		/**
+		 * @return il file che contiene la versione: quello del documento, o il suo blob
+		 */
+		public Path getFile() {
+			return blob!=null ? blob.getPath() : document.file;
+		}
+
+		/**
+		 * @return la posizione del contenuto nel suo file (vedi {@link #getFile()})
+		 */
+		public long getPosition() {
+			return blob!=null ? 0 : offset;
+		}
+
+		/**
+		 * Rilascia la versione trattenuta (una sola volta per ogni read).
+		 */
+		public void release() {
+			if(refs.decrementAndGet()>0) return;
+			if(blob!=null) blob.release();
+			else document.free(offset, length);
+		}
+
+		/*Trattiene la versione, se il suo spazio non è già stato liberato*/
+		private boolean pin() {
+			int r;
+			do {
+				r=refs.get();
+				if(r==0) return false;
+			} while(!refs.compareAndSet(r, r+1));
+			return true;
+		}
+	}
+
+	/*Nuova versione scritta ma non ancora pubblicata*/
+	private static class Commit {
+		private final Document document;
+		private final int section;
+		private final long offset;
+		private final long length;
+		private final byte[] hash;
+		private final Blobs.Blob blob;
+		private Consumer<IOException> committed;
+
+		Commit(Document document, int section, long offset, long length, byte[] hash, Blobs.Blob blob) {
+			this.document=document;
+			this.section=section;
+			this.offset=offset;
+			this.length=length;
+			this.hash=hash;
+			this.blob=blob;
+		}
+	}
+
+	/*Documento caricato: le letture trattengono le versioni pubblicate, le scritture sono sincronizzate*/
+	private static class Document {
+		private final Path file;
+		private final AtomicReferenceArray<Version> sections;
+		/*Mappatura corrente, spazi liberi (offset -> lunghezza) e fine del file: accesso sincronizzato*/
+		private MappedByteBuffer map;
+		private TreeMap<Long,Long> free = new TreeMap<Long,Long>();
+		private long end;
+		/*Versioni scritte e non ancora pubblicate, per sezione*/
+		private int[] pending;
+
+		Document(FileData fd) throws IOException {
+			file = fd.getPath().resolve(fd.getFileName());
+			if(!Files.exists(file)) convert(fd);
+			map();
+			if(end>=HEADER && map.getInt(0)==OLD_MAGIC) {
+				upgrade();
+				map();
+			}
+			if(end<HEADER || map.getInt(0)!=MAGIC) throw new IOException("Documento non valido: "+file);
+			int n = map.getInt(4);
+			sections = new AtomicReferenceArray<Version>(n);
+			pending = new int[n];
+			TreeMap<Long,Long> used = new TreeMap<Long,Long>();
+			for(int i=0; i<n; i++) {
+				long offset = map.getLong(HEADER+ENTRY*i);
+				long length = map.getLong(HEADER+ENTRY*i+8);
+				byte[] hash = new byte[Blobs.HASH];
+				ByteBuffer entry = map.duplicate();
+				entry.position(HEADER+ENTRY*i+16);
+				entry.get(hash);
+				if(offset==BLOB) {//Il riferimento contato all'avvio passa alla versione
+					Blobs.Blob blob = Blobs.getIstance().adopt(hash, length);
+					sections.set(i, new Version(this, BLOB, length, blob.content(), hash, blob));
+					continue;
+				}
+				if(offset<0 || length<0 || offset+length>end) throw new IOException("Documento non valido: "+file);
+				sections.set(i, version(offset, length, hash));
+				if(length>0) used.put(offset, length);
+			}
+			//Lo spazio non occupato dalle versioni correnti è libero
+			long position = HEADER+(long)ENTRY*n;
+			for(Map.Entry<Long,Long> e : used.entrySet()) {
+				if(e.getKey()>position) free.put(position, e.getKey()-position);
+				position = Math.max(position, e.getKey()+e.getValue());
+			}
+			if(end>position) free.put(position, end-position);
+		}
+
+		/*Mappa tutto il file*/
+		private void map() throws IOException {
+			try(FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+				if(fc.size()>Integer.MAX_VALUE) throw new IOException("Documento troppo grande");
+				map = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+				end = fc.size();
+			}
+		}
+
+		/*Converte un documento salvato con un file per sezione*/
+		private void convert(FileData fd) throws IOException {
+			int n = fd.getNumberOfSections();
+			ByteBuffer[] sections = new ByteBuffer[n];
+			Path[] legacy = new Path[n];
+			for(int i=1; i<=n; i++) {
+				legacy[i-1] = fd.getPath().resolve(fd.getFileName()+"("+i+"-"+n+")");
+				if(Files.exists(legacy[i-1])) sections[i-1]=ByteBuffer.wrap(Files.readAllBytes(legacy[i-1]));
+			}
+			replace(sections);
+			for(Path p : legacy) Files.deleteIfExists(p);
+			System.out.println("|Documento convertito in un unico file: "+file);
+		}
+
+		/*Riscrive un documento salvato con la tabella senza hash*/
+		private void upgrade() throws IOException {
+			int n = map.getInt(4);
+			ByteBuffer[] sections = new ByteBuffer[n];
+			for(int i=0; i<n; i++) {
+				long offset = map.getLong(HEADER+OLD_ENTRY*i);
+				long length = map.getLong(HEADER+OLD_ENTRY*i+8);
+				if(offset<0 || length<0 || offset+length>end) throw new IOException("Documento non valido: "+file);
+				sections[i] = content(offset, length);
+			}
+			replace(sections);
+			System.out.println("|Documento convertito con gli hash delle sezioni: "+file);
+		}
+
+		/*Sostituisce atomicamente il file con un documento completo*/
+		private void replace(ByteBuffer[] sections) throws IOException {
+			Path temp = file.resolveSibling(file.getFileName()+".tmp");
+			SectionStore.write(temp, sections, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+		}
+
+		/*Porzione [offset, offset+length) della mappatura corrente*/
+		private ByteBuffer content(long offset, long length) {
+			ByteBuffer content = map.duplicate();
+			content.position((int)offset);
+			content.limit((int)(offset+length));
+			return content.slice();
+		}
+
+		/*Versione che occupa [offset, offset+length) della mappatura corrente*/
+		private Version version(long offset, long length, byte[] hash) {
+			return new Version(this, offset, length, content(offset, length), hash, null);
+		}
+
+		Version pin(int section) {
+			while(true) {
+				Version v = sections.get(section-1);
+				if(v.pin()) return v;
+				//Superata e già liberata: si rilegge quella corrente
+			}
+		}
+
+		/*true se la sezione ha già il contenuto con questo hash, e nessuna versione in attesa*/
+		synchronized boolean unchanged(int section, byte[] hash) {
+			return pending[section-1]==0 && Arrays.equals(sections.get(section-1).hash, hash);
+		}
+
+		/**
+		 * Scrive una nuova versione in uno spazio libero, che nessuno sta leggendo
+		 * (e, se record, anche la voce della tabella), senza pubblicarla.
+		 *
+		 * @return la versione da pubblicare, null se uguale a quella corrente
+		 */
+		synchronized Commit write(int section, long length, Writer writer, boolean record) throws IOException {
+			long position = allocate(length);
+			if(position+length>Integer.MAX_VALUE) {
+				free(position, length);
+				throw new IOException("Documento troppo grande");
+			}
+			Commit commit;
+			try(FileChannel fc = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				fc.position(position);
+				try {
+					if(writer.writeTo(fc)!=length) throw new IOException("Sezione incompleta");
+					//Se il file è cresciuto, una nuova mappatura (le versioni precedenti restano sulla loro)
+					if(position+length>map.capacity()) map = fc.map(FileChannel.MapMode.READ_ONLY, 0, end);
+					commit = new Commit(this, section, position, length, Blobs.digest(content(position, length)), null);
+					if(unchanged(section, commit.hash)) {
+						free(position, length);
+						return null;
+					}
+					if(record) record(fc, commit);
+				} catch(IOException e) {
+					free(position, length);
+					throw e;
+				}
+			}
+			pending[section-1]++;
+			return commit;
+		}
+
+		/**
+		 * Come sopra, per una versione salvata come blob (il riferimento passa alla versione).
+		 */
+		synchronized Commit write(int section, Blobs.Blob blob, long length, boolean record) throws IOException {
+			if(unchanged(section, blob.getHash())) {
+				blob.release();
+				return null;
+			}
+			Commit commit = new Commit(this, section, BLOB, length, blob.getHash(), blob);
+			if(record) {
+				try(FileChannel fc = FileChannel.open(file, StandardOpenOption.WRITE)) {
+					record(fc, commit);
+				} catch(IOException e) {
+					blob.release();
+					throw e;
+				}
+			}
+			pending[section-1]++;
+			return commit;
+		}
+
+		/*Scrive la voce della tabella di una nuova versione*/
+		void record(FileChannel fc, Commit commit) throws IOException {
+			ByteBuffer entry = ByteBuffer.allocate(ENTRY);
+			entry.putLong(commit.offset).putLong(commit.length).put(commit.hash).flip();
+			while(entry.hasRemaining()) fc.write(entry, HEADER+ENTRY*(commit.section-1)+entry.position());
+		}
+
+		/*Pubblica la nuova versione e rilascia quella superata*/
+		synchronized void publish(Commit commit) {
+			Version version = commit.blob!=null ?
+					new Version(this, BLOB, commit.length, commit.blob.content(), commit.hash, commit.blob) :
+					version(commit.offset, commit.length, commit.hash);
+			Version superseded = sections.getAndSet(commit.section-1, version);
+			superseded.release();
+			pending[commit.section-1]--;
+		}
+
+		/*Rinuncia ad una versione scritta ma non pubblicabile*/
+		synchronized void abort(Commit commit) {
+			if(commit.blob!=null) commit.blob.release();
+			else free(commit.offset, commit.length);
+			pending[commit.section-1]--;
+		}
+
+		/*Spazio per una nuova versione: il primo spazio libero sufficiente, altrimenti in fondo al file*/
+		private long allocate(long length) {
+			if(length==0) return HEADER;
+			for(Map.Entry<Long,Long> e : free.entrySet()) {
+				//La entry non va letta dopo remove (TreeMap vi copia quella successiva)
+				long position = e.getKey(), size = e.getValue();
+				if(size>=length) {
+					free.remove(position);
+					if(size>length) free.put(position+length, size-length);
+					return position;
+				}
+			}
+			long position = end;
+			end+=length;
+			return position;
+		}
+
+		/*Restituisce uno spazio non più trattenuto, unendolo agli spazi liberi vicini*/
+		synchronized void free(long offset, long length) {
+			if(length==0) return;
+			Map.Entry<Long,Long> before = free.floorEntry(offset);
+			if(before!=null && before.getKey()+before.getValue()==offset) {
+				free.remove(before.getKey());
+				offset = before.getKey();
+				length += before.getValue();
+			}
+			Long after = free.get(offset+length);
+			if(after!=null) {
+				free.remove(offset+length);
+				length += after;
+			}
+			if(offset+length<end) {
+				free.put(offset, length);
+				return;
+			}
+			//In fondo al file: lo si restituisce al filesystem
+			try(FileChannel fc = FileChannel.open(file, StandardOpenOption.WRITE)) {
+				fc.truncate(offset);
+				end = offset;
+			} catch(IOException e) {
+				free.put(offset, length);
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,183 @@
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Connessione non bloccante gestita da un EventLoop.
+ * Passa alla ClientSession i byte letti dal socket e accoda le risposte,
+ * che vengono inviate quando il socket è pronto in scrittura.
+ * Tutti i metodi devono essere invocati dal Thread dell'EventLoop.
+ *
+ * @author Stefano Spadola 534919
+ */
+
+public class SelectorConnection implements SessionOutput {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private SocketChannel clientsocket;
+	private SocketAddress remote;
+	private SelectionKey key;
+	private EventLoop loop;
+	private ClientSession session;
+
+	private ByteBuffer buffer;
+	private boolean stalled=false; //Byte rimasti nel buffer mentre la sessione era sospesa
+	private Deque<Outbound> outq = new ArrayDeque<Outbound>();
+	private boolean closing=false;
+
+	public SelectorConnection(SocketChannel client, EventLoop loop) {
+		this.clientsocket=client;
+		this.remote=client.socket().getRemoteSocketAddress();
+		this.loop=loop;
+		this.buffer=ByteBuffer.allocate(BUFFER_SIZE);
+		this.session=new ClientSession(this);
+	}
+
+	void setKey(SelectionKey key) {this.key=key;}
+
+	/**
+	 * Legge i byte disponibili e li passa alla sessione.
+	 * Mentre la sessione è sospesa (vedi ClientSession.isSuspended) non si legge dal socket.
+	 */
+	void onReadable() throws IOException {
+		if(stalled) {
+			flush();
+			return;
+		}
+		if(clientsocket.read(buffer)<0) {
+			System.out.println("#Il client si è disconnesso in maniera anomala...");
+			System.out.println("#Ripristino delle strutture dati...");
+			abort();
+			return;
+		}
+		if(receive()) flush();
+	}
+
+	/**
+	 * Passa alla sessione i byte nel buffer; quelli non consumati perché la sessione
+	 * è sospesa vi restano, finché un'operazione eseguita con execute non la riprende.
+	 *
+	 * @return false se la connessione è stata chiusa
+	 */
+	private boolean receive() throws IOException {
+		buffer.flip();
+		session.feed(buffer);
+		buffer.compact();
+		stalled=session.isSuspended();
+
+		if(!stalled && !buffer.hasRemaining()) {//Frame troppo lungo
+			System.out.println("###FATAL ERROR: Message too long.");
+			abort();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Invia quanto più possibile della coda di uscita senza bloccare.
+	 * Se il socket non accetta altri byte si attende che torni scrivibile.
+	 */
+	void flush() throws IOException {
+		if(!clientsocket.isOpen()) return;
+		while(!outq.isEmpty()) {
+			Outbound o = outq.peek();
+			if(!o.writeTo(clientsocket)) {//Socket pieno
+				key.interestOps((stalled ? 0 : SelectionKey.OP_READ) | SelectionKey.OP_WRITE);
+				return;
+			}
+			outq.poll().done();
+		}
+		key.interestOps(stalled ? 0 : SelectionKey.OP_READ);
+		if(closing) closeNow();
+	}
+
+	/**
+	 * Chiusura anomala: si ripristinano le strutture dati e si chiude.
+	 */
+	void abort() {
+		session.recoverAndTerminate();
+		while(!outq.isEmpty()) outq.poll().done();
+		closeNow();
+	}
+
+	private void closeNow() {
+		while(!outq.isEmpty()) outq.poll().done();
+		key.cancel();
+		try {
+			clientsocket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void send(int id, Object message) {
+		outq.add(new Outbound(Protocol.text(id, message)));
+	}
+
+	@Override
+	public void write(ByteBuffer[] frames) {
+		outq.add(new Outbound(frames));
+	}
+
+	@Override
+	public void write(ByteBuffer[] frames, Runnable sent) {
+		Outbound o = new Outbound(frames);
+		o.sent = sent;
+		outq.add(o);
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		loop.execute(() -> {
+			try {
+				task.run();
+				if(stalled && !session.isSuspended() && !receive()) return; //Il disco ha recuperato
+				flush();
+			} catch(IOException | RuntimeException e) {
+				System.out.println("###FATAL ERROR: Client closed connection or an errorappeared.");
+				abort();
+			}
+		});
+	}
+
+	@Override
+	public SocketAddress getRemoteAddress() {
+		return remote;
+	}
+
+	@Override
+	public void close() {
+		closing=true;
+	}
+
+	/*Elemento della coda di uscita: dei buffer da inviare con una scrittura gathering*/
+	private static class Outbound {
+		private ByteBuffer[] data;
+		private int first=0;
+		private Runnable sent;
+
+		Outbound(ByteBuffer... data) {
+			this.data=data;
+		}
+
+		/**
+		 * @return true se l'elemento è stato inviato completamente
+		 */
+		boolean writeTo(SocketChannel socket) throws IOException {
+			socket.write(data, first, data.length-first);
+			while(first<data.length && !data[first].hasRemaining()) first++;
+			return first==data.length;
+		}
+
+		/*Inviato o scartato: i buffer non servono più*/
+		void done() {
+			if(sent!=null) sent.run();
+		}
+	}
+}
@@ -1,7 +1,7 @@
 import java.io.*;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.rmi.RemoteException;
@@ -18,6 +18,15 @@ import java.util.concurrent.*;
  * attraverso il lancio di un Thread che gestisce ogni client
  * in maniera autonoma e coordinata con gli altri gestori, il tutto
  * sorvegliato da un newFixedThreadPool.
+ * <p>
+ * In alternativa (avviando il server con <strong>java Server selector</strong>)
+ * le connessioni vengono multiplexate da pochi EventLoop non bloccanti,
+ * uno per processore, così che gli utenti inattivi non occupino alcun Thread.
+ * Con <strong>java Server virtual</strong> ogni ClientHandler viene invece
+ * eseguito su un proprio Virtual Thread (Java 21+).
+ * <p>
+ * Le connessioni oltre il limite di Admission vengono rifiutate subito
+ * con un codice di errore, invece di restare in coda dietro al pool.
  * 
  * @author Stefano Spadola 534919 
  */
@@ -25,10 +34,23 @@ import java.util.concurrent.*;
 public class Server {
 	
 	private static final int PORT = 6666;
-	private static InetAddress address = null;
+	private static final int POOL_SIZE = 100;
+	private static final int EVENT_LOOPS = Runtime.getRuntime().availableProcessors();
+
+	//Modalità di gestione delle connessioni
+	private static final String POOL_MODE = "pool";
+	private static final String SELECTOR_MODE = "selector";
+	private static final String VIRTUAL_MODE = "virtual";
 
 	public static void main(String[] args) {
 		
+		String mode = POOL_MODE;
+		if(args.length>0) mode=args[0];
+		if(!mode.equals(POOL_MODE) && !mode.equals(SELECTOR_MODE) && !mode.equals(VIRTUAL_MODE)) {
+			System.out.println("usage: java Server ["+POOL_MODE+"|"+SELECTOR_MODE+"|"+VIRTUAL_MODE+"]");
+			return;
+		}
+		
 		//Fase di bootstrap
 		bootStrap();
 		
@@ -51,7 +73,7 @@ public class Server {
 		 * via SocketChannel in entrata, è la parte princiapale del Server.
 		 */
 		try {
-			tcpDeamon();
+			tcpDeamon(mode);
 		} catch (IOException e1) {
 			// TODO Auto-generated catch block
 			e1.printStackTrace();
@@ -67,6 +89,24 @@ public class Server {
 		/* 1) Si costruiscono le strutture per gli utenti e i file(forzo i singleton)*/
 		UsersDB.getIstance();
 		FilesDB.getIstance();
+		
+		/* 2) Si ripristinano utenti e documenti dal journal*/
+		try {
+			Journal.getIstance().recover();
+		} catch (IOException e) {
+			System.out.println("#SERVER ERROR: Impossibile ripristinare il journal");
+			e.printStackTrace();
+			System.exit(1);
+		}
+		
+		/* 3) Si contano i riferimenti ai contenuti condivisi delle sezioni (vedi Blobs)*/
+		try {
+			SectionStore.getIstance().recover();
+		} catch (IOException e) {
+			System.out.println("#SERVER ERROR: Impossibile caricare l'archivio delle sezioni");
+			e.printStackTrace();
+			System.exit(1);
+		}
 	}
 	
 	//private static void shutDown() {}
@@ -76,22 +116,70 @@ public class Server {
 	 * Una volta instaurata una nuova connessione, gli si
 	 * dedica un Thread responsabile a soddisfare tutte le richieste
 	 * del client. Ogni thread viene associato ad un FixedThreadPool. 
+	 * In modalità selector la connessione viene invece affidata, a turno,
+	 * ad uno degli EventLoop, mentre in modalità virtual ogni thread
+	 * è un Virtual Thread.
+	 * Prima di essere affidata, ogni connessione deve essere ammessa da
+	 * Admission: in modalità pool il limite di default è la dimensione del
+	 * pool, così che nessuna connessione resti in attesa di un Thread libero.
+	 * Le operazioni che altri Thread richiedono ad un ClientHandler fermo in
+	 * lettura vengono eseguite da un CachedThreadPool (in modalità virtual
+	 * da Virtual Thread), vedi ClientHandler.execute.
+	 * 
+	 * @param mode Modalità di gestione delle connessioni (pool, selector o virtual)
 	 */
-	private static void tcpDeamon() throws IOException {
+	private static void tcpDeamon(String mode) throws IOException {
 		ExecutorService ex = null;
+		//Operazioni richieste da altri Thread mentre un ClientHandler è fermo in lettura
+		ExecutorService tasks = null;
+		EventLoop[] loops = null;
+		int next = 0;
 		try(ServerSocketChannel server = ServerSocketChannel.open()){
 			server.bind(new InetSocketAddress(InetAddress.getLocalHost(),PORT));
-			ex = Executors.newFixedThreadPool(100);
+			if(mode.equals(SELECTOR_MODE)) {
+				loops = new EventLoop[EVENT_LOOPS];
+				for(int i=0; i<loops.length; i++) {
+					loops[i] = new EventLoop();
+					new Thread(loops[i], "EventLoop-"+i).start();
+				}
+				System.out.println("Connessioni gestite da #"+loops.length+" EventLoop");
+			}
+			else if(mode.equals(VIRTUAL_MODE)) tasks = ex = newVirtualThreadExecutor();
+			else {
+				ex = Executors.newFixedThreadPool(POOL_SIZE);
+				tasks = Executors.newCachedThreadPool();
+			}
+			Admission.getIstance().setMaxConnections(mode.equals(POOL_MODE) ? POOL_SIZE : Admission.CONNECTIONS);
+			System.out.println("Connessioni contemporanee ammesse: "+Admission.getIstance().getMaxConnections());
 			//Si rimane in ascolto per nuove connessioni (manca un exit point)
 			while(true) {
+				SocketChannel client=null;
+				boolean admitted=false;
 				try {
-					SocketChannel client=server.accept();
-					client.configureBlocking(true);
-					ClientHandler ch = new ClientHandler(client);
-					ex.execute(ch);
-				}catch(IOException e ) {
+					client=server.accept();
+					//Le risposte sono già raggruppate in scritture gathering: niente attese di Nagle
+					client.socket().setTcpNoDelay(true);
+					if(!Admission.getIstance().connect()) {
+						reject(client);
+						continue;
+					}
+					admitted=true;
+					if(loops!=null) {
+						client.configureBlocking(false);
+						loops[next].register(client);
+						next=(next+1)%loops.length;
+					}
+					else {
+						client.configureBlocking(true);
+						ClientHandler ch = new ClientHandler(client, tasks);
+						ex.execute(ch);
+					}
+				}catch(IOException | RuntimeException e ) {
 					e.printStackTrace();
 					System.out.println("#SERVER ERROR: Impossibile accetare Client");
+					//Connessione non affidata a nessun gestore: si libera il posto e si chiude
+					if(admitted) Admission.getIstance().disconnect();
+					if(client!=null) close(client);
 				}
 			}			
 		}catch(IOException e ) {
@@ -101,42 +189,48 @@ public class Server {
 	}
 	
 	/**
-	 * Funzione che genera indirizzi Multicast UDP da assegnare ai file.
-	 * Ogni indirizzo viene generato in modo sequenziale, e il metodo viene accesso
-	 * in maniera sincornizzata per eviare situazioni di inconsistenza.
-	 * WARNING: L'attuale implementazione non permette di assegnare più di
-	 * 16581375 indirizzi multicast UDP in una rete locale.
-	 * (Andrebbe implementato un riassegnamento degli indirizzi non utilizzati. 
-	 */	
-	public static synchronized InetAddress getFreeInetAddress() {	
-		
+	 * Rifiuta una connessione oltre il limite: si invia il codice BUSY_ERROR
+	 * (letto dal client come risposta al login) e si chiude.
+	 * 
+	 * @param client Connessione appena accettata
+	 */
+	private static void reject(SocketChannel client) {
+		System.out.println("#Connessione rifiutata (server al completo): "+client.socket().getRemoteSocketAddress());
 		try {
-			if(address==null) address=InetAddress.getByName("239.0.0.0");
-			else {
-				String a = address.getHostAddress();
-				System.out.println(a);
-				String splitted[] = a.split("\\.");
-				Integer pt1=Integer.parseInt(splitted[0]);
-				Integer pt2=Integer.parseInt(splitted[1]);
-				Integer pt3=Integer.parseInt(splitted[2]);
-				Integer pt4=Integer.parseInt(splitted[3]);
-				
-				if((pt4=(pt4+1)%256)==0) {
-					if((pt3=(pt3+1)%256)==0) {
-						if((pt2=(pt2+1)%256)==0) {
-							if((pt1=(pt1+1)%256)==240)
-								return null;
-						}
-					}
-				}
-
-				address=InetAddress.getByName(pt1+"."+pt2+"."+pt3+"."+pt4);
-				System.out.println(address);
-			}
-		} catch (UnknownHostException e) {
+			ByteBuffer frame = Protocol.text(0, Admission.BUSY_ERROR);
+			while(frame.hasRemaining()) client.write(frame);
+			client.close();
+		} catch(IOException e) {/*Il client si è già disconnesso*/}
+	}
+	
+	/**
+	 * Chiude una connessione appena accettata che non è stato possibile affidare.
+	 * 
+	 * @param client Connessione da chiudere
+	 */
+	static void close(SocketChannel client) {
+		try {
+			client.close();
+		} catch(IOException e) {
 			e.printStackTrace();
 		}
-		return address;
+	}
+	
+	/**
+	 * Crea un Executor che lancia ogni task su un nuovo Virtual Thread.
+	 * Il metodo (Java 21+) viene cercato via reflection così che il server
+	 * resti compilabile con JDK precedenti: in quel caso si ripiega su
+	 * un CachedThreadPool di Thread di piattaforma.
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			ExecutorService ex = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			System.out.println("Connessioni gestite da Virtual Thread");
+			return ex;
+		} catch (ReflectiveOperationException e) {
+			System.out.println("#WARNING: Virtual Thread non supportati da questa JVM, si usa un CachedThreadPool");
+			return Executors.newCachedThreadPool();
+		}
 	}
 
 }
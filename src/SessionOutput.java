@@ -0,0 +1,62 @@
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Interfaccia con cui una ClientSession risponde al proprio client.
+ * Viene implementata dal trasporto che guida la sessione:
+ * in modo bloccante da ClientHandler, in modo non bloccante
+ * dalle connessioni gestite da un EventLoop.
+ *
+ * @author Stefano Spadola 534919
+ */
+
+public interface SessionOutput {
+
+	/**
+	 * Invia un messaggio testuale al client (frame TEXT).
+	 *
+	 * @param id Id della richiesta a cui si risponde
+	 * @param message Messaggio da inviare (ne viene inviata la rappresentazione testuale)
+	 */
+	public void send(int id, Object message) throws IOException;
+
+	/**
+	 * Invia dei frame già costruiti (vedi Protocol) con scritture gathering.
+	 *
+	 * @param frames Buffer da inviare, in ordine
+	 */
+	public void write(ByteBuffer[] frames) throws IOException;
+
+	/**
+	 * Come {@link #write(ByteBuffer[])}, ma esegue sent quando i buffer non servono più:
+	 * una volta inviati, oppure alla chiusura della connessione. Serve a riutilizzare
+	 * i blocchi delle sezioni lette dal disco solo quando non sono più in viaggio (vedi SectionIO).
+	 *
+	 * @param frames Buffer da inviare, in ordine
+	 * @param sent Azione eseguita una sola volta, anche se l'invio fallisce
+	 */
+	public void write(ByteBuffer[] frames, Runnable sent) throws IOException;
+
+	/**
+	 * Esegue un'operazione sulla sessione per conto di un altro Thread (ad esempio
+	 * la concessione di una sezione attesa), senza che si sovrapponga ai byte ricevuti.
+	 * L'operazione viene eseguita più tardi da un Thread del trasporto che guida la sessione,
+	 * mai dal chiamante, che non resta quindi bloccato sulle scritture verso il client; viene
+	 * eseguita anche se nel frattempo la sessione è terminata, così che possa rilasciare
+	 * ciò che ha ricevuto.
+	 *
+	 * @param task Operazione da eseguire
+	 */
+	public void execute(Runnable task);
+
+	/**
+	 * @return l'indirizzo remoto del client
+	 */
+	public SocketAddress getRemoteAddress();
+
+	/**
+	 * Chiude la connessione con il client (dopo aver inviato i messaggi in sospeso).
+	 */
+	public void close();
+}
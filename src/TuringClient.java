@@ -0,0 +1,543 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Inflater;
+
+/**
+ * Libreria client programmatica per TURING, pensata per automazioni
+ * e strumenti di massa (a differenza del Client a riga di comando).
+ * <p>
+ * Ogni operazione invia subito la propria richiesta e restituisce una
+ * <strong>CompletableFuture</strong> senza attendere la risposta: più richieste
+ * possono essere in corso sulla stessa connessione (pipeline), e un Thread di
+ * ricezione associa ogni frame di risposta alla sua richiesta attraverso l'id
+ * che il server riporta (vedi Protocol).
+ * <p>
+ * I documenti vengono scelti per autore: la scelta (frame PICK) viene inviata
+ * insieme al comando, così che anche show ed edit non richiedano un giro
+ * di andata e ritorno in più. Le risposte di errore completano la future
+ * con una {@link ReplyException} che riporta il codice del server; gli errori di
+ * concorrenza (-8) non vengono ritentati automaticamente, così come le richieste
+ * rifiutate perché oltre i limiti dell'utente (-5, vedi Admission). Se il server
+ * è al completo il login viene completato con -4 e la connessione chiusa.
+ * <p>
+ * Al login viene proposta la compressione dei trasferimenti (vedi Compression),
+ * disattivabile con {@link #setCompression(boolean)}. Con end-edit la sezione
+ * viene inviata, quando conviene, come differenza rispetto alla versione ricevuta
+ * con edit (vedi Delta). Se la connessione cade durante l'upload, basta collegarsi
+ * con un nuovo TuringClient, rieffettuare il login entro PendingUploads.TIMEOUT
+ * secondi e ripetere endEdit: l'invio riprende dall'ultimo byte confermato dal server.
+ * Tra edit ed endEdit un Thread invia periodicamente un frame PING che rinnova il lease
+ * della sezione (vedi Leases). La sezione di endEdit viene calcolata (delta, compressione)
+ * e inviata da un Thread di scrittura, così che il Thread di ricezione continui a
+ * completare le risposte delle altre richieste durante l'upload.
+ *
+ * @author Stefano Spadola 534919
+ */
+
+public class TuringClient implements Closeable {
+
+	private static final int PORT = 6666;
+	private static final int SHARE_REQUEST=-6;
+
+	private SocketChannel socket;
+	private Object writelock = new Object();
+	private AtomicInteger nextid = new AtomicInteger(0);
+	private ConcurrentMap<Integer, Call<?>> calls = new ConcurrentHashMap<Integer, Call<?>>();
+	private volatile Runnable sharelistener = null;
+	private volatile boolean offercompression = true;
+	private volatile boolean compression = false; //Accettata dal server
+	private volatile ByteBuffer editbase = null; //Sezione ricevuta con l'ultimo edit
+	private volatile boolean editing = false; //Sezione bloccata da edit (lease da rinnovare)
+	private ExecutorService writer; //Invio delle sezioni di endEdit
+
+	/**
+	 * Si collega al server TURING locale.
+	 */
+	public TuringClient() throws IOException {
+		this(new InetSocketAddress(InetAddress.getLocalHost(), PORT));
+	}
+
+	/**
+	 * Si collega ad un server TURING.
+	 *
+	 * @param address Indirizzo del server
+	 */
+	public TuringClient(InetSocketAddress address) throws IOException {
+		socket = SocketChannel.open(address);
+		Thread receiver = new Thread(this::receive, "TuringClient-receiver");
+		receiver.setDaemon(true);
+		receiver.start();
+		Thread heartbeat = new Thread(this::heartbeat, "TuringClient-heartbeat");
+		heartbeat.setDaemon(true);
+		heartbeat.start();
+		writer = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "TuringClient-writer");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Registra un'azione da eseguire quando il server notifica nuovi inviti
+	 * di condivisione (eseguita dal Thread di ricezione).
+	 */
+	public void onShareRequest(Runnable listener) {
+		this.sharelistener=listener;
+	}
+
+	/**
+	 * Abilita o disabilita la proposta di compressione dei trasferimenti
+	 * (ha effetto sul login successivo).
+	 */
+	public void setCompression(boolean enabled) {
+		this.offercompression=enabled;
+	}
+
+	/**
+	 * @return true se il server ha accettato la compressione al login
+	 */
+	public boolean isCompressing() {return this.compression;}
+
+	/**
+	 * @return 0 on Success || -1 Password sbagliata || -2 L'user non esiste || -3 L'utente è già loggato
+	 */
+	public CompletableFuture<Integer> login(String user, String password) {
+		String command="login "+user+" "+password;
+		if(offercompression) command+=" "+Compression.CAPABILITY;
+		return submit(new LoginCall(), command, null);
+	}
+
+	public CompletableFuture<Integer> logout() {
+		return submit(new CodeCall(), "logout", null);
+	}
+
+	/**
+	 * @return 0 on Success || -1 Se il file esiste già
+	 */
+	public CompletableFuture<Integer> create(String doc, int sections) {
+		return submit(new CodeCall(), "create "+doc+" "+sections, null);
+	}
+
+	/**
+	 * @return 0 on Success || -1 L'user non esiste || -2 Già condiviso || -3 File non esistente
+	 */
+	public CompletableFuture<Integer> share(String doc, String user) {
+		return submit(new CodeCall(), "share "+doc+" "+user, null);
+	}
+
+	/**
+	 * @return le informazioni di ogni documento accessibile (una riga per campo)
+	 */
+	public CompletableFuture<List<String>> list() {
+		return submit(new ListCall(), "list", null);
+	}
+
+	/**
+	 * Scarica una sezione di un documento.
+	 *
+	 * @param doc Nome del documento
+	 * @param author Autore del documento
+	 * @param section Sezione da scaricare (a partire da 1)
+	 * @return il contenuto della sezione
+	 */
+	public CompletableFuture<ByteBuffer> show(String doc, String author, int section) {
+		return submit(new FetchCall(false), "show "+doc+" "+section, author).thenApply(s -> s[0]);
+	}
+
+	/**
+	 * Scarica un intero documento in un'unica risposta.
+	 *
+	 * @param doc Nome del documento
+	 * @param author Autore del documento
+	 * @return il contenuto di ogni sezione, in ordine
+	 */
+	public CompletableFuture<ByteBuffer[]> show(String doc, String author) {
+		return submit(new FetchCall(false), "show "+doc, author);
+	}
+
+	/**
+	 * Blocca una sezione in modifica e ne scarica il contenuto.
+	 * La chat della sezione non viene gestita dalla libreria.
+	 *
+	 * @return il contenuto della sezione
+	 */
+	public CompletableFuture<ByteBuffer> edit(String doc, String author, int section) {
+		return submit(new FetchCall(true), "edit "+doc+" "+section, author).thenApply(s -> s[0]);
+	}
+
+	/**
+	 * Come {@link #edit(String, String, int)}, ma se la sezione è bloccata si mette in coda:
+	 * la future viene completata quando la sezione passa a questo utente (in ordine di arrivo)
+	 * o, con il codice -2, allo scadere dell'attesa.
+	 *
+	 * @param wait Secondi di attesa massima (al massimo Leases.MAX_WAIT)
+	 * @return il contenuto della sezione
+	 */
+	public CompletableFuture<ByteBuffer> edit(String doc, String author, int section, int wait) {
+		return submit(new FetchCall(true), "edit "+doc+" "+section+" "+wait, author).thenApply(s -> s[0]);
+	}
+
+	/**
+	 * Termina la modifica in corso caricando il nuovo contenuto della sezione.
+	 * La future viene completata quando il server conferma di aver ricevuto
+	 * l'intera sezione (ACK finale, con verifica del CRC32).
+	 *
+	 * @param content Nuovo contenuto della sezione
+	 * @return il numero di sezioni del documento, -2 se il lease è scaduto (la sezione non è stata salvata)
+	 */
+	public CompletableFuture<Integer> endEdit(ByteBuffer content) {
+		UploadCall call = new UploadCall(content, editbase);
+		editbase=null;
+		editing=false;
+		return submit(call, "end-edit", null);
+	}
+
+	@Override
+	public void close() throws IOException {
+		writer.shutdownNow();
+		socket.close();
+	}
+
+	/**
+	 * Invia una richiesta (ed eventualmente la scelta del file) con un nuovo id.
+	 */
+	private <T> CompletableFuture<T> submit(Call<T> call, String command, String author) {
+		int id = nextid.incrementAndGet();
+		call.id=id;
+		calls.put(id, call);
+		try {
+			synchronized(writelock) {
+				if(author==null) Protocol.write(socket, Protocol.text(id, command));
+				else Protocol.write(socket, Protocol.text(id, command), Protocol.pick(id, author));
+			}
+		} catch(IOException e) {
+			calls.remove(id);
+			call.future.completeExceptionally(e);
+		}
+		return call.future;
+	}
+
+	/**
+	 * Main del Thread che rinnova il lease della sezione bloccata da edit.
+	 */
+	private void heartbeat() {
+		try {
+			while(socket.isOpen()) {
+				Thread.sleep(Protocol.HEARTBEAT*1000L);
+				if(editing) {
+					synchronized(writelock) {
+						Protocol.write(socket, Protocol.ping());
+					}
+				}
+			}
+		} catch(InterruptedException | IOException e) {/*Connessione chiusa*/}
+	}
+
+	/**
+	 * Main del Thread di ricezione: legge i frame e li passa alla richiesta con lo stesso id.
+	 */
+	private void receive() {
+		ByteBuffer header = ByteBuffer.allocate(Protocol.HEADER_SIZE);
+		try {
+			while(true) {
+				header.clear();
+				Protocol.readFully(socket, header);
+				byte opcode = header.get();
+				int id = header.getInt();
+				ByteBuffer payload = ByteBuffer.allocate(header.getInt());
+				Protocol.readFully(socket, payload);
+
+				//Notifica di nuovi inviti di condivisione, non legata ad alcuna richiesta
+				if(opcode==Protocol.NOTIFY) {
+					Runnable listener = sharelistener;
+					if(listener!=null && code(payload)==SHARE_REQUEST) listener.run();
+					continue;
+				}
+
+				//Id 0: connessione rifiutata dal server (vedi Admission), vale come risposta al login
+				if(id==0) id=1;
+				Call<?> call = calls.get(id);
+				if(call==null) continue;
+				boolean done;
+				try {
+					done=call.handle(opcode, payload);
+				} catch(IOException | RuntimeException e) {
+					call.future.completeExceptionally(e);
+					done=true;
+				}
+				if(done) calls.remove(id);
+			}
+		} catch(IOException e) {
+			//Connessione chiusa: falliscono tutte le richieste in corso
+			for(Call<?> call : calls.values()) call.future.completeExceptionally(e);
+			calls.clear();
+		}
+	}
+
+	private static int code(ByteBuffer payload) {
+		return Integer.parseInt(Protocol.CHARSET.decode(payload).toString());
+	}
+
+	/**
+	 * Errore restituito dal server come codice di risposta negativo (o 0 se il file non esiste).
+	 */
+	public static class ReplyException extends IOException {
+		private static final long serialVersionUID = 1L;
+		private int code;
+
+		public ReplyException(int code) {
+			super("Il server ha risposto con il codice "+code);
+			this.code=code;
+		}
+
+		public int getCode() {return this.code;}
+	}
+
+	/*Richiesta in corso: interpreta i frame della propria risposta*/
+	private abstract class Call<T> {
+		protected CompletableFuture<T> future = new CompletableFuture<T>();
+		protected int id;
+
+		boolean handle(byte opcode, ByteBuffer payload) throws IOException {
+			return onFrame(opcode, payload);
+		}
+
+		/**
+		 * @return true se la risposta è completa
+		 */
+		abstract boolean onFrame(byte opcode, ByteBuffer payload) throws IOException;
+	}
+
+	/*Risposta composta da un solo codice*/
+	private class CodeCall extends Call<Integer> {
+		@Override
+		boolean onFrame(byte opcode, ByteBuffer payload) {
+			future.complete(code(payload));
+			return true;
+		}
+	}
+
+	/*Risposta al login: il flag DEFLATE indica che il server ha accettato la compressione*/
+	private class LoginCall extends CodeCall {
+		@Override
+		boolean onFrame(byte opcode, ByteBuffer payload) {
+			compression=Protocol.isCompressed(opcode);
+			return super.onFrame(opcode, payload);
+		}
+	}
+
+	/*Risposta di list: #file e 5 righe per ogni file*/
+	private class ListCall extends Call<List<String>> {
+		private int missing=-1;
+		private List<String> lines = new ArrayList<String>();
+
+		@Override
+		boolean onFrame(byte opcode, ByteBuffer payload) throws IOException {
+			if(missing==-1) {
+				int ret=code(payload);
+				if(ret<0) throw new ReplyException(ret);
+				missing=ret*5;
+			}
+			else {
+				lines.add(Protocol.CHARSET.decode(payload).toString());
+				missing--;
+			}
+			if(missing==0) future.complete(lines);
+			return missing==0;
+		}
+	}
+
+	/*Risposta di show/edit: #file candidati, autori, esito, contenuto (e chat per edit)*/
+	private class FetchCall extends Call<ByteBuffer[]> {
+		private boolean edit;
+		private int candidates=-1;
+		private boolean replied=false;
+		private ByteBuffer[] sections=null;
+		private int current=0;
+		private Inflater inflater=null; //Solo se il contenuto arriva compresso
+
+		FetchCall(boolean edit) {
+			this.edit=edit;
+		}
+
+		@Override
+		boolean onFrame(byte opcode, ByteBuffer payload) throws IOException {
+			if(candidates==-1) {//#file con quel nome
+				candidates=code(payload);
+				if(candidates<=0) throw new ReplyException(candidates);
+			}
+			else if(candidates>0) {//Autori (la scelta è già stata inviata)
+				candidates--;
+			}
+			else if(!replied) {//Esito: #sezioni o errore
+				int ret=code(payload);
+				if(ret<0) throw new ReplyException(ret);
+				replied=true;
+			}
+			else if(Protocol.type(opcode)==Protocol.FILE) {
+				sections = new ByteBuffer[] {ByteBuffer.allocate((int)payload.getLong())};
+				if(payload.getLong()!=0) throw new IOException("Ripresa di un trasferimento non richiesta");
+				if(Protocol.isCompressed(opcode)) inflater=new Inflater();
+			}
+			else if(Protocol.type(opcode)==Protocol.DOCUMENT) {
+				sections = new ByteBuffer[payload.getInt()];
+				for(int i=0; i<sections.length; i++) sections[i]=ByteBuffer.allocate((int)payload.getLong());
+				if(Protocol.isCompressed(opcode)) inflater=new Inflater();
+			}
+			else if(opcode==Protocol.DATA) {//Flusso con il contenuto delle sezioni
+				if(inflater!=null) payload=Compression.inflate(inflater, payload);
+				while(payload.hasRemaining()) {
+					while(current<sections.length && !sections[current].hasRemaining()) current++;
+					if(current==sections.length) throw new IOException("Contenuto più lungo del previsto");
+					int n=Math.min(payload.remaining(), sections[current].remaining());
+					ByteBuffer slice=payload.slice();
+					slice.limit(n);
+					sections[current].put(slice);
+					payload.position(payload.position()+n);
+				}
+			}
+			else if(opcode==Protocol.TEXT && edit) {//Indirizzo della chat
+				return complete();
+			}
+
+			if(sections!=null && !edit && received()) return complete();
+			return false;
+		}
+
+		private boolean received() {
+			for(ByteBuffer s : sections) if(s.hasRemaining()) return false;
+			//Un flusso compresso termina solo con il suo marcatore di fine
+			return inflater==null || inflater.finished();
+		}
+
+		private boolean complete() {
+			if(inflater!=null) inflater.end();
+			for(ByteBuffer s : sections) s.flip();
+			if(edit) {//Copia della base per l'eventuale delta di endEdit
+				ByteBuffer copy = ByteBuffer.allocate(sections[0].remaining());
+				copy.put(sections[0].duplicate()).flip();
+				editbase=copy;
+				editing=true;
+			}
+			future.complete(sections);
+			return true;
+		}
+	}
+
+	/*Invio di una sezione (vedi UploadCall)*/
+	private interface Upload {
+		void run() throws IOException;
+	}
+
+	/*Risposta di end-edit: #sezioni e offerta di ripresa (ACK), dopodiché si carica la sezione
+	  (come delta, se conviene) e si attende la conferma finale*/
+	private class UploadCall extends Call<Integer> {
+		private ByteBuffer content;
+		private ByteBuffer base;
+		private int sections=0;
+		private boolean offered=false;
+
+		UploadCall(ByteBuffer content, ByteBuffer base) {
+			this.content=content.duplicate();
+			this.base=base;
+		}
+
+		@Override
+		boolean onFrame(byte opcode, ByteBuffer payload) throws IOException {
+			if(opcode==Protocol.ACK) {
+				long offset=payload.getLong();
+				long size=payload.getLong();
+				long checksum=payload.getLong();
+				if(!offered) {//Offerta di ripresa di un upload interrotto
+					offered=true;
+					send(() -> start(offset, size, checksum));
+					return false;
+				}
+				if(offset<content.remaining()) return false; //Conferma intermedia
+				if(checksum!=Protocol.checksum(content)) throw new IOException("La sezione ricevuta dal server è diversa da quella inviata");
+				future.complete(sections);
+				return true;
+			}
+			int ret=code(payload);
+			if(sections==0) {//#sezioni o errore
+				if(ret<=0) {
+					future.complete(ret);
+					return true;
+				}
+				sections=ret;
+				return false;
+			}
+			if(ret==0) {//Delta applicato
+				future.complete(sections);
+				return true;
+			}
+			if(ret==-2) {//Lease scaduto prima della pubblicazione: la sezione è stata scartata
+				future.complete(ret);
+				return true;
+			}
+			send(() -> upload(0)); //Versione di base diversa sul server
+			return false;
+		}
+
+		/*Esegue un invio con il Thread di scrittura: se fallisce, fallisce la richiesta*/
+		private void send(Upload task) {
+			writer.execute(() -> {
+				try {
+					task.run();
+				} catch(IOException | RuntimeException e) {
+					calls.remove(id, this);
+					future.completeExceptionally(e);
+				}
+			});
+		}
+
+		/**
+		 * Inizia l'upload: riprende quello interrotto se il server ne ha confermato
+		 * una parte identica al contenuto, altrimenti invia il delta o la sezione intera.
+		 */
+		private void start(long offset, long size, long checksum) throws IOException {
+			if(offset>0 && size==content.remaining()) {
+				ByteBuffer prefix = content.duplicate();
+				prefix.limit(prefix.position()+(int)offset);
+				if(Protocol.checksum(prefix)==checksum) {
+					upload(offset);
+					return;
+				}
+			}
+			ByteBuffer[] frames = base!=null ? Delta.upload(id, base, content, compression) : null;
+			if(frames!=null) write(frames);
+			else upload(0);
+		}
+
+		private void upload(long offset) throws IOException {
+			if(compression && content.remaining()-offset>=Compression.THRESHOLD) write(Compression.file(id, content, offset));
+			else {
+				ByteBuffer rest = content.duplicate();
+				rest.position(rest.position()+(int)offset);
+				ByteBuffer[] data = Protocol.data(id, rest);
+				ByteBuffer[] frames = new ByteBuffer[data.length+1];
+				frames[0]=Protocol.file(id, content.remaining(), offset);
+				System.arraycopy(data, 0, frames, 1, data.length);
+				write(frames);
+			}
+		}
+
+		private void write(ByteBuffer[] frames) throws IOException {
+			synchronized(writelock) {
+				Protocol.write(socket, frames);
+			}
+		}
+	}
+}
@@ -1,17 +1,36 @@
 import java.net.SocketAddress;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Classe d'appoggio usata da UsersDB per
  * per registrare tutte le informazioni relative agli utenti di TURING.
  * La classe memorizza informazioni quali, la password in formato hash,
- * l'indirizzo da cui è eventualmente collegato l'user, un indicatore che controlla 
- * se ci sono nuovi inviti di condivisione file, e una lista di
- * fileID associati, ovvero i file che possono essere visualizzati/modificati
- * dall'utente.
- * 
- * @author Stefano Spadola 534919 
+ * l'indirizzo da cui è eventualmente collegato l'user, un indicatore che controlla
+ * se ci sono nuovi inviti di condivisione file (con l'azione che li notifica alla
+ * sessione dell'utente, se è online), e una lista di
+ * fileID (numerici, vedi FilesDB) associati, ovvero i file che possono essere
+ * visualizzati/modificati dall'utente.
+ * <p>
+ * Le informazioni sono divise in tre parti indipendenti, così che nessuna
+ * operazione debba copiare l'intero utente:
+ * <ul>
+ * <li>le credenziali, immutabili;</li>
+ * <li>lo stato di sessione (online e inviti di condivisione), che cambia ad ogni
+ * login/logout e viene modificato con singole operazioni atomiche;</li>
+ * <li>i file accessibili, immutabili: vengono sostituiti atomicamente da una nuova
+ * versione solo quando si aggiunge o si toglie un file, e possono quindi essere letti
+ * e condivisi senza copiarli.</li>
+ * </ul>
+ * Oltre alla lista dei fileID (nell'ordine di inserimento), i file accessibili
+ * sono indicizzati per fileID (array ordinato di long, ricerca binaria) e per nome
+ * del file, così che show, edit e share trovino i file cercati senza scorrere
+ * la lista qualunque sia il numero dei documenti.
+ *
+ * @author Stefano Spadola 534919
  */
 
 public class UserData{
@@ -21,111 +40,218 @@ public class UserData{
 	 * dove il database degli utenti
 	 * doveva essere salvato/serializzato su disco
 	 */
-	private Integer seed;
-	private Integer passwordHashed;
-	//Variabile per capire se è online un user 
-	private SocketAddress isOnline=null;
-	//Lista file associati a lui
-	private ArrayList<String> fileIDList=null;
-	private boolean sharingRequest;
-	
+	private final int seed;
+	private final int passwordHashed;
+	//Variabile per capire se è online un user
+	private AtomicReference<SocketAddress> isOnline=new AtomicReference<SocketAddress>(null);
+	private AtomicBoolean sharingRequest=new AtomicBoolean(false);
+	private volatile Runnable sharelistener=null;
+	//File (immutabili) associati a lui
+	private AtomicReference<Library> library=new AtomicReference<Library>(new Library());
+
 	public UserData(String password) {
 		//Inizializzo password
 		Random s = new Random();
 		this.seed=s.nextInt(100000);
 		this.passwordHashed=(new String(password+seed)).hashCode();
-		this.fileIDList=new ArrayList<String>();
-		sharingRequest=false;
-	}
-	
-	/*Costruttore per la copia (deep copy)*/
-	public UserData(UserData that) {
-		seed=new Integer(that.seed);
-		passwordHashed=new Integer(that.passwordHashed);
-		isOnline=that.isOnline;
-		fileIDList=new ArrayList<String>(that.fileIDList);
-		sharingRequest=that.sharingRequest;
-	}
-	
+	}
+
+	/**
+	 * Ricostruisce un utente salvato su disco (vedi Journal).
+	 *
+	 * @param seed Seme della password
+	 * @param passwordHashed Hash della password con il seme
+	 */
+	public UserData(int seed, int passwordHashed) {
+		this.seed=seed;
+		this.passwordHashed=passwordHashed;
+	}
+
+	public int getSeed() {return this.seed;}
+	public int getPasswordHash() {return this.passwordHashed;}
+
 	public void plot() {
 		System.out.println(seed);
 		System.out.println(passwordHashed);
-		System.out.println(isOnline);
-		System.out.println(fileIDList);
+		System.out.println(isOnline.get());
+		System.out.println(Arrays.toString(library.get().ids));
+	}
+
+	/**
+	 * Metodo getter della lista dei file.
+	 *
+	 * @return i fileID correnti (condivisi, da non modificare)
+	 */
+	public long[] getList(){
+		return this.library.get().ids;
+	}
+
+	/**
+	 * @param fileID ID del file
+	 * @return true se il file è tra quelli accessibili all'utente
+	 */
+	public boolean hasFile(long fileID) {
+		return this.library.get().contains(fileID);
 	}
-	
-	//Metodo getter
-	public ArrayList<String> getList(){
-		return this.fileIDList;
+
+	/**
+	 * @param filename Nome del file
+	 * @return i fileID accessibili all'utente con quel nome (condivisi, da non modificare; eventualmente vuoti)
+	 */
+	public long[] getFiles(String filename) {
+		return this.library.get().getOrEmpty(filename);
 	}
-	
+
 	public boolean hasSharingRequest() {
-		return this.sharingRequest;
+		return this.sharingRequest.get();
 	}
-	
+
 	/*			----(login phase)----			*/
-	
+
 	/**
 	 * Metodo per la verifica dell'identità di un utente che sta tentando di collegarsi
-	 * 
+	 *
 	 * @param password La password dell'utente che sta effettuando un tentativo di login
 	 * @return true se la password è corretta, false altrimenti
 	 */
 	public boolean identityChecker(String password) {
 		return((new String(password+this.seed).hashCode()==this.passwordHashed));
 	}
-	
+
 	/**
 	 * Metodo che setta online un utente che sta effettuando un login
 	 * ed è stato precedentemente autenticato
-	 * 
+	 *
 	 * @param address L'indirizzo da cui si sta collegando al server
 	 * @return 0 on Success || -1 In caso l'utente sia già online
 	 */
 	public int setOnline(SocketAddress address) {
-		int ret;
-		if(this.isOnline==null) {
-			this.isOnline=address;
-			ret=0; //Everything ok! :)
-		}
-		else ret=-1; //User già loggato
-		return ret;
+		if(this.isOnline.compareAndSet(null, address)) return 0; //Everything ok! :)
+		else return -1; //User già loggato
 	}
-	
+
 	/**
 	 * Metodo che setta offline un utente che ne ha fatto richiesta
 	 */
 	public void setOffline() {
-		this.isOnline=null;
+		this.isOnline.set(null);
 	}
-	
+
+	/**
+	 * Segnala un nuovo invito di condivisione: l'indicatore viene impostato prima
+	 * di eseguire l'azione della sessione online, che lo consuma (vedi takeRequest),
+	 * così che un login concorrente non possa perdere l'invito.
+	 */
 	public void setRequest() {
-		this.sharingRequest=true;
+		this.sharingRequest.set(true);
+		Runnable listener=this.sharelistener;
+		if(listener!=null) listener.run();
 	}
-	public void unsetRequest() {
-		this.sharingRequest=false;
+
+	/**
+	 * Registra l'azione che notifica i nuovi inviti alla sessione dell'utente.
+	 * L'azione viene eseguita dal Thread di chi condivide, quindi non deve bloccare:
+	 * si limita a passare la notifica al trasporto della sessione invitata.
+	 *
+	 * @param listener Azione da eseguire ad ogni invito, null quando l'utente va offline
+	 */
+	public void setShareListener(Runnable listener) {
+		this.sharelistener=listener;
+	}
+
+	/**
+	 * Consuma l'indicatore di nuovi inviti di condivisione.
+	 *
+	 * @return true se c'erano inviti non ancora notificati
+	 */
+	public boolean takeRequest() {
+		return this.sharingRequest.getAndSet(false);
 	}
-	
+
 	/*			----(File phase)----			*/
-	
+
 	/**
-	 * Metodo che aggiunge un file alla lista dei file (fileID)
-	 * 
-	 * @param nomefile Nome file da aggiungere
-	 * @param user Nome utente che ne richiede l'aggiunta
-	 * @return 0 on Success || -1 Se il file esiste già
+	 * Aggiunge un file a quelli accessibili, sostituendoli atomicamente.
+	 * Usa un ciclo per garantire il corretto inserimento del valore.
+	 *
+	 * @param filename Nome del file
+	 * @param fileID ID del file da aggiungere
+	 * @return true se aggiunto, false se era già presente
 	 */
-	public int createFile(String nomefile, String user) {
-		int ret;
-		
-		if(this.fileIDList.contains(nomefile+user)) {
-			ret=-1; //File AlreadyExists
+	public boolean addFile(String filename, long fileID) {
+		Library current;
+		do {
+			current=library.get();
+			if(current.contains(fileID)) return false;
+		} while(!library.compareAndSet(current, current.with(filename, fileID, true)));
+		return true;
+	}
+
+	/**
+	 * Toglie un file da quelli accessibili, sostituendoli atomicamente.
+	 *
+	 * @param filename Nome del file
+	 * @param fileID ID del file da togliere
+	 */
+	public void removeFile(String filename, long fileID) {
+		Library current;
+		do {
+			current=library.get();
+			if(!current.contains(fileID)) return;
+		} while(!library.compareAndSet(current, current.with(filename, fileID, false)));
+	}
+
+	/*Versione immutabile dei file accessibili: lista, fileID ordinati e indice per nome*/
+	private static class Library {
+		private static final long[] EMPTY = new long[0];
+		private final long[] ids;
+		private final long[] sorted;
+		private final HashMap<String,long[]> byname;
+
+		Library() {
+			this(EMPTY, EMPTY, new HashMap<String,long[]>());
+		}
+
+		private Library(long[] ids, long[] sorted, HashMap<String,long[]> byname) {
+			this.ids=ids;
+			this.sorted=sorted;
+			this.byname=byname;
 		}
-		else {
-			this.fileIDList.add(nomefile+user);
-			ret=0;
+
+		boolean contains(long fileID) {
+			return Arrays.binarySearch(sorted, fileID)>=0;
+		}
+
+		/**
+		 * @return una nuova versione con il file aggiunto (add=true) o tolto
+		 */
+		Library with(String filename, long fileID, boolean add) {
+			long[] ids = add ? append(this.ids, fileID) : remove(this.ids, fileID);
+			long[] sorted = add ? append(this.sorted, fileID) : remove(this.sorted, fileID);
+			if(add) Arrays.sort(sorted);
+			long[] named = add ? append(getOrEmpty(filename), fileID) : remove(getOrEmpty(filename), fileID);
+			HashMap<String,long[]> byname = new HashMap<String,long[]>(this.byname);
+			if(named.length==0) byname.remove(filename);
+			else byname.put(filename, named);
+			return new Library(ids, sorted, byname);
+		}
+
+		private long[] getOrEmpty(String filename) {
+			long[] named = byname.get(filename);
+			return named!=null ? named : EMPTY;
+		}
+
+		private static long[] append(long[] array, long value) {
+			long[] result = Arrays.copyOf(array, array.length+1);
+			result[array.length]=value;
+			return result;
+		}
+
+		private static long[] remove(long[] array, long value) {
+			long[] result = new long[array.length];
+			int n=0;
+			for(long v : array) if(v!=value) result[n++]=v;
+			return Arrays.copyOf(result, n);
 		}
-		
-		return ret;
 	}
 }
@@ -1,9 +1,9 @@
 import java.net.SocketAddress;
 import java.rmi.RemoteException;
 import java.rmi.server.RemoteServer;
-import java.util.ArrayList;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
 
 /**
  * Struttura dati utilizzata per memorizzare gli utenti.
@@ -16,10 +16,9 @@ import java.util.concurrent.ConcurrentMap;
  * da creare un unica istanza utilizzabile dal Server.
  * Tutte le operazioni sono fatte in modo tale da garantire un ottima 
  * concorrenza dei metodi.
- * La maggior parte delle operazioni sono fatte usando l'operatore: 
- * <strong>replace(key,oldValue,newValue)</strong> che è garantito dalla
- * dcumentazione Java essere atomico.
- * {@link java.util.concurrent.ConcurrentHashMap#replace(K,V,V) replace}.
+ * Una volta registrato, un utente non viene più sostituito nella tabella:
+ * login, logout e la lista dei file sono operazioni atomiche sulle singole
+ * parti di UserData, che non richiedono di copiare l'intero utente.
  * <p>
  * Viene implementato inoltre il servizio RMI SubUnsuInterface, che è responsabile
  * della registrazione degli utenti al servizio.
@@ -51,7 +50,7 @@ public class UsersDB extends RemoteServer implements SubscribeInterface{
 		return istance;
 	}
 	
-	public ArrayList<String> getList(String user){
+	public long[] getList(String user){
 		UserData data = users.get(user);
 		if(data!=null)	return data.getList();
 		else return null;
@@ -61,6 +60,28 @@ public class UsersDB extends RemoteServer implements SubscribeInterface{
 		return users.get(key);
 	}
 	
+	/**
+	 * Esegue un'azione su tutti gli utenti registrati (usato per gli snapshot).
+	 * 
+	 * @param action Azione eseguita con nome utente e dati
+	 */
+	public void forEachUser(BiConsumer<String,UserData> action) {
+		users.forEach(action);
+	}
+	
+	/**
+	 * Reinserisce un utente durante il ripristino (vedi Journal), se non è già presente.
+	 * 
+	 * @param user Nome utente
+	 * @param seed Seme della password
+	 * @param passwordHashed Hash della password con il seme
+	 * @param request true se l'utente aveva inviti di condivisione non notificati
+	 */
+	public void restoreUser(String user, int seed, int passwordHashed, boolean request) {
+		UserData data = new UserData(seed, passwordHashed);
+		if(users.putIfAbsent(user, data)==null && request) data.setRequest();
+	}
+	
 	
 	/*				Operazioni gestite dal Server				*/
 	
@@ -78,6 +99,7 @@ public class UsersDB extends RemoteServer implements SubscribeInterface{
 			System.out.println("User già esistente");
 			return -1;
 		}
+		Journal.getIstance().subscribed(user, data);
 		System.out.println("Inserted");
 		return 0;
 	}
@@ -97,12 +119,8 @@ public class UsersDB extends RemoteServer implements SubscribeInterface{
 		
 		UserData data = users.get(user);
 		if(data!=null) {
-			UserData acopy = new UserData(data);
-			if(acopy.identityChecker(password)) {
-				if(acopy.setOnline(saddr)==0) {
-					if(users.replace(user,data,acopy)) ret = 0; //Success! (logged)
-					else ret=-8; //Concorrenza
-				}
+			if(data.identityChecker(password)) {
+				if(data.setOnline(saddr)==0) ret = 0; //Success! (logged)
 				else ret=-3; //User già loggato
 			}
 			else ret=-1;//Wrong password
@@ -120,37 +138,43 @@ public class UsersDB extends RemoteServer implements SubscribeInterface{
 	 * @return 0
 	 */
 	public int logOut(String user) {
-		UserData data;
-		UserData acopy;
-		do {
-			data = users.get(user);
-			acopy = new UserData(data);
-			acopy.setOffline();			
-		}while(!users.replace(user,data,acopy));
+		UserData data=users.get(user);
+		data.setShareListener(null);
+		data.setOffline();
 		return 0;//Success!
 	}
 	
+	/**
+	 * Cerca tra i file accessibili all'utente quello con un dato nome di cui è autore.
+	 * 
+	 * @param user Nome utente
+	 * @param nomefile Nome del file
+	 * @return il fileID || 0 se l'utente non ha creato alcun file con quel nome
+	 */
+	public long getOwnedFile(String user, String nomefile) {
+		UserData data = users.get(user);
+		if(data==null) return 0;
+		for(long fileID : data.getFiles(nomefile)) {
+			if(FilesDB.getIstance().getFileInfo(fileID).getAuthor().equals(user)) return fileID;
+		}
+		return 0;
+	}
+	
 	/**
 	 * Funzione che aggiunge un file nella lista dei file modificabili/visualizzabili
 	 * 
 	 * @param nomefile Nome del file da inserire
 	 * @param user Utente che ne fa richiesta
-	 * @return 0 on success || -1 se il file esiste già || -2 Se l'user non esiste || -8 Se c'è un problema di concorrenza
+	 * @param fileID ID assegnato al file da FilesDB
+	 * @return 0 on success || -1 se il file esiste già || -2 Se l'user non esiste
 	 */
-	public int createFile(String nomefile, String user) {
+	public int createFile(String nomefile, String user, long fileID) {
 		int ret;
 		
 		UserData data = users.get(user);
 		if(data!=null) {
-			UserData acopy = new UserData(data);
-			int tmp = acopy.createFile(nomefile, user);
-			if(tmp==0) {
-				if(users.replace(user,data,acopy)) ret=0; //Everything is ok!
-				else ret=-8; //Problema di concorrenza
-			}
-			else {
-				ret=-1; //File already exisists! 
-			}
+			ret = data.addFile(nomefile, fileID) ? 0 : -1; //0 Everything is ok! || -1 File already exisists!
+			if(ret==0) Journal.getIstance().created(fileID);
 		}
 		else ret=-2; //User non esiste...?
 		
@@ -159,34 +183,31 @@ public class UsersDB extends RemoteServer implements SubscribeInterface{
 	
 	/**
 	 * Funzione usata in casi particolari per ripristinare alcuni cambiamenti
-	 * che non garantiscono la consistenza dei dati. Usa un while per garantire
-	 * il successo dell'operazione.
+	 * che non garantiscono la consistenza dei dati.
 	 * 
 	 * @param nomefile Nome del file da eliminare
 	 * @param user Nome utente che ne fa richiesta
+	 * @param fileID ID del file da eliminare
 	 */
-	public void deleteFile(String nomefile, String user) {
-		UserData data;
-		UserData acopy=null;
-		do {
-			data=users.get(user);
-			if(data!=null) {
-				acopy = new UserData(data);
-				acopy.getList().remove(nomefile+user);
-			}
-		}while(!users.replace(user,data,acopy));
+	public void deleteFile(String nomefile, String user, long fileID) {
+		UserData data=users.get(user);
+		if(data!=null) data.removeFile(nomefile, fileID);
 	}
 	
 	/**
-	 * Metodo che modifica una entry (già precedentemente inserita) nella struttura.
+	 * Funzione che condivide un file con un utente e gli segnala il nuovo invito.
 	 * 
-	 * @param user è l'Username univoco
-	 * @param oldValue è il vecchio valore da sostituire
-	 * @param newValue è il nuovo valore da sostituire
-	 * @return true se va a buon fine, false altrimenti
+	 * @param filename Nome del file da condividere
+	 * @param fileID ID del file da condividere
+	 * @param user Utente con cui condividerlo
+	 * @return 0 on success || -1 Se l'user non esiste || -2 Se il file è già condiviso
 	 */
-	public boolean modifyEntry(String user, UserData oldValue, UserData newValue) {
-		return users.replace(user, oldValue, newValue);
+	public int shareFile(String filename, long fileID, String user) {
+		UserData data=users.get(user);
+		if(data==null) return -1;
+		if(!data.addFile(filename, fileID)) return -2;
+		data.setRequest();
+		return 0;
 	}
 
 }